@@ -23,6 +23,25 @@ class BufferedFile
 	}
 	*/
 
+	/**
+	 * Open a file through a memory mapping where the platform allows
+	 * it, falling back to reading it onto the heap. Set -Dccf.nomap
+	 * to always use the heap. Windows keeps any mapped file from being
+	 * renamed, so files are only mapped there when the mapping can be
+	 * released on close. This holds for reads as well, since a loaded
+	 * file is renamed to .old when it is saved over.
+	 */
+	static BufferedFile open(String f, String mode)
+		throws IOException
+	{
+		boolean map = System.getProperty("ccf.nomap") == null;
+		if (map && Util.onWindows())
+		{
+			map = MappedBufferedFile.canUnmap();
+		}
+		return map ? new MappedBufferedFile(f, mode) : new BufferedFile(f, mode);
+	}
+
 	// ---( constructors )---
 	public BufferedFile ()
 	{
@@ -47,6 +66,7 @@ class BufferedFile
 		if (mode.equalsIgnoreCase("r"))
 		{
 			file.close();
+			file = null;
 		}
 		flen = buf.length;
 		dirty = false;
@@ -68,6 +88,12 @@ class BufferedFile
 		{
 			file.setLength(len);
 		}
+		if (len > buf.length)
+		{
+			byte b[] = new byte[len];
+			System.arraycopy(buf,0,b,0,buf.length);
+			buf = b;
+		}
 		flen = len;
 	}
 
@@ -231,6 +257,7 @@ class BufferedFile
 			if (file != null)
 			{
 				file.close();
+				file = null;
 			}
 		}
 		catch (Exception ex)
@@ -239,6 +266,24 @@ class BufferedFile
 		}
 	}
 
+	/**
+	 * Returns a read-only cursor over the same bytes with its own file
+	 * pointer, so several decoders can read one buffer at once.
+	 * Closing the view leaves this file open.
+	 */
+	BufferedFile view()
+	{
+		BufferedFile v = new BufferedFile(buf);
+		v.flen = flen;
+		return v;
+	}
+
+	// backing array for zero-copy reads. only valid until the next write.
+	byte[] getBuffer()
+	{
+		return buf;
+	}
+
 	public byte[] toByteArray()
 	{
 		byte b[] = new byte[(int)flen];
@@ -13,7 +13,10 @@ import java.io.IOException;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.util.Date;
+import java.util.Vector;
+import java.util.Hashtable;
 import java.util.Calendar;
 import java.text.SimpleDateFormat;
 import java.awt.Dimension;
@@ -79,6 +82,9 @@ public class CCF implements ICCFProvider
 	private ITaskStatus status;
 	private ProntoModel conforms;
 	private boolean useRemoteCapability;
+	private int threads = Integer.getInteger("ccf.threads", 1).intValue();
+	private boolean compress;
+	private boolean compact;
 
 	// ---( instance methods )---
 	public boolean usesUDB()
@@ -255,10 +261,137 @@ public class CCF implements ICCFProvider
 	 */
 	public void load(String file)
 		throws IOException
+	{
+		load(file, false);
+	}
+
+	/**
+	 * Read CCF image from file.
+	 *
+	 * @param file name of file to read
+	 * @param lazy when true, only the header, devices and panel lists
+	 * are read up front. panel contents are read on first access.
+	 */
+	public void load(String file, boolean lazy)
+		throws IOException
 	{
 		state = new CCFNodeState(header, status);
+		state.setLazy(lazy);
+		state.setThreads(threads);
 		state.decodeFromFile(file);
 		checkPanels();
+		header.clearChanges();
+	}
+
+	/**
+	 * Read only the header of a CCF file: version, modified date,
+	 * capability and attributes. Nothing the header points to is
+	 * decoded, so the returned CCF has no devices or panels and is
+	 * only good for inspecting those values. Compressed files are
+	 * inflated only as far as the header needs.
+	 *
+	 * @param file name of file to read
+	 */
+	public static CCF peekHeader(String file)
+		throws IOException
+	{
+		CCFHeader header = new CCFHeader();
+		new CCFNodeState(header, null).peekFromFile(file);
+		return new CCF(header);
+	}
+
+	/**
+	 * Set the number of threads used to decode files that are not
+	 * loaded lazily. Defaults to -Dccf.threads or 1.
+	 */
+	public void setDecodeThreads(int threads)
+	{
+		this.threads = threads;
+	}
+
+	/**
+	 * When true, saved and encoded images are LZO compressed in the
+	 * container format only some models accept. Compressed files are
+	 * read back transparently either way.
+	 */
+	public void setCompressed(boolean compress)
+	{
+		this.compress = compress;
+	}
+
+	public boolean isCompressed()
+	{
+		return compress;
+	}
+
+	/**
+	 * Returns the bytes the last save or encode saved by writing
+	 * identical icons and IR codes only once.
+	 */
+	public int getSharedBytes()
+	{
+		return state != null ? state.getSharedBytes() : 0;
+	}
+
+	/**
+	 * When true, saves lay nodes out in tree order so each panel's
+	 * buttons, icons, actions and strings are stored together instead
+	 * of grouped by type. The size is the same either way.
+	 */
+	public void setCompact(boolean compact)
+	{
+		if (compact != this.compact)
+		{
+			// an incremental save would keep the old layout
+			header.setRelayout();
+		}
+		this.compact = compact;
+	}
+
+	public boolean isCompact()
+	{
+		return compact;
+	}
+
+	/**
+	 * Returns the size in bytes of the image a save would write now,
+	 * without writing it. Compare with ProntoModel.getMemory().
+	 */
+	public int getImageSize()
+	{
+		return getImageSize(compact);
+	}
+
+	/**
+	 * Returns the size in bytes of the image a save with the given
+	 * layout would write. Measuring leaves the layout in use alone
+	 * so an incremental save can still patch the loaded file.
+	 */
+	public int getImageSize(boolean compact)
+	{
+		decodePending();
+		CCFNodeState zs = new CCFNodeState(header, null);
+		zs.setCompact(compact);
+		return zs.measure();
+	}
+
+	/**
+	 * Returns the bytes of the file last loaded that no node used.
+	 * A save drops them.
+	 */
+	public int getWastedBytes()
+	{
+		decodePending();
+		return state != null ? state.getWastedBytes() : 0;
+	}
+
+	// finish any lazy load before the tree is re-encoded
+	private void decodePending()
+	{
+		if (state != null)
+		{
+			state.decodePending();
+		}
 	}
 
 	/**
@@ -303,8 +436,72 @@ public class CCF implements ICCFProvider
 	public void save(String file)
 		throws IOException
 	{
+		decodePending();
 		state = new CCFNodeState(header, status);
+		state.setCompact(compact);
+		state.setCompressed(compress);
 		state.encodeToFile(file);
+		header.clearChanges();
+	}
+
+	/**
+	 * Save CCF image to named file. When incremental is true only nodes
+	 * marked with setChanged() are rewritten, in place, into the file
+	 * last loaded or saved or into a copy of it. Anything else falls
+	 * back to a full save.
+	 *
+	 * @param file name of file to write image to
+	 * @param incremental true to patch the existing file when possible
+	 */
+	public void save(String file, boolean incremental)
+		throws IOException
+	{
+		decodePending();
+		if (incremental && !compress && state != null && state.patchFile(file))
+		{
+			return;
+		}
+		save(file);
+	}
+
+	/**
+	 * Record a change for the next incremental save. A node whose
+	 * fields changed in place is rewritten by itself. A null node
+	 * marks a change that can not be tracked and forces a full save.
+	 *
+	 * @param node changed node or null
+	 */
+	public void setChanged(CCFNode node)
+	{
+		if (node == null)
+		{
+			header.setRelayout();
+			header.treeChanged();
+		}
+		else
+		{
+			node.setDirty();
+			if (node instanceof CCFDevice || node instanceof CCFPanel)
+			{
+				header.renamed(node);
+			}
+			header.nodeChanged(node);
+		}
+	}
+
+	/**
+	 * Write the CCF image to a stream as it is encoded. The image is
+	 * never held in memory. The stream is closed when done.
+	 *
+	 * @param out stream to write the image to
+	 */
+	public void save(OutputStream out)
+		throws IOException
+	{
+		decodePending();
+		state = new CCFNodeState(header, status);
+		state.setCompact(compact);
+		state.encodeToStream(out);
 	}
 
 	/**
@@ -313,7 +510,10 @@ public class CCF implements ICCFProvider
 	public byte[] encode()
 		throws IOException
 	{
+		decodePending();
 		state = new CCFNodeState(header, status);
+		state.setCompact(compact);
+		state.setCompressed(compress);
 		return state.encodeToBytes();
 	}
 
@@ -357,15 +557,17 @@ public class CCF implements ICCFProvider
 		status(5, "Update CCF For Pronto");
 		resolveVersion();
 		status(10, "Saving to Pronto");
-		ITaskStatus os = status;
-		status = new ScopeTask(status, 10, 15);
-		byte b[] = encode();
-		if (b.length > conforms.getMemory())
+		decodePending();
+		state = new CCFNodeState(header, new ScopeTask(status, 10, 15));
+		state.setCompact(compact);
+		// the size is known from the layout before anything is written
+		int len = state.prepareStream();
+		if (len > conforms.getMemory())
 		{
 			throw new CCFException("Download aborted. CCF Size exceeds Remote's memory");
 		}
-		status = os;
-		c.setCCF(b, new ScopeTask(status, 15, 100));
+		state.setMeter((ITaskStatus)null);
+		c.setCCF(state, len, new ScopeTask(status, 15, 100));
 	}
 
 	private void status(int pct, String msg)
@@ -394,6 +596,7 @@ public class CCF implements ICCFProvider
 		{
 			dev.buildTree(header);
 		}
+		header.treeChanged();
 	}
 
 	/**
@@ -411,24 +614,135 @@ public class CCF implements ICCFProvider
 	 */
 	public CCFDevice getDeviceByName(String name)
 	{
-		CCFDevice srch = null;
-		if ((srch = searchListForName(header.firstHome, name)) != null) { return srch; }
-		if ((srch = searchListForName(header.firstDevice, name)) != null) { return srch; }
-		if ((srch = searchListForName(header.firstMacro, name)) != null) { return srch; }
-		return srch;
+		return header.getNameIndex().getDevice(name);
+	}
+
+	/**
+	 * Return the first Panel with the specified name in the first
+	 * Device with the specified name that has one.
+	 *
+	 * @param device name of device to look in.
+	 * @param panel name of panel to locate.
+	 */
+	public CCFPanel getPanelByName(String device, String panel)
+	{
+		return header.getNameIndex().getPanel(device, panel);
+	}
+
+	/**
+	 * Return all home, normal and macro Devices in list order.
+	 */
+	public CCFDevice[] getAllDevices()
+	{
+		return header.getNameIndex().getDevices();
+	}
+
+	/**
+	 * Return the Panels of all Devices in list order.
+	 */
+	public CCFPanel[] getAllPanels()
+	{
+		return header.getNameIndex().getPanels();
+	}
+
+	/**
+	 * Return the action lists with an action that jumps to, aliases
+	 * or sends this Panel, Device, Button or IR code.
+	 *
+	 * @param node target of the actions.
+	 */
+	public CCFActionList[] getActionsTargeting(CCFNode node)
+	{
+		Vector v = users(node, CCFActionList.class);
+		return (CCFActionList[])v.toArray(new CCFActionList[v.size()]);
+	}
+
+	/**
+	 * Return the Buttons, Frames and Devices that show this icon.
+	 *
+	 * @param icon icon to look for.
+	 */
+	public CCFNode[] getIconUsers(CCFIcon icon)
+	{
+		Vector v = users(icon, CCFNode.class);
+		return (CCFNode[])v.toArray(new CCFNode[v.size()]);
+	}
+
+	/**
+	 * Return true if any action or node refers to this one.
+	 *
+	 * @param node Panel, Device, Button, IR code or icon.
+	 */
+	public boolean isReferenced(CCFNode node)
+	{
+		return header.getRefIndex().getUsers(node).length > 0;
+	}
+
+	/**
+	 * Start building the search index on a background thread so the
+	 * first search does not wait for it. This reads every panel of a
+	 * lazily loaded file. The index walks the tree without locking it,
+	 * so call this right after a load and before the tree is edited.
+	 */
+	public void prepareSearch()
+	{
+		Thread t = new Thread("search-index") {
+			public void run() {
+				header.getTextIndex().prepare();
+			}
+		};
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	/**
+	 * Return the Devices, Panels, Buttons, Frames and IR codes whose
+	 * name, label, ID tag or IR hex contains the text, ignoring case.
+	 * Spaces are ignored when matching IR hex.
+	 *
+	 * @param text text to look for.
+	 */
+	public CCFNode[] search(String text)
+	{
+		return search(text, CCFWalker.ALL);
 	}
 
-	private CCFDevice searchListForName(CCFDevice first, String name)
+	/**
+	 * Search for text in only some node types.
+	 *
+	 * @param text text to look for.
+	 * @param types node types to return (CCFWalker.PANEL, ...).
+	 */
+	public CCFNode[] search(String text, int types)
 	{
-		while (first != null)
+		return header.getTextIndex().search(text, types);
+	}
+
+	/**
+	 * Return the nodes matching a path query. See CCFQuery for the
+	 * query syntax. Queries run often should be compiled once.
+	 *
+	 * @param query query text.
+	 * @throws IllegalArgumentException if the query is malformed.
+	 */
+	public CCFNode[] select(String query)
+	{
+		return CCFQuery.compile(query).select(this);
+	}
+
+	private Vector users(CCFNode node, Class type)
+	{
+		CCFNode n[] = header.getRefIndex().getUsers(node);
+		Vector v = new Vector(n.length);
+		for (int i=0; i<n.length; i++)
 		{
-			if (first.name != null && first.name.equals(name))
+			if (type.isInstance(n[i]))
 			{
-				return first;
+				v.addElement(n[i]);
 			}
-			first = first.getNextDevice();
 		}
-		return null;
+		return v;
 	}
 
 	/**
@@ -459,6 +773,7 @@ public class CCF implements ICCFProvider
 		{
 			dev.buildTree(header);
 		}
+		header.treeChanged();
 	}
 
 	/**
@@ -479,6 +794,7 @@ public class CCF implements ICCFProvider
 		{
 			dev.buildTree(header);
 		}
+		header.treeChanged();
 	}
 
 	/**
@@ -537,6 +853,7 @@ public class CCF implements ICCFProvider
 		if (!append(header.firstHome, dev))
 		{
 			header.firstHome = dev;
+			header.treeChanged();
 		}
 	}
 
@@ -548,6 +865,7 @@ public class CCF implements ICCFProvider
 		if (!append(header.firstDevice, dev))
 		{
 			header.firstDevice = dev;
+			header.treeChanged();
 		}
 	}
 
@@ -559,6 +877,7 @@ public class CCF implements ICCFProvider
 		if (!append(header.firstMacro, dev))
 		{
 			header.firstMacro = dev;
+			header.treeChanged();
 		}
 	}
 
@@ -569,37 +888,29 @@ public class CCF implements ICCFProvider
 
 	/**
 	 * Merge another CCF into this one by appending
-	 * all devices from the merged CCF.
+	 * all devices from the merged CCF. Devices identical
+	 * to ones already present are shared instead of copied.
+	 * Devices whose names are taken are renamed. Panels of
+	 * home devices with the same name are merged the same way.
+	 * Icons and IR codes equal to ones already present are
+	 * shared. The merged CCF is emptied.
+	 *
+	 * @return a report of what was added, shared and renamed
 	 */
-	public void merge(CCF c)
+	public CCFMerge merge(CCF c)
 	{
 		CCFPanel ep = header.getEggDVD();
 		if (ep != null && c.header.getEggDVD() != null)
 		{
 			mergeEggStreams(c, ep);
 		}
-		CCFDevice dev = c.getFirstHomeDevice();
-		appendHomeDevice(dev);
-		while (dev != null)
-		{
-			dev.setParent(header);
-			dev = dev.getNextDevice();
-		}
-		dev = c.getFirstDevice();
-		appendDevice(dev);
-		while (dev != null)
-		{
-			dev.setParent(header);
-			dev = dev.getNextDevice();
-		}
-		dev = c.getFirstMacroDevice();
-		appendMacroDevice(dev);
-		while (dev != null)
-		{
-			dev.setParent(header);
-			dev = dev.getNextDevice();
-		}
-		resolveVersion();
+		resolveVersion(c);
+		CCFMerge m = new CCFMerge(this);
+		m.merge(c);
+		c.header.firstHome = null;
+		c.header.firstDevice = null;
+		c.header.firstMacro = null;
+		return m;
 	}
 
 	private void mergeEggStreams(CCF target, CCFPanel egg)
@@ -640,12 +951,19 @@ public class CCF implements ICCFProvider
 					}
 				}
 			}
-		});
+		}, CCFWalker.ACTION_LIST);
 		oldEggDVD.delete();
 	}
 
 	private void resolveVersion()
 	{
+		resolveVersion(this);
+	}
+
+	// convert the nodes of a CCF to this one's settings
+	private void resolveVersion(CCF from)
+	{
+		final Hashtable icons = new Hashtable();
 		final boolean udb = header().hasUDB();
 		final boolean color = header().hasColor();
 		final boolean newmarantz = header().isNewMarantz();
@@ -657,18 +975,14 @@ public class CCF implements ICCFProvider
 			map[3].getColorIndex(),
 		};
 		// post-process on merge
-		new CCFWalker(this).walk(new IWalker() {
+		new CCFWalker(from).walk(new IWalker() {
 			public void onNode(CCFNode node) {
 				if (node != null)
 				{
 					node.setHeader(header);
 				}
 				if (node instanceof CCFIcon) {
-					if (color) {
-						((CCFIcon)node).convertToColor();
-					} else {
-						((CCFIcon)node).convertToGray();
-					}
+					icons.put(node, node);
 				} else
 				if (node instanceof CCFButton) {
 					CCFButton b = (CCFButton)node;
@@ -718,6 +1032,34 @@ public class CCF implements ICCFProvider
 				*/
 			}
 		});
+		convertIcons(icons, color, CCFIcon.DITHER_NONE, null);
+	}
+
+	/**
+	 * Convert every icon to color or gray on worker threads.
+	 *
+	 * @param color true for 256 color icons, false for 4 gray
+	 * @param dither CCFIcon.DITHER_NONE, DITHER_ORDERED or DITHER_DIFFUSE
+	 * @param status progress as icons are converted, may be null
+	 */
+	public void convertIcons(boolean color, int dither, ITaskStatus status)
+	{
+		final Hashtable icons = new Hashtable();
+		new CCFWalker(this).walk(new IWalker() {
+			public void onNode(CCFNode node) {
+				icons.put(node, node);
+			}
+		}, CCFWalker.ICON);
+		convertIcons(icons, color, dither, status);
+		// icons changed size so the file is laid out again on save
+		header.setRelayout();
+	}
+
+	private void convertIcons(Hashtable icons, boolean color, int dither, ITaskStatus status)
+	{
+		CCFIcon list[] = new CCFIcon[icons.size()];
+		icons.keySet().toArray(list);
+		CCFIconConverter.convertAll(list, color, dither, status);
 	}
 
 	/**
@@ -163,6 +163,18 @@ public class CCFAction extends CCFNode
 		return valid && zs.willEncode(action1) && zs.willEncode(action2);
 	}
 
+	// targets are written as positions, so they must already be in
+	// the file and still attached to the tree
+	boolean isPatchable(CCFNodeState zs)
+	{
+		return valid && isPatchable(zs, action1) && isPatchable(zs, action2);
+	}
+
+	private boolean isPatchable(CCFNodeState zs, CCFNode target)
+	{
+		return target == null || (target.getParent() != null && zs.inImage(target));
+	}
+
 	CCFNode getClone()
 	{
 		CCFAction a = (CCFAction)super.getClone();
@@ -149,6 +149,7 @@ public class CCFActionList extends CCFNode
 		action = a;
 		count1 = a.length;
 		count2 = a.length;
+		nodeChanged();
 	}
 
 	public void appendAction(CCFAction a)
@@ -285,6 +285,7 @@ public class CCFButton extends CCFNode implements INamed
 		colorIS = set.colors[1];
 		colorAU = set.colors[2];
 		colorAS = set.colors[3];
+		nodeChanged();
 	}
 
 	/**
@@ -362,6 +363,7 @@ public class CCFButton extends CCFNode implements INamed
 	{
 		this.actions = actions;
 		this.actions.setParent(this);
+		nodeChanged();
 	}
 
 	/**
@@ -380,6 +382,7 @@ public class CCFButton extends CCFNode implements INamed
 	public void setName(String name)
 	{
 		this.name = name;
+		nodeChanged();
 	}
 
 	/**
@@ -398,6 +401,7 @@ public class CCFButton extends CCFNode implements INamed
 	public void setIDTag(String idtag)
 	{
 		this.idtag = idtag;
+		nodeChanged();
 	}
 
 	/**
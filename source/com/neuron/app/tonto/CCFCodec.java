@@ -0,0 +1,558 @@
+/*
+ * Copyright (c) 2001-2002, Stewart Allen <stewart@neuron.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the Artistic License.
+ */
+
+package com.neuron.app.tonto;
+
+// ---( imports )---
+import java.util.*;
+import java.lang.reflect.*;
+
+/**
+ * Compiled form of a CCFNode encode or decode table. The string tables
+ * returned by getEncodeTable()/getDecodeTable() remain the definition of
+ * the file format. Each table is parsed once per node class into an array
+ * of field operations with the type, width and target Field resolved up
+ * front, so the per-node codec loop does no table parsing, no field name
+ * lookups and no boxing of integer fields.
+ */
+final class CCFCodec
+{
+	// ---( static fields )---
+	private static Debug debug = Debug.getInstance("ccf");
+
+	private final static char BYTE_FIELD     = 'B';
+	private final static char NODE_FIELD     = 'Z';
+	private final static char INTEGER_FIELD  = 'N';
+	private final static char STRING_FIELD   = 'S';
+	private final static char IGNORE_FIELD   = 'X';
+
+	private final static char FIELD_PTR      = '*';
+	private final static char FIELD_COUNT    = '+';
+
+	// set -Dccf.reflect to force the original table interpreter
+	private static boolean enabled = System.getProperty("ccf.reflect") == null;
+
+	// ---( static methods )---
+	/**
+	 * Returns true if nodes are encoded and decoded through compiled
+	 * codecs rather than by interpreting the field tables reflectively.
+	 */
+	static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Switch between compiled codecs and the reflective table interpreter.
+	 * Both produce identical results and exist side by side so they can
+	 * be compared against each other.
+	 */
+	static void setEnabled(boolean tf)
+	{
+		enabled = tf;
+	}
+
+	// ---( constructors )---
+	CCFCodec(CCFNode node, String table[][])
+	{
+		this.table = table;
+		this.ops = new Op[table.length];
+		for (int i=0; i<table.length; i++)
+		{
+			ops[i] = new Op(node, table[i]);
+			if (ops[i].isFixed())
+			{
+				fixedLength += ops[i].size;
+			}
+		}
+	}
+
+	// ---( instance fields )---
+	private String table[][];
+	private Op ops[];
+	private int fixedLength;
+
+	// ---( instance methods )---
+	String[][] getTable()
+	{
+		return table;
+	}
+
+	int size()
+	{
+		return ops.length;
+	}
+
+	Object getValue(CCFNode node, int index)
+	{
+		return ops[index].get(node);
+	}
+
+	// returns the encoded object length in bytes
+	int getLength(CCFNode node)
+	{
+		int filepos = node.getFilePosition();
+		int length = fixedLength;
+		for (int i=0; i<ops.length; i++)
+		{
+			Op op = ops[i];
+			if (op.isFixed() || op.type == IGNORE_FIELD)
+			{
+				continue;
+			}
+			if (op.len == FIELD_COUNT)
+			{
+				if (op.type == BYTE_FIELD)
+				{
+					byte b[] = (byte[])op.get(node);
+					if (b != null)
+					{
+						length += b.length;
+					}
+				}
+				else
+				{
+					CCFNode z[] = (CCFNode[])op.get(node);
+					for (int j=0; z != null && j<z.length; j++)
+					{
+						length += z[j].getLength(filepos + length);
+					}
+				}
+			}
+			else
+			{
+				CCFNode z = (CCFNode)op.get(node);
+				if (z != null)
+				{
+					length += z.getLength(filepos + length);
+				}
+				else
+				{
+					node.error("field is missing required node");
+				}
+			}
+		}
+		return length;
+	}
+
+	void encode(CCFNode node, CCFNodeState zs)
+		throws FieldException
+	{
+		BufferedFile ra = zs.buffer();
+		boolean trace = debug.debug(3);
+		int i = 0;
+		try
+		{
+
+		for (i=0; i<ops.length; i++)
+		{
+			Op op = ops[i];
+			if (trace)
+			{
+				node.log(3,
+					"   >>  @ "+CCFNode.hex(node.getFilePosition())+" ("+node.myName()+","+
+					table[i][0]+","+table[i][1]+") ("+op.get(node)+")"
+				);
+			}
+			switch (op.type)
+			{
+				case IGNORE_FIELD:
+					continue;
+				case BYTE_FIELD:
+					ra.write((byte[])op.get(node));
+					break;
+				case NODE_FIELD:
+					if (op.len == FIELD_PTR)
+					{
+						CCFNode z = (CCFNode)op.get(node);
+						ra.putInt(z != null ? z.getFilePosition() : 0);
+					}
+					else
+					if (op.len == FIELD_COUNT)
+					{
+						CCFNode z[] = (CCFNode[])op.get(node);
+						for (int j=0; z != null && j<z.length; j++)
+						{
+							z[j].encode(zs,false);
+						}
+					}
+					else
+					{
+						((CCFNode)op.get(node)).encode(zs,false);
+					}
+					break;
+				case INTEGER_FIELD:
+					int valu = op.getInt(node);
+					switch (op.len)
+					{
+						case '1':
+							ra.putByte(valu);
+							break;
+						case '2':
+							ra.putShort(valu);
+							break;
+						case '4':
+							ra.putInt(valu);
+							break;
+						default:
+							for (int c=0; c<op.size; c++)
+							{
+								ra.putByte((valu >> ((op.size-c)*8)) & 0xff);
+							}
+							break;
+					}
+					break;
+				case STRING_FIELD:
+					String str = (String)op.get(node);
+					if (op.len == FIELD_PTR)
+					{
+						ra.putInt(node.getStringEncodePos(zs,str));
+					}
+					else
+					{
+						CCFNode.stringEncode(ra, str);
+					}
+					break;
+			}
+		}
+
+		}
+		catch (Exception ex)
+		{
+			throw new FieldException(i, ex);
+		}
+	}
+
+	// returns the number of bytes consumed for the progress meter
+	int decode(CCFNode node, CCFNodeState zs)
+		throws FieldException
+	{
+		BufferedFile in = zs.buffer();
+		boolean trace = debug.debug(3);
+		int delta = 0;
+		int i = 0;
+		try
+		{
+
+		for (i=0; i<ops.length; i++)
+		{
+			Op op = ops[i];
+			long pos = in.getFilePointer();
+			int defer = -1;
+			Object val = null;
+			switch (op.type)
+			{
+				case BYTE_FIELD:
+					{
+						int count = op.getCount(node);
+						byte buf[] = zs.isSliceable() ? in.getBuffer() : null;
+						if (buf != null && count >= 0 && pos+count <= in.length() &&
+							node.decodeSlice(op.name, buf, (int)pos, count))
+						{
+							in.skipBytes(count);
+							delta += count;
+							continue;
+						}
+						byte b[] = new byte[count];
+						in.readFully(b);
+						val = b;
+						delta += b.length;
+					}
+					break;
+				case NODE_FIELD:
+					if (op.len == FIELD_PTR)
+					{
+						int seek = in.getInt();
+						if (seek > 0)
+						{
+							zs.deferResolve(node,op.name,seek,op.nodeType);
+							defer = seek;
+						}
+						delta += 4;
+					}
+					else
+					if (op.len == FIELD_COUNT)
+					{
+						CCFNode o[] = (CCFNode[])Array.newInstance(
+							op.nodeType, op.getCount(node));
+						for (int j=0; j<o.length; j++)
+						{
+							o[j] = node.readItem(zs, op.nodeType);
+							o[j].setFixedPosition(true);
+						}
+						val = o;
+						delta += (in.getFilePointer()-pos);
+					}
+					else
+					if (op.len == '1')
+					{
+						CCFNode z = node.readItem(zs, op.nodeType);
+						z.setFixedPosition(true);
+						val = z;
+						delta += (in.getFilePointer()-pos);
+					}
+					break;
+				case INTEGER_FIELD:
+					int valu;
+					switch (op.len)
+					{
+						case '1':
+							valu = op.unsigned ? in.getByte() & 0xff : in.getByte();
+							break;
+						case '2':
+							valu = op.unsigned ? in.getShort() & 0xffff : in.getShort();
+							break;
+						case '4':
+							valu = in.getInt();
+							break;
+						default:
+							valu = 0;
+							for (int c=0; c<op.size; c++)
+							{
+								valu += (in.getByte() & 0xff) << ((op.size-c)*8);
+							}
+							break;
+					}
+					delta += op.size;
+					if (trace)
+					{
+						traceDecode(node, in, i, Integer.toString(valu));
+					}
+					op.setInt(node, valu);
+					continue;
+				case STRING_FIELD:
+					if (op.len == FIELD_PTR)
+					{
+						int nupos = in.getInt();
+						val = zs.getLocationString(nupos);
+						if (val != null || nupos == 0)
+						{
+							break;
+						}
+						long repos = in.getFilePointer();
+						if (nupos > in.length())
+						{
+							val = null;
+							node.log(0, "attempt to read string outside of file bounds", zs);
+						}
+						else
+						{
+							in.seek(nupos);
+							val = node.stringLengthDecode(in);
+							zs.putLocationString((String)val, nupos);
+							in.seek(repos);
+						}
+						delta += 4;
+					}
+					else
+					{
+						val = node.stringDecode(in, op.size);
+						delta += op.size;
+					}
+					break;
+			}
+			if (trace)
+			{
+				traceDecode(node, in, i, val == null ? Integer.toString(defer) : val);
+			}
+			op.set(node, val);
+		}
+
+		}
+		catch (Exception ex)
+		{
+			throw new FieldException(i, ex);
+		}
+		return delta;
+	}
+
+	private void traceDecode(CCFNode node, BufferedFile in, int i, Object val)
+	{
+		node.log(3,
+			" >>  @ "+CCFNode.hex(in.getFilePointer())+" ("+node.myName()+","+
+			table[i][0]+","+table[i][1]+") ("+val+")"
+		);
+	}
+
+	// ---( inner classes )---
+	/**
+	 * Carries the index of the table entry that failed so the
+	 * caller can report it the same way the interpreter does.
+	 */
+	static class FieldException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+
+		private int index;
+
+		FieldException(int index, Exception ex)
+		{
+			super(ex.getMessage(), ex);
+			this.index = index;
+		}
+
+		int getIndex()
+		{
+			return index;
+		}
+
+		Exception getCause(Exception def)
+		{
+			Throwable t = getCause();
+			return t instanceof Exception ? (Exception)t : def;
+		}
+	}
+
+	/**
+	 * A single parsed table entry bound to its target field.
+	 */
+	private static class Op
+	{
+		char type;
+		char len;
+		int size;
+		int variance;
+		boolean unsigned;
+		Class fieldType;
+		String name;
+		Field field;
+		Field count;
+		Class nodeType;
+
+		Op(CCFNode node, String entry[])
+		{
+			type = entry[0].charAt(0);
+			len = entry[0].charAt(1);
+			name = entry[1];
+			size = (len == FIELD_PTR ? 4 : len == FIELD_COUNT ? 0 : len - '0');
+			field = node.getField(name);
+			fieldType = field.getType();
+			try
+			{
+				// skip the per-call access check on package fields
+				field.setAccessible(true);
+			}
+			catch (SecurityException ex)
+			{
+				debug.log(2, "codec: field access check required for "+name);
+			}
+			switch (type)
+			{
+				case BYTE_FIELD:
+					count = node.getField(entry[2]);
+					variance = entry.length > 3 ? Integer.parseInt(entry[3]) : 0;
+					break;
+				case NODE_FIELD:
+					nodeType = (len == FIELD_COUNT) ?
+						field.getType().getComponentType() : field.getType();
+					if (len == FIELD_COUNT)
+					{
+						count = node.getField(entry[2]);
+					}
+					break;
+				case INTEGER_FIELD:
+					unsigned = entry.length > 2;
+					break;
+				case STRING_FIELD:
+				case IGNORE_FIELD:
+					break;
+				default:
+					throw node.error("unhandled encode option '"+type+"'");
+			}
+		}
+
+		// true if the encoded width does not depend on the field value
+		boolean isFixed()
+		{
+			switch (type)
+			{
+				case STRING_FIELD:
+				case INTEGER_FIELD:
+					return true;
+				case NODE_FIELD:
+					return len == FIELD_PTR;
+				default:
+					return false;
+			}
+		}
+
+		int getCount(CCFNode node)
+		{
+			try
+			{
+				int c = count.getType() == int.class ?
+					count.getInt(node) : ((Number)count.get(node)).intValue();
+				return c + variance;
+			}
+			catch (IllegalAccessException ex)
+			{
+				throw node.error(ex);
+			}
+		}
+
+		Object get(CCFNode node)
+		{
+			try
+			{
+				return field.get(node);
+			}
+			catch (IllegalAccessException ex)
+			{
+				throw node.error(ex);
+			}
+		}
+
+		int getInt(CCFNode node)
+		{
+			try
+			{
+				return fieldType == int.class ?
+					field.getInt(node) : ((Number)field.get(node)).intValue();
+			}
+			catch (IllegalAccessException ex)
+			{
+				throw node.error(ex);
+			}
+		}
+
+		void set(CCFNode node, Object val)
+		{
+			try
+			{
+				field.set(node, val);
+			}
+			catch (IllegalAccessException ex)
+			{
+				throw node.error(ex);
+			}
+		}
+
+		void setInt(CCFNode node, int val)
+		{
+			try
+			{
+				if (fieldType == int.class)
+				{
+					field.setInt(node, val);
+				}
+				else
+				if (fieldType == short.class)
+				{
+					field.setShort(node, (short)val);
+				}
+				else
+				{
+					field.set(node, Integer.valueOf(val));
+				}
+			}
+			catch (IllegalAccessException ex)
+			{
+				throw node.error(ex);
+			}
+		}
+	}
+}
@@ -9,7 +9,6 @@ package com.neuron.app.tonto;
 
 // ---( imports )---
 import java.awt.Color;
-import java.awt.image.ColorModel;
 
 /**
  * A representation of valid CCF Colors.
@@ -22,7 +21,6 @@ public class CCFColor
 	public final static int LIGHT_GRAY = 2;
 	public final static int WHITE      = 3;
 
-	private static ColorModel cm = ColorModel.getRGBdefault();
 	private static int grayTint;
 
 	public static CCFColor[] defaultMap = {
@@ -293,6 +291,13 @@ public class CCFColor
 		{ 16,  16,  16  }  // 255
 	};
 
+	// nearest color lookup. the rgb cube is cut into 4096 cells of
+	// 16x16x16 colors, each mapping every color in it to an index.
+	// cells are filled the first time one of their colors is used.
+	private final static Cell cells[] = new Cell[4096];
+	private final static Cell solids[] = new Cell[256];
+	private final static int all[] = new int[rgb.length];
+
 	private final static Color[] model = new Color[rgb.length];
 	private final static Color[] oldModel = new Color[4];
 	private       static Color[] tintModel = oldModel;
@@ -302,6 +307,7 @@ public class CCFColor
 		for (int i=0; i<model.length; i++)
 		{
 			model[i] = new Color(rgb[i][0], rgb[i][1], rgb[i][2]);
+			all[i] = i;
 		}
 		oldModel[0] = model[0];
 		oldModel[1] = model[251];
@@ -357,8 +363,8 @@ public class CCFColor
 	public static int rgbToGrayIndex(int val)
 	{
 		return (int)(((
-			(cm.getRed(val)*30)+(cm.getGreen(val)*59)+
-			(cm.getBlue(val)*11))/6400));
+			(((val >> 16) & 0xff)*30)+(((val >> 8) & 0xff)*59)+
+			((val & 0xff)*11))/6400));
 	}
 
 	public static int grayToRGB(int gray, int rgb[])
@@ -501,11 +507,38 @@ public class CCFColor
 	 * @return color index that most closely matches RGB value.
 	 */
 	public static int getColorFromRGB(int r, int g, int b)
+	{
+		if (((r | g | b) & ~0xff) != 0)
+		{
+			return nearest(r, g, b, all);
+		}
+		return getColorFromRGB((r << 16) | (g << 8) | b);
+	}
+
+	/**
+	 * @return color index that most closely matches a packed RGB value.
+	 * The alpha byte is ignored.
+	 */
+	public static int getColorFromRGB(int val)
+	{
+		int c = ((val >> 12) & 0xf00) | ((val >> 8) & 0xf0) | ((val >> 4) & 0xf);
+		Cell cell = cells[c];
+		if (cell == null)
+		{
+			cell = fill(c);
+		}
+		return cell.map[((val >> 8) & 0xf00) | ((val >> 4) & 0xf0) | (val & 0xf)] & 0xff;
+	}
+
+	// scan candidate colors in index order for the closest within 16
+	// on every channel. later colors win ties.
+	private static int nearest(int r, int g, int b, int cand[])
 	{
 		int best = -1;
 		int diff = -1;
-		for (int i=0; i<rgb.length; i++)
+		for (int j=0; j<cand.length; j++)
 		{
+			int i = cand[j];
 			int rd = Math.abs(r-rgb[i][0]);
 			int gd = Math.abs(g-rgb[i][1]);
 			int bd = Math.abs(b-rgb[i][2]);
@@ -526,6 +559,60 @@ public class CCFColor
 		return (r/51) + ((g/51)*6) + ((b/51)*36);
 	}
 
+	// map every color in a cell using only the palette colors near it
+	private static Cell fill(int c)
+	{
+		int r0 = (c >> 8) << 4;
+		int g0 = ((c >> 4) & 0xf) << 4;
+		int b0 = (c & 0xf) << 4;
+		int near[] = new int[rgb.length];
+		int n = 0;
+		for (int i=0; i<rgb.length; i++)
+		{
+			if (rgb[i][0] >= r0-16 && rgb[i][0] <= r0+31 &&
+				rgb[i][1] >= g0-16 && rgb[i][1] <= g0+31 &&
+				rgb[i][2] >= b0-16 && rgb[i][2] <= b0+31)
+			{
+				near[n++] = i;
+			}
+		}
+		int cand[] = new int[n];
+		System.arraycopy(near, 0, cand, 0, n);
+		byte map[] = new byte[4096];
+		boolean same = true;
+		for (int i=0; i<map.length; i++)
+		{
+			map[i] = (byte)nearest(r0 + (i >> 8), g0 + ((i >> 4) & 0xf), b0 + (i & 0xf), cand);
+			same &= map[i] == map[0];
+		}
+		Cell cell = same ? solid(map[0] & 0xff, map) : new Cell(map);
+		cells[c] = cell;
+		return cell;
+	}
+
+	// cells mapping to one color share a map
+	private static synchronized Cell solid(int color, byte map[])
+	{
+		if (solids[color] == null)
+		{
+			solids[color] = new Cell(map);
+		}
+		return solids[color];
+	}
+
 	// ---( interface methods )---
+
+	// ---( inner classes )---
+	// the final field makes a cell safe to read from other threads
+	// without locking once it is stored
+	private static class Cell
+	{
+		final byte map[];
+
+		Cell(byte map[])
+		{
+			this.map = map;
+		}
+	}
 }
 
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2001-2002, Stewart Allen <stewart@neuron.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the Artistic License.
+ */
+
+package com.neuron.app.tonto;
+
+// ---( imports )---
+import java.util.Arrays;
+
+/**
+ * Identifies an icon or ir code by the bytes it encodes to. Used as a
+ * Hashtable key to find icons and ir codes with the same content.
+ */
+final class CCFContent
+{
+	// ---( constructors )---
+	CCFContent(CCFNode node)
+	{
+		this.node = node;
+		if (node instanceof CCFIcon)
+		{
+			CCFIcon i = (CCFIcon)node;
+			hash = ((i.width * 31 + i.height) * 31 + i.type) * 31 + Arrays.hashCode(i.data);
+		}
+		else
+		{
+			CCFIRCode c = (CCFIRCode)node;
+			hash = (c.name != null ? c.name.hashCode() : 0) * 31 + Arrays.hashCode(c.getData());
+		}
+	}
+
+	// ---( instance fields )---
+	private CCFNode node;
+	private int hash;
+
+	// ---( instance methods )---
+	CCFNode getNode()
+	{
+		return node;
+	}
+
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof CCFContent) || ((CCFContent)o).hash != hash)
+		{
+			return false;
+		}
+		CCFNode n = ((CCFContent)o).node;
+		if (n.getClass() != node.getClass() || n.getLength() != node.getLength())
+		{
+			return false;
+		}
+		if (node instanceof CCFIcon)
+		{
+			CCFIcon a = (CCFIcon)node;
+			CCFIcon b = (CCFIcon)n;
+			return a.width == b.width && a.height == b.height &&
+				a.type == b.type && Arrays.equals(a.data, b.data);
+		}
+		CCFIRCode a = (CCFIRCode)node;
+		CCFIRCode b = (CCFIRCode)n;
+		return (a.name == null ? b.name == null : a.name.equals(b.name)) &&
+			Arrays.equals(a.getData(), b.getData());
+	}
+}
+
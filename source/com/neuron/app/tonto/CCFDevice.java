@@ -300,6 +300,7 @@ public class CCFDevice
 
 	void insertBefore(CCFPanel panel, CCFPanel npanel)
 	{
+		treeChanged();
 		if (firstPanel == null || firstPanel == panel)
 		{
 			npanel.setParent(this);
@@ -323,6 +324,7 @@ public class CCFDevice
 
 	void delete(CCFPanel panel)
 	{
+		treeRemoved();
 		if (firstPanel == null)
 		{
 			return;
@@ -450,6 +452,7 @@ public class CCFDevice
 			device.setParent(getParent());
 		}
 		next = device;
+		treeChanged();
 	}
 
 	/**
@@ -466,6 +469,7 @@ public class CCFDevice
 		}
 		dev.next = device;
 		device.buildTree(getParent());
+		treeChanged();
 	}
 
 	public void insertAfter(CCFDevice dev)
@@ -480,6 +484,7 @@ public class CCFDevice
 			next = dev;
 		}
 		dev.buildTree(getParent());
+		treeChanged();
 	}
 
 	public void insertBefore(CCFDevice dev)
@@ -534,6 +539,7 @@ public class CCFDevice
 	public void setName(String name)
 	{
 		this.name = name;
+		renamed();
 	}
 
 	/**
@@ -552,6 +558,7 @@ public class CCFDevice
 	public void setFirstPanel(CCFPanel panel)
 	{
 		this.firstPanel = panel;
+		treeChanged();
 	}
 
 	/**
@@ -573,6 +580,7 @@ public class CCFDevice
 			return;
 		}
 		panel.buildTree(this);
+		treeChanged();
 		CCFPanel first = firstPanel;
 		if (first == null)
 		{
@@ -159,6 +159,7 @@ public class CCFFrame extends CCFNode implements IChildContainer, INamed
 	public void setName(String name)
 	{
 		this.name = name;
+		nodeChanged();
 	}
 
 	/**
@@ -247,6 +248,7 @@ public class CCFFrame extends CCFNode implements IChildContainer, INamed
 	public void setIcon(CCFIcon icon)
 	{
 		this.icon = icon;
+		nodeChanged();
 	}
 
 	/**
@@ -268,6 +270,7 @@ public class CCFFrame extends CCFNode implements IChildContainer, INamed
 		count1 = c != null ? c.length : 0;
 		count2 = count1;
 		buildTree(getParent());
+		nodeChanged();
 	}
 
 	/**
@@ -100,6 +100,7 @@ public class CCFHardKey
 		try
 		{
 			dev.getField(actions).set(dev, list);
+			dev.nodeChanged();
 		}
 		catch (Exception ex)
 		{
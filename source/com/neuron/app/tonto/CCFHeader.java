@@ -170,6 +170,12 @@ class CCFHeader extends CCFNode
 	private CCFPanel eggDVD;     // for handling EggStream CCF's
     private String[][] detected;
 	private CCFColor[] colorMap = CCFColor.defaultMap;
+	private transient Vector dirty = new Vector();	// changed since load or save
+	private transient boolean relayout;			// untracked changes since load or save
+	private transient CCFNameIndex names;
+	private transient CCFRefIndex refs;
+	private transient CCFTextIndex text;
+	private transient Hashtable peeked;		// key=field val=position not followed by a peek
 
     CCFHeader()
     {
@@ -181,6 +187,145 @@ class CCFHeader extends CCFNode
 		return CCFColor.getColor(_reserve_2);
 	}
 	
+	// ---( peeked pointers )---
+	// a pointer that peekHeader() read but did not follow
+	void setPeeked(String field, int pos)
+	{
+		if (peeked == null)
+		{
+			peeked = new Hashtable();
+		}
+		peeked.put(field, Integer.valueOf(pos));
+	}
+
+	// a peeked header shows the file position of pointers it did not
+	// follow, which are not the same as absent ones
+	String dumpNull(String field)
+	{
+		Integer pos = peeked != null ? (Integer)peeked.get(field) : null;
+		return pos != null ? "@"+hex(pos.intValue()) : super.dumpNull(field);
+	}
+
+	// ---( change tracking )---
+	void addDirty(CCFNode node)
+	{
+		dirty.addElement(node);
+	}
+
+	CCFNode[] getDirty()
+	{
+		CCFNode n[] = new CCFNode[dirty.size()];
+		dirty.copyInto(n);
+		return n;
+	}
+
+	/**
+	 * Record a change that is not tracked by dirty nodes, so the next
+	 * save must lay out the whole file again.
+	 */
+	void setRelayout()
+	{
+		relayout = true;
+	}
+
+	boolean needsRelayout()
+	{
+		return relayout;
+	}
+
+	// the tree now matches the file it was read from or saved to
+	void clearChanges()
+	{
+		for (int i=0; i<dirty.size(); i++)
+		{
+			((CCFNode)dirty.get(i)).clearDirty();
+		}
+		dirty.clear();
+		relayout = false;
+	}
+
+	// ---( name index )---
+	CCFNameIndex getNameIndex()
+	{
+		if (names == null)
+		{
+			names = new CCFNameIndex(this);
+		}
+		return names;
+	}
+
+	// devices or panels were added or moved
+	void treeChanged()
+	{
+		if (names != null)
+		{
+			names.invalidate();
+		}
+		if (refs != null)
+		{
+			refs.invalidate();
+		}
+		if (text != null)
+		{
+			text.invalidate();
+		}
+	}
+
+	// a device or panel was unlinked. the reference index skips
+	// detached nodes on lookup so it can be kept.
+	void treeRemoved()
+	{
+		if (names != null)
+		{
+			names.invalidate();
+		}
+	}
+
+	// a device or panel may have a new name
+	void renamed(CCFNode node)
+	{
+		if (names != null)
+		{
+			names.rename(node);
+		}
+		if (text != null)
+		{
+			text.update(node);
+		}
+	}
+
+	// ---( reference and search indexes )---
+	CCFRefIndex getRefIndex()
+	{
+		if (refs == null)
+		{
+			refs = new CCFRefIndex(this);
+		}
+		return refs;
+	}
+
+	synchronized CCFTextIndex getTextIndex()
+	{
+		if (text == null)
+		{
+			text = new CCFTextIndex(this);
+		}
+		return text;
+	}
+
+	// this node or the nodes below it changed in place
+	void nodeChanged(CCFNode node)
+	{
+		if (refs != null)
+		{
+			refs.update(node);
+		}
+		if (text != null)
+		{
+			text.update(node);
+		}
+	}
+
 	void setTransparentColor(CCFColor color)
 	{
 		_reserve_2 = color.getColorIndex();
@@ -231,6 +376,7 @@ class CCFHeader extends CCFNode
         macroPanel = new CCFPanel("macro", this);
         attr = AT_HOME_READONLY;
         detected = gray_timers;
+        treeChanged();
     }
 
     void setFactoryCCF(boolean flag)
@@ -440,6 +586,7 @@ class CCFHeader extends CCFNode
 
     void postDecode(CCFNodeState zs)
     {
+		treeChanged();
 		printSummary();
         if (crc1Pos != crc2Pos)
         {
@@ -523,6 +670,7 @@ class CCFHeader extends CCFNode
     // ---( instance methods )---
 	void insertBefore(CCFDevice dev, CCFDevice newdev)
 	{
+		treeChanged();
 		if (firstHome == dev)
 		{
 			newdev.buildTree(this);
@@ -581,6 +729,7 @@ class CCFHeader extends CCFNode
     // returns new root if any
     CCFDevice delete(CCFDevice dev)
     {
+		treeRemoved();
         if (firstHome == dev)
         {
             firstHome = dev.next;
@@ -30,6 +30,9 @@ public class CCFIRCode extends CCFNode implements ProntoConstants
 	byte    data[];		// NEVER set directly!
 
 	private boolean hasUDB;
+	private byte    slice[];	// decode buffer holding undecoded data
+	private int     sliceOff;
+	private int     sliceLen;
 
 	// ---( public API )---
 	CCFIRCode()
@@ -67,6 +70,7 @@ debug.log(0, "clone == "+code+" hdr="+code.getHeader());
 	// override in case size changes during preEncode
 	int getLength()
 	{
+		data();
 		CCFHeader hdr = getHeader();
 		if (hdr == null)
 		{
@@ -92,11 +96,12 @@ debug.log(0, "clone == "+code+" hdr="+code.getHeader());
 	public void setName(String name)
 	{
 		this.name = name;
+		nodeChanged();
 	}
 
 	public void setUDB(boolean udb)
 	{
-		if (udb == hasUDB || data == null)
+		if (udb == hasUDB || data() == null)
 		{
 			return;
 		}
@@ -125,7 +130,7 @@ debug.log(0, "clone == "+code+" hdr="+code.getHeader());
 	 */
 	public String getCode()
 	{
-		if (data == null)
+		if (data() == null)
 		{
 			return "";
 		}
@@ -168,6 +173,7 @@ debug.log(0, "clone == "+code+" hdr="+code.getHeader());
 				strip.substring(i*2, i*2+2), 16
 			);
 		}
+		nodeChanged();
 	}
 
 	// ---( instance methods )---
@@ -178,13 +184,27 @@ debug.log(0, "clone == "+code+" hdr="+code.getHeader());
 
 	byte[] getData()
 	{
-		return data;
+		return data();
 	}
 
 	void setData(byte d[])
 	{
 		data = d;
 		size = d.length + 6;
+		slice = null;
+	}
+
+	// copy data out of the decode buffer on first use
+	private byte[] data()
+	{
+		if (slice != null)
+		{
+			byte b[] = new byte[sliceLen];
+			System.arraycopy(slice, sliceOff, b, 0, sliceLen);
+			data = b;
+			slice = null;
+		}
+		return data;
 	}
 
 	// ---( override methods )---
@@ -200,6 +220,7 @@ debug.log(0, "clone == "+code+" hdr="+code.getHeader());
 
 	public void preEncode(CCFNodeState zs)
 	{
+		data();
 		// check and convert to proper format for learned codes
 		setUDB(getHeader().hasUDB());
 	}
@@ -211,7 +232,7 @@ debug.log(0, "clone == "+code+" hdr="+code.getHeader());
 	public void postDecode(CCFNodeState zs)
 	{
 		hasUDB = zs.getHeader().hasUDB();
-		if (data == null)
+		if (data == null && slice == null)
 		{
 			throw new NullPointerException("IR data is null");
 		}
@@ -221,6 +242,15 @@ debug.log(0, "clone == "+code+" hdr="+code.getHeader());
 		}
 	}
 
+	boolean decodeSlice(String field, byte buf[], int off, int len)
+	{
+		slice = buf;
+		sliceOff = off;
+		sliceLen = len;
+		data = null;
+		return true;
+	}
+
 	String[][] getEncodeTable()
 	{
 		return codec;
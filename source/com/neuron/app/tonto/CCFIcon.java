@@ -14,7 +14,6 @@ import java.awt.image.*;
 import java.util.*;
 import java.util.zip.*;
 import javax.swing.*;
-import com.neuron.io.ByteOutputBuffer;
 import com.neuron.app.tonto.ui.PNGImageProducer;
 import osbaldeston.image.BMP;
 
@@ -27,7 +26,12 @@ public class CCFIcon extends CCFNode
 	public final static int MODE_8BIT  = 2;
 	public final static int MODE_32BIT = 3;
 
-	private static Hashtable cache = new Hashtable();
+	public final static int DITHER_NONE    = 0;
+	public final static int DITHER_ORDERED = 1;
+	public final static int DITHER_DIFFUSE = 2;
+
+	// icons made from images, dropped with the image
+	private static Map cache = Collections.synchronizedMap(new WeakHashMap());
 
 	// type bit fields
 	//  +------------------ compressed
@@ -73,9 +77,6 @@ public class CCFIcon extends CCFNode
 	int    type;		// bg=[00011000][]  fg=[000001100][]  cmp=[10000000][]
 	byte   data[];		// NEVER set directly!
 
-	private Icon icon;
-	private ImageProducer image;
-
 	// ---( constructors )----
 	CCFIcon()
 	{
@@ -122,6 +123,19 @@ public class CCFIcon extends CCFNode
 		return create(Util.readFile(file), mode);
 	}
 
+	/**
+	 * Create a CCFIcon from a file containing a GIF, BMP or JPG image.
+	 *
+	 * @param file file containing a JPG, GIF or BMP image
+	 * @param mode ccf type
+	 * @param dither DITHER_NONE, DITHER_ORDERED or DITHER_DIFFUSE
+	 */
+	public static CCFIcon create(String file, int mode, int dither)
+		throws IOException
+	{
+		return create(toImage(Util.readFile(file)), mode, dither);
+	}
+
 	/**
 	 * Create a CCFIcon from a stream containing a GIF, JPG or BMP image.
 	 *
@@ -142,23 +156,29 @@ public class CCFIcon extends CCFNode
 	 */
 	public static CCFIcon create(byte data[], int mode)
 		throws IOException
+	{
+		return create(toImage(data), mode);
+	}
+
+	private static Image toImage(byte data[])
+		throws IOException
 	{
 		// BMP
 		if (data[0] == 'B' && data[1] == 'M')
 		{
-			return create(new BMP(new ByteArrayInputStream(data)).getImage(), mode);
+			return new BMP(new ByteArrayInputStream(data)).getImage();
 		}
 		else
 		// PNG
 		if (data[0] == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G')
 		{
-			return create(Toolkit.getDefaultToolkit().createImage(
-				new PNGImageProducer(new ByteArrayInputStream(data))), mode);
+			return Toolkit.getDefaultToolkit().createImage(
+				new PNGImageProducer(new ByteArrayInputStream(data)));
 		}
 		else
 		// default to Java's toolkit creator
 		{
-			return create(Toolkit.getDefaultToolkit().createImage(data), mode);
+			return Toolkit.getDefaultToolkit().createImage(data);
 		}
 	}
 
@@ -181,6 +201,25 @@ public class CCFIcon extends CCFNode
 		return find;
 	}
 
+	/**
+	 * Create a CCFIcon from an AWT Image, dithering it to the
+	 * 4 gray or 256 color palette.
+	 *
+	 * @param image file containing GIF or JPEG image
+	 * @param mode ccf type
+	 * @param dither DITHER_NONE, DITHER_ORDERED or DITHER_DIFFUSE
+	 */
+	public static CCFIcon create(Image image, int mode, int dither)
+	{
+		if (dither == DITHER_NONE)
+		{
+			return create(image, mode);
+		}
+		CCFIcon icon = new CCFIcon();
+		icon.setFromImage(image, mode, false, dither);
+		return icon;
+	}
+
 	/**
 	 * Save Icon as a GIF image to a file.
 	 */
@@ -315,9 +354,11 @@ public class CCFIcon extends CCFNode
 
 	private void setData(byte d[])
 	{
+		CCFImageCache.remove(this);
 		data = d;
 //		size = d.length + 8;
 		size = d.length + (isFullColor() ? 10 : 8);
+		setDirty();
 	}
 
 	public void setCompressed(boolean c)
@@ -327,15 +368,34 @@ public class CCFIcon extends CCFNode
 			return;
 		}
 //System.out.println("CCFIcon :: setCompressed("+c+")");
-		setFromImage(
-			Toolkit.getDefaultToolkit().createImage(getImageProducer()),
-			isFullColor() ? MODE_32BIT : isColor() ? MODE_8BIT : MODE_2BIT, c);
+		if (isFullColor())
+		{
+			setFromImage(
+				Toolkit.getDefaultToolkit().createImage(getImageProducer()), MODE_32BIT, c);
+			return;
+		}
+		// the pixels are kept as they are stored. going through RGB
+		// would move colors that the palette has twice to the other.
+		int len = width * height;
+		if (isColor())
+		{
+			int max = len + 16 - len % 16;
+			byte ix[] = CCFIconEncoder.get().pixels(max);
+			Arrays.fill(ix, load256Indexes(isCompressed(), ix, max), max, (byte)0);
+			set256Indexes(width, height, c);
+		}
+		else
+		{
+			byte lv[] = CCFIconEncoder.get().pixels(len);
+			Arrays.fill(lv, load4Levels(isCompressed(), lv), len, (byte)0);
+			set4Levels(width, height, c);
+		}
+		clearCache();
 	}
 
 	public boolean isCompressible()
 	{
-		// TODO: fix color compression // return isGray() || isColor();
-		return isFullColor() || (isGray() && !isColor());
+		return isFullColor() || isColor() || isGray();
 	}
 
 	public boolean isCompressed()
@@ -363,13 +423,23 @@ public class CCFIcon extends CCFNode
 		return !(isGray() || isColor() || isFullColor());
 	}
 
+	/**
+	 * Drop the images made from this icon from the shared image cache.
+	 */
 	public void clearCache()
 	{
-		icon = null;
-		image = null;
+		CCFImageCache.remove(this);
 	}
 
 	public void convertToGray()
+	{
+		convertToGray(DITHER_NONE);
+	}
+
+	/**
+	 * Convert to 4 grays with DITHER_NONE, DITHER_ORDERED or DITHER_DIFFUSE.
+	 */
+	public void convertToGray(int dither)
 	{
 		if (!isColor())
 		{
@@ -377,11 +447,20 @@ public class CCFIcon extends CCFNode
 		}
 //System.out.println("CCFIcon :: convertToGray :: "+this);
 		debug.log(3,"converting "+this+" to gray");
-		create4Color(width, height, getRGBImage(), false);
+		create4Color(width, height, getRGBImage(), false, dither);
 		clearCache();
 	}
 
 	public void convertToColor()
+	{
+		convertToColor(DITHER_NONE);
+	}
+
+	/**
+	 * Convert to 256 colors with DITHER_NONE, DITHER_ORDERED or
+	 * DITHER_DIFFUSE. Dithering only matters for custom full color icons.
+	 */
+	public void convertToColor(int dither)
 	{
 		if (isColor())
 		{
@@ -402,38 +481,65 @@ public class CCFIcon extends CCFNode
 			int oc = img[i];
 			img[i] = CCFColor.grayToRGB(img[i], rgb);
 		}
-		create256Color(width, height, img, false);
+		create256Color(width, height, img, false, dither);
 		clearCache();
 	}
 
 	public Icon getIcon(Component c)
 	{
+		return getScaledIcon(c, width, height);
+	}
+
+	/**
+	 * Returns this icon drawn at another size. Scaled icons are kept
+	 * in the shared image cache.
+	 */
+	public Icon getScaledIcon(Component c, int w, int h)
+	{
+		Icon icon = (Icon)CCFImageCache.get(this, CCFImageCache.ICON, w, h);
 		if (icon == null)
 		{
-			icon = new ImageIcon(c.createImage(getImageProducer()));
+			Image i = getImage(c);
+			if (w != width || h != height)
+			{
+				i = i.getScaledInstance(w, h, Image.SCALE_FAST);
+			}
+			icon = new ImageIcon(i);
+			// at full size it only holds the cached image, which the
+			// cache keeps for as long as it keeps the icon
+			CCFImageCache.put(this, CCFImageCache.ICON, w, h, icon,
+				w == width && h == height ? 0 : w * h * 4);
 		}
 		return icon;
 	}
 
-	/*
-	public Icon getScaledIcon(Component c, int w, int h)
+	Image getImage(Component c)
 	{
-		return new ImageIcon(c.createImage(getImage()).getScaledInstance(w,h,Image.SCALE_FAST));
+		Image i = (Image)CCFImageCache.get(this, CCFImageCache.IMAGE, width, height);
+		if (i == null)
+		{
+			i = c.createImage(getImageProducer());
+			CCFImageCache.put(this, CCFImageCache.IMAGE, width, height, i, width * height * 4);
+		}
+		return i;
 	}
-	*/
 
-	Image getImage(Component c)
+	ImageProducer getImageProducer()
 	{
-		return c.createImage(getImageProducer());
+		return (ImageProducer)decoded()[1];
 	}
 
-	ImageProducer getImageProducer()
+	// decoded pixels and a producer reading them
+	private Object[] decoded()
 	{
-		if (image == null)
+		Object d[] = (Object[])CCFImageCache.get(this, CCFImageCache.DECODED, width, height);
+		if (d == null)
 		{
-			image = new MemoryImageSource(width, height, getRGBImage(), 0, width);
+			int rgb[] = loadRGBImage();
+			d = new Object[] { rgb, new MemoryImageSource(width, height, rgb, 0, width) };
+			CCFImageCache.put(this, CCFImageCache.DECODED, width, height, d, rgb.length * 4);
 		}
-		return image;
+		return d;
 	}
 
 	public static CCFIcon composite(CCFIcon src, CCFIcon dst)
@@ -485,7 +591,38 @@ public class CCFIcon extends CCFNode
 		return ni;
 	}
 
+	/**
+	 * Returns a copy of the decoded pixels the caller may change.
+	 */
 	int[] getRGBImage()
+	{
+		return ((int[])decoded()[0]).clone();
+	}
+
+	/**
+	 * Returns the color indexes or gray levels as stored, one byte
+	 * per pixel. Pixels the data is short of are zero.
+	 */
+	byte[] getPixels()
+	{
+		int len = width*height;
+		byte b[] = new byte[len];
+		if (isColor())
+		{
+			int max = isCompressed() ? len + 16 - len % 16 : len;
+			byte ix[] = CCFIconEncoder.get().pixels(max);
+			int n = load256Indexes(isCompressed(), ix, max);
+			System.arraycopy(ix, 0, b, 0, Math.min(n, len));
+		}
+		else
+		if (isGray())
+		{
+			load4Levels(isCompressed(), b);
+		}
+		return b;
+	}
+
+	private int[] loadRGBImage()
 	{
 //System.out.println("CCFIcon :: getRGBImage");
 		switch (type & COLOR_FULL)
@@ -527,6 +664,11 @@ public class CCFIcon extends CCFNode
 	// --( set internal data from Image )------------------------------------
 
 	void setFromImage(Image i, int mode, boolean compress)
+	{
+		setFromImage(i, mode, compress, DITHER_NONE);
+	}
+
+	void setFromImage(Image i, int mode, boolean compress, int dither)
 	{
 //System.out.println("CCFIcon :: setFromImage: mode="+mode+" comp="+compress);
 		if (i == null)
@@ -554,203 +696,131 @@ public class CCFIcon extends CCFNode
 			{
 				throw new RuntimeException("image load aborted");
 			}
-			switch (mode)
-			{
-				case MODE_2BIT:
-					create4Color(w, h, img, compress);
-					break;
-				case MODE_8BIT:
-					create256Color(w, h, img, compress);
-					break;
-				case MODE_32BIT:
-					createFullColor(w, h, img);
-					break;
-				default:
+			setFromPixels(w, h, img, mode, compress, dither);
+		}
+		clearCache();
+	}
+
+	// set from RGB pixels already grabbed from an image
+	void setFromPixels(int w, int h, int img[], int mode, boolean compress, int dither)
+	{
+		switch (mode)
+		{
+			case MODE_2BIT:
+				create4Color(w, h, img, compress, dither);
+				break;
+			case MODE_8BIT:
+				create256Color(w, h, img, compress, dither);
+				break;
+			case MODE_32BIT:
+				createFullColor(w, h, img);
+				break;
+			default:
 //System.out.println("unmatched type : "+type);
-					break;
-			}
+				break;
 		}
 		clearCache();
 	}
 
 	// --( creators )--------------------------------------------------------
 
-	// create type 1 uncompressed (four color) from RGB source
 	private void create4Color(int w, int h, int img[], boolean compr)
+	{
+		create4Color(w, h, img, compr, DITHER_NONE);
+	}
+
+	// create type 1 (four color) from RGB source
+	private void create4Color(int w, int h, int img[], boolean compr, int dither)
 	{
 		if (compr)
 		{
-			create4ColorCompressed(w, h, img);
+			create4ColorCompressed(w, h, dither == DITHER_NONE ? img :
+				CCFIconConverter.ditherGray(img, w, h, dither));
 			return;
 		}
-		ColorModel cm = ColorModel.getRGBdefault();
-		int lineWidth = (w / 4) + (w % 4 > 0 ? 1 : 0);
-		int linePad = lineWidth % 2;
-		lineWidth += linePad;
-		int bitWidth = lineWidth * 4;
-		byte d[] = new byte[lineWidth * h];
-		for (int i=0; i<img.length; i++)
-		{
-			int col = i % w;
-			int pos = ((i/w)*bitWidth+col)/4;
-			int gray = rgbToGrayIndex(img[i]);
-			d[pos] |= ((gray & 0x3) << ((3-(col%4))*2));
-		}
-		setImage(w, h, d, false, false);
+		setImage(w, h, CCFIconConverter.to4(img, w, h, dither), false, false);
 	}
 
 	// create type 1 compressed (four color) from RGB source
 	private void create4ColorCompressed(int w, int h, int img[])
 	{
-		int pos = 0;
-		byte d[] = new byte[w*h/2];
-		for (int i=0; i<img.length; pos++)
+		CCFIconEncoder enc = CCFIconEncoder.get();
+		byte lv[] = enc.pixels(img.length);
+		int last = 0;
+		byte level = (byte)rgbToGrayIndex(last);
+		for (int i=0; i<img.length; i++)
 		{
-			int val = img[i];
-			if (i+3 < img.length)
+			if (img[i] != last)
 			{
-				if (val == img[i+1] && val == img[i+2] && val == img[i+3])
-				{
-					int j = i+3;
-					for (; j<img.length && j-i<32 && img[j] == val; j++)
-						;
-					d[pos] = (byte)(0x80 | rgbToGrayIndex(val) | ((j-i-4)<<2));
-					i = j;
-					continue;
-				}
+				last = img[i];
+				level = (byte)rgbToGrayIndex(last);
 			}
-			int j = 0;
-			for (; j<3 && j+i<img.length; j++)
+			lv[i] = level;
+		}
+		set4Levels(w, h, true);
+	}
+
+	// set type 1 from the gray levels in the encoder's pixels. kept
+	// uncompressed when compressing is no smaller.
+	private void set4Levels(int w, int h, boolean compr)
+	{
+		CCFIconEncoder enc = CCFIconEncoder.get();
+		if (compr)
+		{
+			int len = enc.encode4(w * h);
+			if (len < CCFIconEncoder.rowBytes4(w) * h)
 			{
-				d[pos] |= (rgbToGrayIndex(img[i+j]) << ((2-j)*2));
+				setImage(w, h, CCFIconEncoder.copy(enc.output(), len, 2), true, false);
+				return;
 			}
-			i += j;
 		}
-		pos += (pos % 2);
-		byte nd[] = new byte[pos];
-		System.arraycopy(d, 0, nd, 0, pos);
-		setImage(w, h, nd, true, false);
+		setImage(w, h, enc.pack4(w, h), false, false);
 	}
 
-	// create type 2 uncompressed (256 color) from RGB source
 	private void create256Color(int w, int h, int img[], boolean compr)
+	{
+		create256Color(w, h, img, compr, DITHER_NONE);
+	}
+
+	// create type 2 (256 color) from RGB source
+	private void create256Color(int w, int h, int img[], boolean compr, int dither)
 	{
 		if (compr)
 		{
-			create256ColorCompressed(w, h, img);
+			create256ColorCompressed(w, h, img, dither);
 			return;
 		}
-		ColorModel cm = ColorModel.getRGBdefault();
 		int lpad = img.length % 16;
 		byte d[] = new byte[img.length+(lpad > 0 ? (16-lpad) : 0)];
-		for (int i=0; i<img.length; i++)
-		{
-			d[i] = (byte)CCFColor.getColorFromRGB(
-				cm.getRed(img[i]),
-				cm.getGreen(img[i]),
-				cm.getBlue(img[i])
-			);
-		}
+		CCFIconConverter.to256(img, w, h, dither, d);
 		setImage(w, h, d, false, true);
 	}
 
 	// create type 2 compressed (256 color) from RGB source
-	// TODO: this appears to be buggy
-	private void create256ColorCompressed(int w, int h, int img[])
-	{
-		//debug.log(0, "create compressed color: "+w+"x"+h+" imglen="+img.length);
-		ColorModel cm = ColorModel.getRGBdefault();
-		//int lpad = img.length % 16;
-		//byte d[] = new byte[img.length+(lpad > 0 ? (16-lpad) : 0)];
-		byte d[] = new byte[img.length];
-		for (int i=0; i<img.length; i++)
-		{
-			d[i] = (byte)CCFColor.getColorFromRGB(
-				cm.getRed(img[i]),
-				cm.getGreen(img[i]),
-				cm.getBlue(img[i])
-			);
-		}
-		ByteOutputBuffer bob = new ByteOutputBuffer();
-		boolean odd = img.length % 2 == 1;
-		int pos = 0;
-		int max = img.length - (odd ? 9 : 8);
-
-		try {
+	private void create256ColorCompressed(int w, int h, int img[], int dither)
+	{
+		CCFIconConverter.to256(img, w, h, dither, CCFIconEncoder.get().pixels(img.length));
+		set256Indexes(w, h, true);
+	}
 
-		int x = 0;
-		while (pos < img.length)
+	// set type 2 from the color indexes in the encoder's pixels. kept
+	// uncompressed when compressing is no smaller.
+	private void set256Indexes(int w, int h, boolean compr)
+	{
+		CCFIconEncoder enc = CCFIconEncoder.get();
+		int count = w * h;
+		if (compr)
 		{
-			Segment s1 = new Segment(d, pos, max);
-			Segment s2 = new Segment(d, pos+s1.len, max);
-			if ((s1.rle || s2.rle) && s1.len > 0 && s2.len > 0)
+			int len = enc.encode256(count);
+			if (CCFIconEncoder.padded(len, 16) < CCFIconEncoder.padded(count, 16))
 			{
-				//debug.log(0, x+"  segment: rle="+(s1.rle?"1":"0")+" rle="+(s2.rle?"1":"0")+" "+s1.len+","+s2.len);
-				bob.write((byte)((s1.rle ? 0x00 : 0x80)+s1.len/2));
-				bob.write((byte)((s2.rle ? 0x00 : 0x80)+s2.len/2));
-				s1.write(bob);
-				s2.write(bob);
-				pos += (s1.len + s2.len);
-			}
-			else
-			{
-				int zlen = s1.len+s2.len;
-				if (zlen > 4)
-				{
-					//debug.log(0, x+"  segment: rle=0 "+zlen+" @ "+pos);
-					bob.write(0xff);
-					bob.write((zlen/2) + 1);
-					for (int i=pos; i<zlen; i++)
-					{
-						bob.write(d[i]);
-					}
-					pos += zlen;
-					if (pos < max)
-					{
-						continue;
-					}
-				}
-
-				if (odd)
-				{
-					//debug.log(0, x+"  segment: rle=0 + odd byte @ "+pos+" end");
-					bob.write(0x80 + (img.length - pos)/2);
-					bob.write(0x81);
-				}
-				else
-				{
-					//debug.log(0, x+"  segment: rle=0 "+(d.length-pos)+" @ "+pos+" end");
-					bob.write(0xff);
-					bob.write(((img.length - pos)/2) + 1);
-				}
-				for (int i=pos; i<img.length; i++)
-				{
-					bob.write(d[i]);
-				}
-				//debug.log(0, (x+1)+"  segment: eof");
-				bob.write(0);
-				bob.write(0);
-				break;
+				setImage(w, h, CCFIconEncoder.copy(enc.output(), len, 16), true, true);
+				return;
 			}
-			x++;
 		}
-
-		File tf = File.createTempFile("tonto-color", ".comp");
-		FileOutputStream fo = new FileOutputStream(tf);
-		fo.write(bob.toByteArray());
-		int rem = bob.size() % 16;
-		if (rem >  0)
-		{
-			bob.write(new byte[16-rem]);
-		}
-		fo.close();
-
-		} catch (Exception ex) { ex.printStackTrace(); System.exit(0); }
-
-		setImage(w, h, bob.toByteArray(), true, true);
+		setImage(w, h, CCFIconEncoder.copy(enc.pixels(count), count, 16), false, true);
 	}
 
-
 	// create custom 32 bit color from RGB source
 	private void createFullColor(int w, int h, int img[])
 	{
@@ -802,33 +872,45 @@ public class CCFIcon extends CCFNode
 	int[] load4Color(boolean compr)
 	{
 		int b[] = new int[width*height];
+		byte lv[] = CCFIconEncoder.get().pixels(b.length);
+		int n = load4Levels(compr, lv);
+		for (int i=0; i<n; i++)
+		{
+			b[i] = getGray(lv[i]);
+		}
+		return b;
+	}
+
+	// read gray levels from native image. returns the number of pixels
+	// read, which is short of the image when the data is.
+	private int load4Levels(boolean compr, byte lv[])
+	{
+		int len = width*height;
 		if (data == null || data.length == 0)
 		{
 //System.out.println("data is null or empty :: "+this);
-			return b;
+			return 0;
 		}
+		int pos = 0;
 		if (compr)
 		{
-			int pos = 0;
 			for (int i=0; i<data.length; i++)
 			{
 				int d = data[i];
 				if ((d & 0x80) > 0)
 				{
-					int color = (d & 0x3);
+					byte color = (byte)(d & 0x3);
 					int count = ((d >> 2) & 0x1f) + 4;
-					for (int j=0; j<count && pos<b.length; j++)
+					for (int j=0; j<count && pos<len; j++)
 					{
-						b[pos++] = getGray(color);
+						lv[pos++] = color;
 					}
 				}
 				else
 				{
-					if (pos < b.length-3)
+					for (int j=4; j>=0 && pos<len; j-=2)
 					{
-						b[pos++] = getGray(((d >> 4) & 0x3));
-						b[pos++] = getGray(((d >> 2) & 0x3));
-						b[pos++] = getGray(((d >> 0) & 0x3));
+						lv[pos++] = (byte)((d >> j) & 0x3);
 					}
 				}
 			}
@@ -836,72 +918,74 @@ public class CCFIcon extends CCFNode
 		else
 		{
 			int realWidth = (data.length*4)/height;
-			int padWidth = realWidth - width;
-			for (int i=0; i<b.length; i++)
+			for ( ; pos<len; pos++)
 			{
-				int col = i%width;
-				int pos = ((i/width)*realWidth+col)/4;
-				if (pos >= data.length)
+				int col = pos%width;
+				int at = ((pos/width)*realWidth+col)/4;
+				if (at >= data.length)
 				{
 					// TODO: bad ... this should never happen
 					break;
 				}
-				int val = (data[pos] >> ((3-(col%4))*2)) & 0x3;
-				b[i] = getGray(val);
+				lv[pos] = (byte)((data[at] >> ((3-(col%4))*2)) & 0x3);
 			}
 		}
-		return b;
+		return pos;
 	}
 
 	// get 256 (8-bit) color RGB image from native image
 	int[] load256Color(boolean comp)
 	{
-		if (comp)
+		int len = width*height;
+		// a compressed image decodes in whole blocks of 16
+		int b[] = new int[comp ? len + 16 - len % 16 : len];
+		byte ix[] = CCFIconEncoder.get().pixels(b.length);
+		int n = load256Indexes(comp, ix, b.length);
+		for (int i=0; i<n; i++)
 		{
-			return load256ColorCompressed();
+			b[i] = getRGB(ix[i]);
 		}
-		int b[] = new int[width*height];
+		return b;
+	}
+
+	// read color indexes from native image into up to max pixels.
+	// returns the number of pixels read.
+	private int load256Indexes(boolean comp, byte ix[], int max)
+	{
 		if (data == null || data.length == 0)
 		{
 //System.out.println("data is null or empty :: "+this);
-			return b;
+			return 0;
 		}
-		if (b.length != data.length)
+		if (comp)
 		{
-//System.out.println("array size mismatch "+b.length+" != "+data.length);
-			if (data.length < b.length)
-			{
-				new Exception("array too small "+b.length+" > "+data.length).printStackTrace();
-				return b;
-			}
+			return load256IndexesCompressed(ix, max);
 		}
-		for (int i=0; i<b.length; i++)
+		int len = width*height;
+		if (len != data.length)
 		{
-			b[i] = getRGB(data[i]&0xff);
+//System.out.println("array size mismatch "+len+" != "+data.length);
+			if (data.length < len)
+			{
+				new Exception("array too small "+len+" > "+data.length).printStackTrace();
+				return 0;
+			}
 		}
-		return b;
+		System.arraycopy(data, 0, ix, 0, len);
+		return len;
 	}
 
-	// get 256 (8-bit) color RGB image from compressed native image
-	int[] load256ColorCompressed()
+	// read color indexes from compressed native image
+	private int load256IndexesCompressed(byte b[], int max)
 	{
 		//debug.log(0, "get color compressed: "+width+"x"+height+" data="+data.length);
-		int len = width*height;
-		int lpad = len % 16;
-		int b[] = new int[len + 16-lpad];
 		int inpos = 0;
 		int outpos = 0;
 		int x = 0;
 
-		if (data == null || data.length == 0)
-		{
-//System.out.println("data is null or empty :: "+this);
-			return b;
-		}
-
 		try {
 
-		while (outpos < b.length)
+		while (outpos < max)
 		{
 			int b1 = data[inpos++] & 0xff;
 			int b2 = data[inpos++] & 0xff;
@@ -915,98 +999,87 @@ public class CCFIcon extends CCFNode
 			{
 				b2 = (b2 - 1)*2;
 				//debug.log(0, (x++)+"   segment: rle=0 "+b2);
-				for (int i=0; i<b2; i++)
-				{
-					b[outpos++] = getRGB(data[inpos++]);
-				}
+				outpos = copy(b, outpos, inpos, b2, max);
+				inpos += b2;
 			}
 			else
 			if (b1 > 0x7f && b2 == 0x81)
 			{
-				b1 = (b1-0x80)*2;
+				b1 = (b1-0x80)*2 + 1;
 				//debug.log(0, (x++)+"   segment: !rle len="+b1+" odd byte");
-				for (int i=0; i<b1; i++)
-				{
-					b[outpos++] = getRGB(data[inpos++]);
-				}
-				b[outpos++] = getRGB(data[inpos++]);
+				outpos = copy(b, outpos, inpos, b1, max);
+				inpos += b1;
 			}
 			else
 			if (b1 > 0x80 && b2 < 0x80)
 			{
 				b1 = (b1-0x80)*2;
-				for (int i=0; i<b1; i++)
-				{
-					b[outpos++] = getRGB(data[inpos++]);
-				}
-				if (b2 > 0)
-				{
-					int d1 = getRGB(data[inpos++]);
-					int d2 = getRGB(data[inpos++]);
-					for (int i=0; i<b2; i++)
-					{
-						b[outpos++] = d1;
-						b[outpos++] = d2;
-					}
-				}
+				outpos = copy(b, outpos, inpos, b1, max);
+				inpos += b1;
+				outpos = run(b, outpos, b2, inpos, max);
+				inpos += b2 > 0 ? 2 : 0;
 				//debug.log(0, (x++)+"   segment: rle=0 rle=1 "+b1+" "+(b2*2));
 			}
 			else
 			if (b1 < 0x80 && b2 > 0x80)
 			{
-				if (b1 > 0)
-				{
-					int d1 = getRGB(data[inpos++]);
-					int d2 = getRGB(data[inpos++]);
-					for (int i=0; i<b1; i++)
-					{
-						b[outpos++] = d1;
-						b[outpos++] = d2;
-					}
-				}
+				outpos = run(b, outpos, b1, inpos, max);
+				inpos += b1 > 0 ? 2 : 0;
 				b2 = (b2-0x80)*2;
-				for (int i=0; i<b2; i++)
-				{
-					b[outpos++] = getRGB(data[inpos++]);
-				}
+				outpos = copy(b, outpos, inpos, b2, max);
+				inpos += b2;
 				//debug.log(0, (x++)+"   segment: rle=1 rle=0 "+(b1*2)+" "+b2);
 			}
 			else
 			if (b1 < 0x80 && b2 < 0x80)
 			{
 				//debug.log(0, (x++)+"   segment: rle=1 rle=1 "+(b1*2)+" "+(b2*2));
-				if (b1 > 0)
-				{
-					int d1 = getRGB(data[inpos++]);
-					int d2 = getRGB(data[inpos++]);
-					for (int i=0; i<b1; i++)
-					{
-						b[outpos++] = d1;
-						b[outpos++] = d2;
-					}
-				}
-				if (b2 > 0)
-				{
-					int d1 = getRGB(data[inpos++]);
-					int d2 = getRGB(data[inpos++]);
-					for (int i=0; i<b2; i++)
-					{
-						b[outpos++] = d1;
-						b[outpos++] = d2;
-					}
-				}
+				outpos = run(b, outpos, b1, inpos, max);
+				inpos += b1 > 0 ? 2 : 0;
+				outpos = run(b, outpos, b2, inpos, max);
+				inpos += b2 > 0 ? 2 : 0;
 			}
 			else
 			{
-				new IllegalArgumentException("Unrecognized control: "+Integer.toHexString(b1)+" "+Integer.toHexString(b2)).printStackTrace();
-				System.exit(0);
+				throw new IllegalArgumentException("Unrecognized control: "+Integer.toHexString(b1)+" "+Integer.toHexString(b2));
 			}
 		}
 		//debug.log(0, "compressed in="+inpos+" out="+outpos);
 
 		} catch (RuntimeException ex) { ex.printStackTrace(); throw ex; }
 
-		return b;
+		return outpos;
+	}
+
+	// copy count pixels from data[in]. returns the new out.
+	private int copy(byte b[], int out, int in, int count, int max)
+	{
+		if (out + count > max)
+		{
+			throw new ArrayIndexOutOfBoundsException(out + count);
+		}
+		System.arraycopy(data, in, b, out, count);
+		return out + count;
+	}
+
+	// repeat the pixel pair at data[in] count times. returns the new out.
+	private int run(byte b[], int out, int count, int in, int max)
+	{
+		if (count > 0)
+		{
+			if (out + count*2 > max)
+			{
+				throw new ArrayIndexOutOfBoundsException(out + count*2);
+			}
+			byte d1 = data[in];
+			byte d2 = data[in+1];
+			for (int i=0; i<count; i++)
+			{
+				b[out++] = d1;
+				b[out++] = d2;
+			}
+		}
+		return out;
 	}
 
 	// get 32-bit color RGB image with alpha channel from source
@@ -1035,67 +1108,5 @@ public class CCFIcon extends CCFNode
 		return d;
 	}
 
-	// --( color compressor helper )-----------------------------------------
-
-	private class Segment
-	{
-		private boolean rle;
-		private int len;
-		private int spos;
-		private byte data[];
-
-		Segment(byte data[], int pos, int max)
-		{
-			if (pos >= max)
-			{
-				return;
-			}
-			this.data = data;
-			this.spos = pos;
-			int b1 = ((data[pos++]&0xff) << 8) | (data[pos++]&0xff);
-			int b2 = ((data[pos++]&0xff) << 8) | (data[pos++]&0xff);
-			//debug.log(0,"b1="+Integer.toHexString(b1)+" b2="+Integer.toHexString(b2)+" @ "+(pos - 4));
-			if (b1 == b2)
-			{
-				while (pos < max && b1 == b2 && (pos-spos < 256))
-				{
-					b2 = ((data[pos++]&0xff) << 8) | (data[pos++]&0xff);
-				}
-				rle = true;
-				len = pos - spos - 2;
-			}
-			else
-			{
-				int b3 = 0xffffff;
-				//while (pos < max && (b1 != b2 || b2 != b3) && (pos-spos < 256))
-				while (pos < max && b1 != b2 && (pos-spos < 256))
-				{
-					b1 = b2;
-					//b2 = b3;
-					b2 = ((data[pos++]&0xff) << 8) | (data[pos++]&0xff);
-				}
-				rle = false;
-				len = pos - spos - 4;
-			}
-		}
-
-		void write(OutputStream os)
-			throws IOException
-		{
-			if (rle)
-			{
-				os.write(data[spos]);
-				os.write(data[spos+1]);
-			}
-			else
-			{
-				for (int i=spos; i<spos+len; i++)
-				{
-					os.write(data[i]);
-				}
-			}
-		}
-	}
-
 }
 
@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2001-2002, Stewart Allen <stewart@neuron.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the Artistic License.
+ */
+
+package com.neuron.app.tonto;
+
+// ---( imports )---
+import java.util.*;
+
+/**
+ * Converts RGB images to 4 gray and 256 color icon data. Large images
+ * are cut into bands of rows that are converted on a shared pool of
+ * worker threads. Images can be dithered with a 4x4 ordered pattern or
+ * by error diffusion. Error diffusion carries from each row into the
+ * next, so a diffused image is converted on one thread and the output
+ * never depends on how it would be cut. Without dithering the output is
+ * the same as mapping each pixel on its own. convertAll() converts many
+ * icons at once, one icon per worker.
+ */
+final class CCFIconConverter
+{
+	// ---( static fields )---
+	private static Debug debug = Debug.getInstance("ccf");
+
+	// images smaller than this are converted on the calling thread
+	private final static int SPLIT_PIXELS = 64 * 1024;
+	private final static int BAND_ROWS    = 32;
+
+	private final static int BAYER[] = {
+		 0,  8,  2, 10,
+		12,  4, 14,  6,
+		 3, 11,  1,  9,
+		15,  7, 13,  5,
+	};
+
+	private final static int palette[] = new int[256];
+
+	// bands waiting for a worker, once per worker they can use
+	private final static Vector queue = new Vector();
+	private static Worker pool[];
+
+	static
+	{
+		java.awt.Color c[] = CCFColor.getColorModel(true);
+		for (int i=0; i<palette.length; i++)
+		{
+			palette[i] = c[i].getRGB();
+		}
+	}
+
+	// ---( static methods )---
+	/**
+	 * Map an image to 256 color indexes, one byte per pixel.
+	 *
+	 * @param d array to fill, at least w*h long
+	 */
+	static void to256(final int img[], final int w, int h, final int dither, final byte d[])
+	{
+		new Bands() {
+			void run(int y0, int y1) {
+				if (dither == CCFIcon.DITHER_DIFFUSE)
+				{
+					diffuse256(img, w, y0, y1, d);
+					return;
+				}
+				for (int y=y0; y<y1; y++)
+				{
+					for (int x=0, i=y*w; x<w; x++, i++)
+					{
+						int v = img[i];
+						if (dither == CCFIcon.DITHER_ORDERED)
+						{
+							int o = (BAYER[((y & 3) << 2) | (x & 3)] * 51) / 16 - 25;
+							v = rgb(((v >> 16) & 0xff) + o, ((v >> 8) & 0xff) + o, (v & 0xff) + o);
+						}
+						d[i] = (byte)CCFColor.getColorFromRGB(v);
+					}
+				}
+			}
+		}.runAll(w, h, dither != CCFIcon.DITHER_DIFFUSE);
+	}
+
+	/**
+	 * Map an image to 4 gray levels packed 4 pixels per byte with each
+	 * row padded to an even number of bytes.
+	 */
+	static byte[] to4(final int img[], final int w, int h, final int dither)
+	{
+		int lineWidth = (w / 4) + (w % 4 > 0 ? 1 : 0);
+		lineWidth += lineWidth % 2;
+		final int line = lineWidth;
+		final byte d[] = new byte[lineWidth * h];
+		new Bands() {
+			void run(int y0, int y1) {
+				int level[] = new int[w];
+				int err[][] = dither == CCFIcon.DITHER_DIFFUSE ? new int[2][w+2] : null;
+				for (int y=y0; y<y1; y++)
+				{
+					gray(img, w, y, dither, err, level);
+					int pos = y * line;
+					for (int x=0; x<w; x++)
+					{
+						d[pos + x/4] |= (level[x] << ((3-(x%4))*2));
+					}
+				}
+			}
+		}.runAll(w, h, dither != CCFIcon.DITHER_DIFFUSE);
+		return d;
+	}
+
+	/**
+	 * Return a copy of an image with every pixel replaced by the gray
+	 * it is dithered to, for converters that read RGB.
+	 */
+	static int[] ditherGray(final int img[], final int w, int h, final int dither)
+	{
+		final int out[] = new int[img.length];
+		new Bands() {
+			void run(int y0, int y1) {
+				int level[] = new int[w];
+				int err[][] = dither == CCFIcon.DITHER_DIFFUSE ? new int[2][w+2] : null;
+				for (int y=y0; y<y1; y++)
+				{
+					gray(img, w, y, dither, err, level);
+					for (int x=0, i=y*w; x<w; x++, i++)
+					{
+						int g = level[x] * 85;
+						out[i] = 0xff000000 | (g << 16) | (g << 8) | g;
+					}
+				}
+			}
+		}.runAll(w, h, dither != CCFIcon.DITHER_DIFFUSE);
+		return out;
+	}
+
+	/**
+	 * Convert icons to color or gray. Each icon is converted on one
+	 * worker and progress is reported as icons finish.
+	 *
+	 * @param status progress, may be null
+	 */
+	static void convertAll(final CCFIcon icons[], final boolean color, final int dither,
+		final ITaskStatus status)
+	{
+		final int done[] = new int[1];
+		new Bands() {
+			void run(int i0, int i1) {
+				for (int i=i0; i<i1; i++)
+				{
+					if (color)
+					{
+						icons[i].convertToColor(dither);
+					}
+					else
+					{
+						icons[i].convertToGray(dither);
+					}
+					if (status != null)
+					{
+						synchronized (done)
+						{
+							done[0]++;
+							status.taskStatus(done[0] * 100 / icons.length,
+								"converted "+done[0]+" of "+icons.length+" icons");
+						}
+					}
+				}
+			}
+		}.runItems(icons.length);
+	}
+
+	// gray levels of row y. err carries the diffused error between rows.
+	private static void gray(int img[], int w, int y, int dither, int err[][], int level[])
+	{
+		int cur[] = err != null ? err[y & 1] : null;
+		int next[] = err != null ? err[(y + 1) & 1] : null;
+		if (next != null)
+		{
+			Arrays.fill(next, 0);
+		}
+		for (int x=0, i=y*w; x<w; x++, i++)
+		{
+			int v = img[i];
+			int g = (((v >> 16) & 0xff)*30 + ((v >> 8) & 0xff)*59 + (v & 0xff)*11) / 100;
+			if (dither == CCFIcon.DITHER_ORDERED)
+			{
+				g += (BAYER[((y & 3) << 2) | (x & 3)] * 64) / 16 - 30;
+			}
+			else
+			if (cur != null)
+			{
+				g += (cur[x+1] + 8) >> 4;
+			}
+			int l = clamp(g) / 64;
+			level[x] = l;
+			if (cur != null)
+			{
+				int e = g - l * 85;
+				cur[x+2] += e * 7;
+				next[x] += e * 3;
+				next[x+1] += e * 5;
+				next[x+2] += e;
+			}
+		}
+	}
+
+	// floyd-steinberg over rows y0 to y1
+	private static void diffuse256(int img[], int w, int y0, int y1, byte d[])
+	{
+		int cur[][] = new int[3][w+2];
+		int next[][] = new int[3][w+2];
+		int c[] = new int[3];
+		for (int y=y0; y<y1; y++)
+		{
+			for (int x=0, i=y*w; x<w; x++, i++)
+			{
+				int v = img[i];
+				for (int k=0; k<3; k++)
+				{
+					c[k] = ((v >> (16 - k*8)) & 0xff) + ((cur[k][x+1] + 8) >> 4);
+				}
+				int idx = CCFColor.getColorFromRGB(rgb(c[0], c[1], c[2]));
+				d[i] = (byte)idx;
+				int p = palette[idx];
+				for (int k=0; k<3; k++)
+				{
+					int e = c[k] - ((p >> (16 - k*8)) & 0xff);
+					cur[k][x+2] += e * 7;
+					next[k][x] += e * 3;
+					next[k][x+1] += e * 5;
+					next[k][x+2] += e;
+				}
+			}
+			int t[][] = cur;
+			cur = next;
+			next = t;
+			for (int k=0; k<3; k++)
+			{
+				Arrays.fill(next[k], 0);
+			}
+		}
+	}
+
+	private static int rgb(int r, int g, int b)
+	{
+		return (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+	}
+
+	private static int clamp(int v)
+	{
+		return v < 0 ? 0 : v > 255 ? 255 : v;
+	}
+
+	// start the shared workers the first time bands are split
+	private static synchronized void startPool()
+	{
+		if (pool != null)
+		{
+			return;
+		}
+		pool = new Worker[Math.max(Runtime.getRuntime().availableProcessors() - 1, 0)];
+		for (int i=0; i<pool.length; i++)
+		{
+			pool[i] = new Worker(i);
+			pool[i].setDaemon(true);
+			pool[i].start();
+		}
+	}
+
+	// ---( inner classes )---
+	/**
+	 * Runs work over ranges of rows or items on the calling thread and
+	 * the pool workers. Work started from a worker runs on that worker.
+	 */
+	private abstract static class Bands
+	{
+		private int next;
+		private int count;
+		private int step;
+		private int active;
+		private Throwable error;
+
+		abstract void run(int from, int to);
+
+		// rows of an image, split only when it is large and rows
+		// do not depend on the ones above
+		void runAll(int w, int h, boolean split)
+		{
+			if (!split || w * h < SPLIT_PIXELS)
+			{
+				run(0, h);
+				return;
+			}
+			start(h, BAND_ROWS);
+		}
+
+		// items one at a time
+		void runItems(int count)
+		{
+			start(count, 1);
+		}
+
+		private void start(int count, int step)
+		{
+			this.count = count;
+			this.step = step;
+			int workers = Math.min((count + step - 1) / step,
+				Runtime.getRuntime().availableProcessors());
+			if (workers <= 1 || Thread.currentThread() instanceof Worker)
+			{
+				run(0, count);
+				return;
+			}
+			startPool();
+			synchronized (queue)
+			{
+				for (int i=1; i<workers; i++)
+				{
+					queue.addElement(this);
+				}
+				queue.notifyAll();
+			}
+			work();
+			// the workers write into the caller's arrays, so they are
+			// all waited for even when interrupted
+			boolean interrupted = false;
+			synchronized (queue)
+			{
+				// nothing is left to claim for workers not yet started
+				while (queue.removeElement(this))
+					;
+				while (active > 0)
+				{
+					try
+					{
+						queue.wait();
+					}
+					catch (InterruptedException ex)
+					{
+						interrupted = true;
+					}
+				}
+			}
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+			if (error instanceof RuntimeException)
+			{
+				throw (RuntimeException)error;
+			}
+			if (error instanceof Error)
+			{
+				throw (Error)error;
+			}
+		}
+		private void work()
+		{
+			try
+			{
+				int from;
+				while ((from = claim()) >= 0)
+				{
+					run(from, Math.min(from + step, count));
+				}
+			}
+			catch (Throwable ex)
+			{
+				debug.log(0, "icon conversion failed: "+ex);
+				synchronized (this)
+				{
+					if (error == null)
+					{
+						error = ex;
+					}
+					next = count;
+				}
+			}
+		}
+
+		private synchronized int claim()
+		{
+			if (next >= count)
+			{
+				return -1;
+			}
+			int from = next;
+			next += step;
+			return from;
+		}
+	}
+
+	private static class Worker extends Thread
+	{
+		Worker(int num)
+		{
+			super("icon convert "+num);
+		}
+
+		public void run()
+		{
+			while (true)
+			{
+				Bands bands;
+				synchronized (queue)
+				{
+					while (queue.size() == 0)
+					{
+						try
+						{
+							queue.wait();
+						}
+						catch (InterruptedException ex)
+						{
+							// the pool lives as long as the vm
+						}
+					}
+					bands = (Bands)queue.remove(0);
+					bands.active++;
+				}
+				bands.work();
+				synchronized (queue)
+				{
+					bands.active--;
+					queue.notifyAll();
+				}
+			}
+		}
+	}
+}
+
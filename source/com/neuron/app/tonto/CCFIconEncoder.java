@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2001-2002, Stewart Allen <stewart@neuron.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the Artistic License.
+ */
+
+package com.neuron.app.tonto;
+
+/**
+ * Run length encoder for compressed 4 gray and 256 color icons. Pixels
+ * are put in the buffer returned by pixels() and encoded in one pass
+ * into an output buffer. Both buffers are kept by the encoder and only
+ * grow, so encoding allocates nothing but the copy kept by the icon.
+ * Each thread has its own encoder.
+ * <p>
+ * 4 gray data is a byte per token. A byte with the high bit set is a
+ * run of 4 to 35 pixels of one gray. Any other byte holds 3 pixels.
+ * <p>
+ * 256 color data works on pairs of pixels. Each control pair of bytes
+ * describes two tokens whose data follows in order. A byte below 0x80
+ * is a run of that many copies of the next pixel pair. A byte above
+ * 0x80 is that many pairs less 0x80 copied as they are. 0x80 0x81
+ * ends the image with a single odd pixel and 0 0 ends the data.
+ */
+final class CCFIconEncoder
+{
+	// ---( static fields )---
+	private final static int GRAY_RUN  = 35;
+	private final static int PAIR_RUN  = 0x7f;
+	// 0xff followed by a run means something else, so stop short of it
+	private final static int PAIR_COPY = 0x7e;
+
+	private static ThreadLocal local = new ThreadLocal();
+
+	// ---( static methods )---
+	static CCFIconEncoder get()
+	{
+		CCFIconEncoder e = (CCFIconEncoder)local.get();
+		if (e == null)
+		{
+			e = new CCFIconEncoder();
+			local.set(e);
+		}
+		return e;
+	}
+
+	/**
+	 * Returns the first len bytes of src padded with zeros to a
+	 * multiple of pad.
+	 */
+	static byte[] copy(byte src[], int len, int pad)
+	{
+		byte d[] = new byte[padded(len, pad)];
+		System.arraycopy(src, 0, d, 0, len);
+		return d;
+	}
+
+	static int padded(int len, int pad)
+	{
+		int rem = len % pad;
+		return rem > 0 ? len + pad - rem : len;
+	}
+
+	/**
+	 * Returns the bytes in a row of raw 4 gray data, 4 pixels to a byte
+	 * padded to an even number of bytes.
+	 */
+	static int rowBytes4(int w)
+	{
+		int line = (w / 4) + (w % 4 > 0 ? 1 : 0);
+		return line + line % 2;
+	}
+
+	// ---( constructors )---
+	private CCFIconEncoder()
+	{
+	}
+
+	// ---( instance fields )---
+	private byte pix[] = new byte[0];
+	private byte out[] = new byte[0];
+	private int len;
+	private int ctl;
+	private boolean ctlCopy;
+
+	// ---( instance methods )---
+	/**
+	 * Returns the buffer to put gray levels or color indexes in, one
+	 * byte per pixel.
+	 */
+	byte[] pixels(int count)
+	{
+		if (pix.length < count)
+		{
+			pix = new byte[count];
+		}
+		return pix;
+	}
+
+	/**
+	 * Returns the output of the last encode.
+	 */
+	byte[] output()
+	{
+		return out;
+	}
+
+	/**
+	 * Returns w*h gray levels from pixels() as raw 4 gray data.
+	 */
+	byte[] pack4(int w, int h)
+	{
+		int line = rowBytes4(w);
+		byte d[] = new byte[line * h];
+		for (int y=0, i=0; y<h; y++)
+		{
+			int pos = y * line;
+			for (int x=0; x<w; x++, i++)
+			{
+				d[pos + x/4] |= pix[i] << ((3-(x%4))*2);
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * Encode count gray levels from pixels(). Returns the length of the
+	 * output, padded to an even number of bytes.
+	 */
+	int encode4(int count)
+	{
+		ensure(count / 3 + 4);
+		len = 0;
+		for (int i=0; i<count; )
+		{
+			int v = pix[i];
+			int r = 1;
+			while (i+r < count && r < GRAY_RUN && pix[i+r] == v)
+			{
+				r++;
+			}
+			if (r >= 4)
+			{
+				out[len++] = (byte)(0x80 | ((r - 4) << 2) | v);
+				i += r;
+				continue;
+			}
+			int b = 0;
+			for (int j=0; j<3 && i<count; j++, i++)
+			{
+				b |= pix[i] << ((2-j)*2);
+			}
+			out[len++] = (byte)b;
+		}
+		if (len % 2 == 1)
+		{
+			out[len++] = 0;
+		}
+		return len;
+	}
+
+	/**
+	 * Encode count color indexes from pixels(). Returns the length of
+	 * the output up to and including the end marker.
+	 */
+	int encode256(int count)
+	{
+		int pairs = count / 2;
+		ensure(count * 2 + 16);
+		len = 0;
+		ctl = -1;
+		int start = 0;
+		for (int p=0; p<pairs; )
+		{
+			int v = pair(p);
+			int r = 1;
+			while (p+r < pairs && r < PAIR_RUN && pair(p+r) == v)
+			{
+				r++;
+			}
+			// a run inside copied pairs also costs a control byte
+			if (r >= (p > start ? 3 : 2))
+			{
+				copies(start, p);
+				token(false, r, p);
+				start = p + r;
+			}
+			p += r;
+		}
+		copies(start, pairs);
+		if (count % 2 == 1)
+		{
+			if (ctl >= 0 && ctlCopy)
+			{
+				out[ctl+1] = (byte)0x81;
+			}
+			else
+			{
+				close();
+				out[len++] = (byte)0x80;
+				out[len++] = (byte)0x81;
+			}
+			out[len++] = pix[count-1];
+			ctl = -1;
+		}
+		close();
+		out[len++] = 0;
+		out[len++] = 0;
+		return len;
+	}
+
+	private int pair(int p)
+	{
+		return ((pix[p*2] & 0xff) << 8) | (pix[p*2+1] & 0xff);
+	}
+
+	// pairs from up to to as copy tokens
+	private void copies(int from, int to)
+	{
+		while (from < to)
+		{
+			int n = Math.min(to - from, PAIR_COPY);
+			token(true, n, from);
+			from += n;
+		}
+	}
+
+	// fill the open half of a control pair or start a new one. two
+	// copies cannot share a control pair.
+	private void token(boolean copy, int n, int p)
+	{
+		if (ctl >= 0 && !(copy && ctlCopy))
+		{
+			out[ctl+1] = (byte)(copy ? 0x80 + n : n);
+			ctl = -1;
+		}
+		else
+		{
+			close();
+			ctl = len;
+			ctlCopy = copy;
+			out[len++] = (byte)(copy ? 0x80 + n : n);
+			out[len++] = 0;
+		}
+		System.arraycopy(pix, p*2, out, len, copy ? n*2 : 2);
+		len += copy ? n*2 : 2;
+	}
+
+	// an open half is left as a zero length run
+	private void close()
+	{
+		ctl = -1;
+	}
+
+	private void ensure(int size)
+	{
+		if (out.length < size)
+		{
+			out = new byte[size];
+		}
+	}
+}
+
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2001-2002, Stewart Allen <stewart@neuron.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the Artistic License.
+ */
+
+package com.neuron.app.tonto;
+
+// ---( imports )---
+import java.lang.ref.*;
+import java.util.*;
+
+/**
+ * Images made from icons, shared by all open CCFs and kept within a
+ * memory budget. Entries are found by icon, the kind of image and the
+ * size it was drawn at. Each entry is charged the bytes of its pixels
+ * and the least recently used entries are dropped when the total goes
+ * over the budget. Icons drop their entries when their data changes.
+ * <p>
+ * Images and swing icons keep the decoded pixels they were made from
+ * reachable. Using an entry also marks the entries it was made from as
+ * used, and dropping one for room also drops the entries made from it,
+ * so the budget only counts memory that is released when it is dropped.
+ * <p>
+ * In soft mode images are held by soft references so the collector can
+ * take them back when the heap runs low. Icons rebuild them from their
+ * data the next time they are asked for.
+ */
+final class CCFImageCache
+{
+	// ---( static fields )---
+	/** decoded RGB pixels and the producer reading them */
+	final static int DECODED = 0;
+	/** AWT image */
+	final static int IMAGE   = 1;
+	/** swing icon */
+	final static int ICON    = 2;
+
+	private static Debug debug = Debug.getInstance("ccf");
+
+	private static int limit = 16 * 1024 * 1024;
+	private static long used;
+	private static long hits;
+	private static long misses;
+	private static long evictions;
+	private static long collected;
+	private static boolean soft;
+	private static ReferenceQueue queue = new ReferenceQueue();
+
+	private static Hashtable icons = new Hashtable();	// key=icon val=first Entry
+	private static Entry lru = new Entry(null, 0, 0, 0, 0);
+
+	static
+	{
+		lru.prev = lru;
+		lru.next = lru;
+	}
+
+	// ---( static methods )---
+	/**
+	 * Returns the cached image or null.
+	 */
+	static synchronized Object get(CCFIcon icon, int kind, int w, int h)
+	{
+		expunge();
+		Entry e = find(icon, kind, w, h);
+		Object v = e != null ? e.get() : null;
+		if (v == null)
+		{
+			if (e != null)
+			{
+				drop(e);
+				collected++;
+			}
+			misses++;
+			return null;
+		}
+		hits++;
+		unlink(e);
+		link(e);
+		touchSources(e);
+		return v;
+	}
+
+	/**
+	 * Cache an image, replacing one for the same icon, kind and size.
+	 *
+	 * @param bytes memory held by the image
+	 */
+	static synchronized void put(CCFIcon icon, int kind, int w, int h, Object value, int bytes)
+	{
+		expunge();
+		Entry e = find(icon, kind, w, h);
+		if (e != null)
+		{
+			drop(e);
+		}
+		e = new Entry(icon, kind, w, h, bytes);
+		e.set(value, soft);
+		e.same = (Entry)icons.get(icon);
+		icons.put(icon, e);
+		link(e);
+		touchSources(e);
+		used += bytes;
+		trim(e);
+	}
+
+	/**
+	 * Drop every image made from this icon.
+	 */
+	static synchronized void remove(CCFIcon icon)
+	{
+		Entry e = (Entry)icons.remove(icon);
+		for ( ; e != null; e = e.same)
+		{
+			unlink(e);
+			used -= e.bytes;
+		}
+	}
+
+	/**
+	 * Drop every image.
+	 */
+	static synchronized void clear()
+	{
+		while (lru.next != lru)
+		{
+			unlink(lru.next);
+		}
+		icons.clear();
+		used = 0;
+	}
+
+	/**
+	 * Hold images by soft references that the collector may clear
+	 * when memory runs low.
+	 */
+	static synchronized void setSoft(boolean soft)
+	{
+		CCFImageCache.soft = soft;
+		for (Entry e = lru.next, n; e != lru; e = n)
+		{
+			n = e.next;
+			Object v = e.get();
+			if (v == null)
+			{
+				drop(e);
+				collected++;
+			}
+			else
+			{
+				e.set(v, soft);
+			}
+		}
+	}
+
+	static synchronized boolean isSoft()
+	{
+		return soft;
+	}
+
+	/**
+	 * Set the most memory in bytes cached images may hold.
+	 */
+	static synchronized void setLimit(int bytes)
+	{
+		limit = Math.max(bytes, 0);
+		trim(null);
+		debug.log(3, "image cache "+report());
+	}
+
+	static synchronized int getLimit()
+	{
+		return limit;
+	}
+
+	/**
+	 * Returns the memory in bytes held by cached images.
+	 */
+	static synchronized long getUsed()
+	{
+		expunge();
+		return used;
+	}
+
+	static synchronized long getHits()
+	{
+		return hits;
+	}
+
+	static synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	static synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	/**
+	 * Returns the number of soft images the collector cleared.
+	 */
+	static synchronized long getCollected()
+	{
+		return collected;
+	}
+
+	static synchronized String report()
+	{
+		expunge();
+		return (used / 1024)+"K of "+(limit / 1024)+"K, "+
+			hits+" hits, "+misses+" misses, "+evictions+" evicted"+
+			(soft ? ", "+collected+" collected" : "");
+	}
+
+	// drop entries whose soft image was cleared
+	private static void expunge()
+	{
+		Ref r;
+		while ((r = (Ref)queue.poll()) != null)
+		{
+			if (r.entry.value == r && r.entry.next != null)
+			{
+				drop(r.entry);
+				collected++;
+			}
+		}
+	}
+
+	private static Entry find(CCFIcon icon, int kind, int w, int h)
+	{
+		for (Entry e = (Entry)icons.get(icon); e != null; e = e.same)
+		{
+			if (e.kind == kind && e.width == w && e.height == h)
+			{
+				return e;
+			}
+		}
+		return null;
+	}
+
+	// the entries an image was made from are kinds below it. moving
+	// them in front of it keeps them from being dropped first.
+	private static void touchSources(Entry e)
+	{
+		for (Entry s = (Entry)icons.get(e.icon); s != null; s = s.same)
+		{
+			if (s.kind < e.kind)
+			{
+				unlink(s);
+				link(s);
+			}
+		}
+	}
+
+	// drop the oldest entries until the cache is within its limit
+	private static void trim(Entry keep)
+	{
+		while (used > limit && lru.prev != lru && lru.prev != keep)
+		{
+			evict(lru.prev);
+		}
+	}
+
+	// drop an entry and the entries made from it, which would keep
+	// its pixels reachable
+	private static void evict(Entry e)
+	{
+		for (Entry s = (Entry)icons.get(e.icon), n; s != null; s = n)
+		{
+			n = s.same;
+			if (s.kind > e.kind)
+			{
+				drop(s);
+				evictions++;
+			}
+		}
+		drop(e);
+		evictions++;
+	}
+
+	// remove an entry from the list and its icon
+	private static void drop(Entry e)
+	{
+		unlink(e);
+		used -= e.bytes;
+		Entry first = (Entry)icons.get(e.icon);
+		if (first == e)
+		{
+			if (e.same != null)
+			{
+				icons.put(e.icon, e.same);
+			}
+			else
+			{
+				icons.remove(e.icon);
+			}
+			return;
+		}
+		for (Entry p = first; p != null; p = p.same)
+		{
+			if (p.same == e)
+			{
+				p.same = e.same;
+				return;
+			}
+		}
+	}
+
+	// the newest entry is after lru and the oldest before it
+	private static void link(Entry e)
+	{
+		e.prev = lru;
+		e.next = lru.next;
+		lru.next.prev = e;
+		lru.next = e;
+	}
+
+	private static void unlink(Entry e)
+	{
+		e.prev.next = e.next;
+		e.next.prev = e.prev;
+		e.prev = null;
+		e.next = null;
+	}
+
+	// ---( inner classes )---
+	private static class Entry
+	{
+		private CCFIcon icon;
+		private int kind;
+		private int width;
+		private int height;
+		private Object value;		// image or the Ref holding it
+		private int bytes;
+		private Entry same;		// next for the same icon
+		private Entry prev;
+		private Entry next;
+
+		Entry(CCFIcon icon, int kind, int w, int h, int bytes)
+		{
+			this.icon = icon;
+			this.kind = kind;
+			this.width = w;
+			this.height = h;
+			this.bytes = bytes;
+		}
+
+		Object get()
+		{
+			return value instanceof Ref ? ((Ref)value).get() : value;
+		}
+
+		void set(Object v, boolean soft)
+		{
+			value = soft ? new Ref(v, this) : v;
+		}
+	}
+
+	private static class Ref extends SoftReference
+	{
+		private Entry entry;
+
+		Ref(Object value, Entry entry)
+		{
+			super(value, queue);
+			this.entry = entry;
+		}
+	}
+}
+
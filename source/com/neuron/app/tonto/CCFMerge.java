@@ -0,0 +1,543 @@
+/*
+ * Copyright (c) 2001-2002, Stewart Allen <stewart@neuron.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the Artistic License.
+ */
+
+package com.neuron.app.tonto;
+
+// ---( imports )---
+import java.util.*;
+
+/**
+ * Merges the devices of one CCF into another and reports what was
+ * added, shared and renamed. Devices, panels, icons and IR codes are
+ * fingerprinted by content. A merged device identical to one already
+ * present is not copied and actions that target it are pointed at the
+ * existing one. A device whose name is taken by a different device is
+ * renamed. Home devices with the same name are combined panel by panel
+ * the same way. Icons and IR codes equal to ones already present are
+ * shared. Each device is read once, so merging is linear in the size
+ * of both CCFs.
+ */
+public final class CCFMerge
+{
+	// ---( static fields )---
+	private final static String NULL = "<null>";
+	private final static String END  = "<end>";
+
+	// ---( constructors )---
+	CCFMerge(CCF into)
+	{
+		this.head = into.header();
+	}
+
+	// ---( instance fields )---
+	private CCFHeader head;
+	private Hashtable content = new Hashtable();	// key=CCFContent val=icon or ir code kept
+	private Hashtable devices = new Hashtable();	// key=Print val=same Print
+	private Hashtable names = new Hashtable();		// key=device name val=device
+	private Hashtable homes = new Hashtable();		// key=home device name val=device
+	private Hashtable panels = new Hashtable();	// key=home device val=Hashtable of Prints
+	private Hashtable panelNames = new Hashtable();	// key=home device val=Hashtable of names
+	private Hashtable map = new Hashtable();		// key=merged node val=existing node
+	private Hashtable done = new Hashtable();		// key=merged icon or ir code val=kept one
+	private Vector keep = new Vector();			// Prints of merged nodes kept
+	private CCFDevice tail[] = new CCFDevice[3];
+	private boolean scan;
+
+	private Vector added = new Vector();
+	private Vector shared = new Vector();
+	private Vector renamed = new Vector();
+	private int icons;
+	private int codes;
+
+	// ---( public API )---
+	/**
+	 * Return the devices and panels that were added.
+	 */
+	public String[] getAdded()
+	{
+		return strings(added);
+	}
+
+	/**
+	 * Return the devices and panels that were already present
+	 * and were shared instead of copied.
+	 */
+	public String[] getShared()
+	{
+		return strings(shared);
+	}
+
+	/**
+	 * Return the devices and panels that were renamed to avoid
+	 * a name conflict as "old -> new".
+	 */
+	public String[] getRenamed()
+	{
+		return strings(renamed);
+	}
+
+	/**
+	 * Return the number of merged icons replaced by an equal icon.
+	 */
+	public int getSharedIcons()
+	{
+		return icons;
+	}
+
+	/**
+	 * Return the number of merged IR codes replaced by an equal code.
+	 */
+	public int getSharedIRCodes()
+	{
+		return codes;
+	}
+
+	public String toString()
+	{
+		return
+			added.size()+" added, "+shared.size()+" shared, "+
+			renamed.size()+" renamed, "+icons+" icons and "+
+			codes+" ir codes shared";
+	}
+
+	// ---( package methods )---
+	/**
+	 * Move the devices of another CCF into this one. The other CCF
+	 * must already be converted to the color and UDB settings of
+	 * this one.
+	 */
+	void merge(CCF from)
+	{
+		CCFHeader src = from.header();
+		scan = true;
+		CCFDevice root[] = { head.firstHome, head.firstDevice, head.firstMacro };
+		for (int i=0; i<root.length; i++)
+		{
+			for (CCFDevice d = root[i]; d != null; d = d.getNextDevice())
+			{
+				Print p = new Print(d);
+				if (devices.get(p) == null)
+				{
+					devices.put(p, p);
+				}
+				name(names, d.getName(), d);
+				if (i == 0)
+				{
+					name(homes, d.getName(), d);
+				}
+				tail[i] = d;
+			}
+		}
+		for (CCFPanel p = head.macroPanel; p != null; p = p.getNextPanel())
+		{
+			new Print(p);
+		}
+		scan = false;
+		CCFDevice add[] = { src.firstHome, src.firstDevice, src.firstMacro };
+		for (int i=0; i<add.length; i++)
+		{
+			CCFDevice next = null;
+			for (CCFDevice d = add[i]; d != null; d = next)
+			{
+				next = d.getNextDevice();
+				d.next = null;
+				CCFDevice home = i == 0 ? (CCFDevice)homes.get(key(d.getName())) : null;
+				if (home != null)
+				{
+					merge(d, home);
+				}
+				else
+				{
+					add(d, i);
+				}
+			}
+		}
+		for (int i=0; i<keep.size(); i++)
+		{
+			remap((Print)keep.get(i));
+		}
+		head.treeChanged();
+	}
+
+	// ---( utility methods )---
+	// add a device or share the identical one already present
+	private void add(CCFDevice d, int list)
+	{
+		Print p = new Print(d);
+		Print have = (Print)devices.get(p);
+		if (have != null)
+		{
+			pair(p, have);
+			shared.addElement(d.getName());
+			return;
+		}
+		String name = unique(names, d.getName());
+		if (name != d.getName())
+		{
+			renamed.addElement(d.getName()+" -> "+name);
+			d.name = name;
+		}
+		else
+		{
+			added.addElement(name);
+		}
+		if (tail[list] == null)
+		{
+			switch (list)
+			{
+				case 0: head.firstHome = d; break;
+				case 1: head.firstDevice = d; break;
+				case 2: head.firstMacro = d; break;
+			}
+		}
+		else
+		{
+			tail[list].next = d;
+		}
+		tail[list] = d;
+		d.setParent(head);
+		devices.put(p, p);
+		name(names, name, d);
+		if (list == 0)
+		{
+			name(homes, name, d);
+		}
+		keep.addElement(p);
+	}
+
+	// add the panels of a home device to the one with its name
+	private void merge(CCFDevice d, CCFDevice home)
+	{
+		map.put(d, home);
+		Hashtable have = (Hashtable)panels.get(home);
+		Hashtable taken = (Hashtable)panelNames.get(home);
+		if (have == null)
+		{
+			have = new Hashtable();
+			taken = new Hashtable();
+			panels.put(home, have);
+			panelNames.put(home, taken);
+			for (CCFPanel p = home.getFirstPanel(); p != null; p = p.getNextPanel())
+			{
+				Print pr = new Print(p);
+				if (have.get(pr) == null)
+				{
+					have.put(pr, pr);
+				}
+				name(taken, p.getName(), p);
+			}
+		}
+		CCFPanel last = home.getFirstPanel();
+		while (last != null && last.next != null)
+		{
+			last = last.next;
+		}
+		CCFPanel next = null;
+		for (CCFPanel p = d.getFirstPanel(); p != null; p = next)
+		{
+			next = p.getNextPanel();
+			p.next = null;
+			Print pr = new Print(p);
+			Print same = (Print)have.get(pr);
+			if (same != null)
+			{
+				pair(pr, same);
+				shared.addElement(p.getFQN());
+				continue;
+			}
+			String name = unique(taken, p.getName());
+			String was = p.getFQN();
+			p.name = name;
+			p.buildTree(home);
+			if (last == null)
+			{
+				home.firstPanel = p;
+			}
+			else
+			{
+				last.next = p;
+			}
+			last = p;
+			if (name != pr.name)
+			{
+				renamed.addElement(was+" -> "+p.getFQN());
+			}
+			else
+			{
+				added.addElement(p.getFQN());
+			}
+			have.put(pr, pr);
+			name(taken, name, p);
+			keep.addElement(pr);
+		}
+	}
+
+	// map each node of a merged copy to the node it duplicates
+	private void pair(Print from, Print to)
+	{
+		for (int i=0; i<from.nodes.size(); i++)
+		{
+			map.put(from.nodes.get(i), to.nodes.get(i));
+		}
+	}
+
+	// point a kept node's actions and icons at the nodes kept
+	private void remap(Print p)
+	{
+		for (int i=0; i<p.nodes.size(); i++)
+		{
+			CCFNode n = (CCFNode)p.nodes.get(i);
+			if (n instanceof CCFAction)
+			{
+				CCFAction a = (CCFAction)n;
+				a.action1 = target(a.action1);
+				a.action2 = target(a.action2);
+			}
+			else
+			if (n instanceof CCFButton)
+			{
+				CCFButton b = (CCFButton)n;
+				b.iconIU = (CCFIcon)share(b.iconIU);
+				b.iconIS = (CCFIcon)share(b.iconIS);
+				b.iconAU = (CCFIcon)share(b.iconAU);
+				b.iconAS = (CCFIcon)share(b.iconAS);
+			}
+			else
+			if (n instanceof CCFFrame)
+			{
+				CCFFrame f = (CCFFrame)n;
+				f.icon = (CCFIcon)share(f.icon);
+			}
+			else
+			if (n instanceof CCFDevice)
+			{
+				CCFDevice d = (CCFDevice)n;
+				d.iconUnselected = (CCFIcon)share(d.iconUnselected);
+				d.iconSelected = (CCFIcon)share(d.iconSelected);
+			}
+		}
+	}
+
+	private CCFNode target(CCFNode n)
+	{
+		if (n instanceof CCFIRCode)
+		{
+			return share(n);
+		}
+		CCFNode to = n != null ? (CCFNode)map.get(n) : null;
+		return to != null ? to : n;
+	}
+
+	// an equal icon or ir code if there is one
+	private CCFNode share(CCFNode n)
+	{
+		if (n == null)
+		{
+			return null;
+		}
+		CCFNode to = (CCFNode)done.get(n);
+		if (to != null)
+		{
+			return to;
+		}
+		CCFContent key = new CCFContent(n);
+		to = (CCFNode)content.get(key);
+		if (to == null)
+		{
+			content.put(key, n);
+			to = n;
+		}
+		else
+		if (n instanceof CCFIcon)
+		{
+			icons++;
+		}
+		else
+		{
+			codes++;
+		}
+		done.put(n, to);
+		return to;
+	}
+
+	// name with a number added if it is taken
+	private static String unique(Hashtable taken, String name)
+	{
+		if (name == null || taken.get(name) == null)
+		{
+			return name;
+		}
+		for (int i=2; ; i++)
+		{
+			String s = name+" ("+i+")";
+			if (taken.get(s) == null)
+			{
+				return s;
+			}
+		}
+	}
+
+	private static void name(Hashtable t, String name, Object node)
+	{
+		if (name != null && t.get(name) == null)
+		{
+			t.put(name, node);
+		}
+	}
+
+	private static String key(String name)
+	{
+		return name != null ? name : NULL;
+	}
+
+	private static String[] strings(Vector v)
+	{
+		String s[] = new String[v.size()];
+		v.copyInto(s);
+		return s;
+	}
+
+	// ---( inner classes )---
+	/**
+	 * The content of a device or panel as a list of values. Icons and
+	 * IR codes are compared by content. Devices, panels and buttons
+	 * targeted by actions are compared by name. Two prints are equal
+	 * when their values are, and then their nodes line up one to one.
+	 */
+	private class Print
+	{
+		Vector values = new Vector();
+		Vector nodes = new Vector();
+		String name;
+		int hash;
+
+		Print(CCFNode node)
+		{
+			name = node instanceof CCFDevice ?
+				((CCFDevice)node).getName() : ((CCFPanel)node).getName();
+			read(node);
+			for (int i=0; i<values.size(); i++)
+			{
+				hash = hash * 31 + values.get(i).hashCode();
+			}
+		}
+
+		private void read(CCFNode node)
+		{
+			if (node == null)
+			{
+				values.addElement(NULL);
+				return;
+			}
+			if (node instanceof CCFIcon || node instanceof CCFIRCode)
+			{
+				CCFContent c = new CCFContent(node);
+				if (scan && content.get(c) == null)
+				{
+					content.put(c, node);
+				}
+				values.addElement(c);
+				return;
+			}
+			nodes.addElement(node);
+			values.addElement(node.getClass().getName());
+			if (node instanceof CCFAction)
+			{
+				CCFAction a = (CCFAction)node;
+				values.addElement(Integer.valueOf(a.type));
+				action(a.action1, a.p1);
+				action(a.action2, a.p2);
+				return;
+			}
+			if (node instanceof IChildContainer)
+			{
+				// reads lazily decoded panel children
+				((IChildContainer)node).getChildren();
+			}
+			if (node instanceof CCFPanel)
+			{
+				values.addElement(key(((CCFPanel)node).getName()));
+			}
+			String table[][] = node.getEncodeTable();
+			for (int i=0; i<table.length; i++)
+			{
+				char type = table[i][0].charAt(0);
+				if (type == 'N' || type == 'S')
+				{
+					Object o = node.getEncodeValue(i);
+					values.addElement(o != null ? o : NULL);
+				}
+				else
+				if (type == 'Z' && !table[i][1].equals("next"))
+				{
+					Object o = node.getEncodeValue(i);
+					if (o instanceof CCFNode[])
+					{
+						CCFNode z[] = (CCFNode[])o;
+						values.addElement(Integer.valueOf(z.length));
+						for (int j=0; j<z.length; j++)
+						{
+							read(z[j]);
+						}
+					}
+					else
+					if (o instanceof CCFPanel)
+					{
+						for (CCFPanel p = (CCFPanel)o; p != null; p = p.getNextPanel())
+						{
+							read(p);
+						}
+						values.addElement(END);
+					}
+					else
+					{
+						read((CCFNode)o);
+					}
+				}
+			}
+		}
+
+		private void action(CCFNode target, int param)
+		{
+			if (target == null)
+			{
+				values.addElement(Integer.valueOf(param));
+			}
+			else
+			if (target instanceof CCFDevice)
+			{
+				values.addElement("D:"+key(((CCFDevice)target).getName()));
+			}
+			else
+			if (target instanceof CCFPanel)
+			{
+				values.addElement("P:"+((CCFPanel)target).getFQN());
+			}
+			else
+			if (target instanceof CCFButton)
+			{
+				values.addElement("B:"+((CCFButton)target).getFQN());
+			}
+			else
+			{
+				read(target);
+			}
+		}
+
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		public boolean equals(Object o)
+		{
+			return o instanceof Print && ((Print)o).hash == hash &&
+				((Print)o).values.equals(values);
+		}
+	}
+}
+
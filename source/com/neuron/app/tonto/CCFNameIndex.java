@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2001-2002, Stewart Allen <stewart@neuron.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the Artistic License.
+ */
+
+package com.neuron.app.tonto;
+
+// ---( imports )---
+import java.util.*;
+
+/**
+ * Index of the devices and panels in a CCF by name and by (device,
+ * panel) path, in tree order: home, normal then macro devices. Renames
+ * are applied in place. Any other change to the device or panel lists
+ * drops the index and it is rebuilt on the next lookup.
+ */
+final class CCFNameIndex
+{
+	// ---( static fields )---
+	private final static int BY_NAME = 0;
+	private final static int BY_PATH = 1;
+
+	// ---( constructors )---
+	CCFNameIndex(CCFHeader head)
+	{
+		this.head = head;
+	}
+
+	// ---( instance fields )---
+	private CCFHeader head;
+	private boolean valid;
+	private Vector devices = new Vector();		// tree order
+	private Vector panels = new Vector();		// tree order
+	private Hashtable order = new Hashtable();	// key=node val=Integer
+	private Hashtable named = new Hashtable();	// key=node val=name indexed
+	private Hashtable devByName = new Hashtable();	// key=name val=Vector
+	private Hashtable panByName = new Hashtable();	// key=name val=Vector
+	private Hashtable panByPath = new Hashtable();	// key=path val=Vector
+
+	// ---( instance methods )---
+	synchronized void invalidate()
+	{
+		valid = false;
+	}
+
+	/**
+	 * Returns the first device with this name.
+	 */
+	synchronized CCFDevice getDevice(String name)
+	{
+		return (CCFDevice)first(devByName, name, BY_NAME);
+	}
+
+	/**
+	 * Returns the first device panel with this name.
+	 */
+	synchronized CCFPanel getPanel(String name)
+	{
+		return (CCFPanel)first(panByName, name, BY_NAME);
+	}
+
+	/**
+	 * Returns the first panel with this name in the first device
+	 * with that name that has one.
+	 */
+	synchronized CCFPanel getPanel(String device, String panel)
+	{
+		return (CCFPanel)first(panByPath, path(device, panel), BY_PATH);
+	}
+
+	/**
+	 * Returns every device with this name in tree order.
+	 */
+	synchronized CCFDevice[] getDevices(String name)
+	{
+		Vector v = all(devByName, name);
+		CCFDevice d[] = new CCFDevice[v.size()];
+		v.copyInto(d);
+		return d;
+	}
+
+	/**
+	 * Returns every device panel with this name in tree order.
+	 */
+	synchronized CCFPanel[] getPanels(String name)
+	{
+		Vector v = all(panByName, name);
+		CCFPanel p[] = new CCFPanel[v.size()];
+		v.copyInto(p);
+		return p;
+	}
+
+	synchronized CCFDevice[] getDevices()
+	{
+		check();
+		CCFDevice d[] = new CCFDevice[devices.size()];
+		devices.copyInto(d);
+		return d;
+	}
+
+	synchronized CCFPanel[] getPanels()
+	{
+		check();
+		CCFPanel p[] = new CCFPanel[panels.size()];
+		panels.copyInto(p);
+		return p;
+	}
+
+	/**
+	 * Move a device or panel to the key for its current name.
+	 */
+	synchronized void rename(CCFNode node)
+	{
+		if (!valid)
+		{
+			return;
+		}
+		if (!order.containsKey(node))
+		{
+			// not indexed yet so it was added without a rebuild
+			valid = false;
+			return;
+		}
+		if (node instanceof CCFDevice)
+		{
+			CCFDevice dev = (CCFDevice)node;
+			String old = (String)named.get(dev);
+			for (CCFPanel p = dev.getFirstPanel(); p != null; p = p.getNextPanel())
+			{
+				if (old != null)
+				{
+					remove(panByPath, path(old, (String)named.get(p)), p);
+				}
+			}
+			remove(devByName, old, dev);
+			add(devByName, dev.getName(), dev);
+			setNamed(dev, dev.getName());
+			for (CCFPanel p = dev.getFirstPanel(); p != null; p = p.getNextPanel())
+			{
+				add(panByPath, path(dev.getName(), (String)named.get(p)), p);
+			}
+		}
+		else
+		if (node instanceof CCFPanel)
+		{
+			CCFPanel p = (CCFPanel)node;
+			CCFDevice dev = p.getParentDevice();
+			String dname = dev != null ? (String)named.get(dev) : null;
+			String old = (String)named.get(p);
+			remove(panByName, old, p);
+			remove(panByPath, path(dname, old), p);
+			add(panByName, p.getName(), p);
+			add(panByPath, path(dname, p.getName()), p);
+			setNamed(p, p.getName());
+		}
+	}
+
+	// first entry under key. an entry changed without the index
+	// being told rebuilds it once.
+	private Object first(Hashtable map, String key, int by)
+	{
+		if (key == null)
+		{
+			return null;
+		}
+		check();
+		for (int pass=0; pass<2; pass++)
+		{
+			Vector v = (Vector)map.get(key);
+			if (v == null)
+			{
+				return null;
+			}
+			CCFNode n = (CCFNode)v.firstElement();
+			if (n.getParent() != null && key.equals(keyOf(n, by)))
+			{
+				return n;
+			}
+			rebuild();
+		}
+		return null;
+	}
+
+	// all entries under a name. a stale entry rebuilds the index once.
+	private Vector all(Hashtable map, String key)
+	{
+		if (key == null)
+		{
+			return new Vector();
+		}
+		check();
+		for (int pass=0; pass<2; pass++)
+		{
+			Vector v = (Vector)map.get(key);
+			if (v == null)
+			{
+				return new Vector();
+			}
+			boolean stale = false;
+			for (int i=0; i<v.size() && !stale; i++)
+			{
+				CCFNode n = (CCFNode)v.get(i);
+				stale = n.getParent() == null || !key.equals(keyOf(n, BY_NAME));
+			}
+			if (!stale)
+			{
+				return (Vector)v.clone();
+			}
+			rebuild();
+		}
+		return new Vector();
+	}
+
+	private static String keyOf(CCFNode node, int by)
+	{
+		if (node instanceof CCFDevice)
+		{
+			return ((CCFDevice)node).getName();
+		}
+		CCFPanel p = (CCFPanel)node;
+		if (by == BY_NAME)
+		{
+			return p.getName();
+		}
+		CCFDevice d = p.getParentDevice();
+		return d != null ? path(d.getName(), p.getName()) : null;
+	}
+
+	private void check()
+	{
+		if (!valid)
+		{
+			rebuild();
+		}
+	}
+
+	private void rebuild()
+	{
+		devices.clear();
+		panels.clear();
+		order.clear();
+		named.clear();
+		devByName.clear();
+		panByName.clear();
+		panByPath.clear();
+		CCFDevice root[] = { head.firstHome, head.firstDevice, head.firstMacro };
+		for (int i=0; i<root.length; i++)
+		{
+			for (CCFDevice d = root[i]; d != null; d = d.getNextDevice())
+			{
+				order.put(d, Integer.valueOf(order.size()));
+				devices.addElement(d);
+				add(devByName, d.getName(), d);
+				setNamed(d, d.getName());
+				for (CCFPanel p = d.getFirstPanel(); p != null; p = p.getNextPanel())
+				{
+					order.put(p, Integer.valueOf(order.size()));
+					panels.addElement(p);
+					add(panByName, p.getName(), p);
+					add(panByPath, path(d.getName(), p.getName()), p);
+					setNamed(p, p.getName());
+				}
+			}
+		}
+		valid = true;
+	}
+
+	private void setNamed(CCFNode node, String name)
+	{
+		if (name != null)
+		{
+			named.put(node, name);
+		}
+		else
+		{
+			named.remove(node);
+		}
+	}
+
+	// keep entries for a key in tree order
+	private void add(Hashtable map, String key, CCFNode node)
+	{
+		if (key == null)
+		{
+			return;
+		}
+		Vector v = (Vector)map.get(key);
+		if (v == null)
+		{
+			v = new Vector(1);
+			map.put(key, v);
+		}
+		int pos = ((Integer)order.get(node)).intValue();
+		int i = v.size();
+		while (i > 0 && ((Integer)order.get(v.get(i-1))).intValue() > pos)
+		{
+			i--;
+		}
+		v.insertElementAt(node, i);
+	}
+
+	private void remove(Hashtable map, String key, CCFNode node)
+	{
+		if (key == null)
+		{
+			return;
+		}
+		Vector v = (Vector)map.get(key);
+		if (v != null)
+		{
+			v.removeElement(node);
+			if (v.size() == 0)
+			{
+				map.remove(key);
+			}
+		}
+	}
+
+	private static String path(String device, String panel)
+	{
+		return device != null && panel != null ? device+'\0'+panel : null;
+	}
+}
+
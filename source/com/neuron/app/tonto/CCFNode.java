@@ -22,7 +22,7 @@ public abstract class CCFNode implements Cloneable
 	static Debug debug = Debug.getInstance("ccf");
 
 	private static int nextZip = 0;
-	private static Hashtable classCache = new Hashtable();
+	private static ReadCache classCache = new ReadCache();
 
 	private final static char BYTE_FIELD     = 'B';
 	private final static char NODE_FIELD     = 'Z';
@@ -41,7 +41,9 @@ public abstract class CCFNode implements Cloneable
 	private int zipNum;
 	private int filepos;
 	private boolean fixedPos;
-	private Hashtable cache;
+	private ReadCache cache;
+	private transient int filelen;		// length in the file it was read from
+	private transient boolean dirty;
 	private CCFNode parent;
 	private CCFHeader header;
 
@@ -49,11 +51,18 @@ public abstract class CCFNode implements Cloneable
 	CCFNode()
 	{
 		zipNum = nextZip++;
-		Hashtable c = (Hashtable)classCache.get(getClass());
+		ReadCache c = (ReadCache)classCache.get(getClass());
 		if (c == null)
 		{
-			c = new Hashtable();
-			classCache.put(getClass(), c);
+			synchronized (classCache)
+			{
+				c = (ReadCache)classCache.get(getClass());
+				if (c == null)
+				{
+					c = new ReadCache();
+					classCache.put(getClass(), c);
+				}
+			}
 		}
 		cache = c;
 	}
@@ -162,6 +171,139 @@ if (head == null)
 		filepos = pos;
 	}
 
+	int getFileLength()
+	{
+		return filelen;
+	}
+
+	void setFileLength(int len)
+	{
+		filelen = len;
+	}
+
+	// ---( change tracking )---
+	/**
+	 * Record that this node differs from the file it was read from or
+	 * last saved to, so an incremental save re-encodes it.
+	 */
+	void setDirty()
+	{
+		if (dirty)
+		{
+			return;
+		}
+		dirty = true;
+		CCFHeader h = getHeader();
+		if (h != null)
+		{
+			h.addDirty(this);
+		}
+	}
+
+	// tell the indexes the device or panel lists changed
+	void treeChanged()
+	{
+		CCFHeader h = getHeader();
+		if (h != null)
+		{
+			h.treeChanged();
+		}
+	}
+
+	// tell the indexes a device or panel was unlinked
+	void treeRemoved()
+	{
+		CCFHeader h = getHeader();
+		if (h != null)
+		{
+			h.treeRemoved();
+		}
+	}
+
+	// tell the indexes this node or the nodes below it changed in place.
+	// the node is also rewritten by the next incremental save.
+	final void nodeChanged()
+	{
+		setDirty();
+		CCFHeader h = getHeader();
+		if (h != null)
+		{
+			h.nodeChanged(this);
+		}
+	}
+
+	// tell the indexes this device or panel may have a new name
+	final void renamed()
+	{
+		CCFHeader h = getHeader();
+		if (h != null)
+		{
+			h.renamed(this);
+		}
+	}
+
+	boolean isDirty()
+	{
+		return dirty;
+	}
+
+	void clearDirty()
+	{
+		dirty = false;
+	}
+
+	// returns the node that holds this one in the file
+	CCFNode getFileContainer()
+	{
+		CCFNode n = this;
+		while ((n instanceof CCFChild || n instanceof CCFAction) && n.getParent() != null)
+		{
+			n = n.getParent();
+		}
+		return n;
+	}
+
+	// true if every node this one points to already has a place in
+	// the file image, so it can be re-encoded at its old position
+	boolean isPatchable(CCFNodeState zs)
+	{
+		String encTable[][] = getEncodeTable();
+		for (int i=0; i<encTable.length; i++)
+		{
+			if (encTable[i][0].charAt(0) != NODE_FIELD)
+			{
+				continue;
+			}
+			char len = encTable[i][0].charAt(1);
+			Object val = getEncodeValue(i);
+			if (len == FIELD_PTR)
+			{
+				if (val != null && !zs.inImage((CCFNode)val))
+				{
+					return false;
+				}
+			}
+			else
+			if (len == FIELD_COUNT)
+			{
+				CCFNode z[] = (CCFNode[])val;
+				for (int j=0; z != null && j<z.length; j++)
+				{
+					if (!z[j].isPatchable(zs))
+					{
+						return false;
+					}
+				}
+			}
+			else
+			if (val != null && !((CCFNode)val).isPatchable(zs))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
 	// ---( encode/decode helpers )---
 	String getFieldName(int index)
 	{
@@ -242,6 +384,10 @@ if (head == null)
 
 	Object getEncodeValue(int index)
 	{
+		if (CCFCodec.isEnabled())
+		{
+			return getCodec(getEncodeTable()).getValue(this, index);
+		}
 		return get(getEncodeTable()[index][1]);
 	}
 
@@ -268,6 +414,18 @@ if (head == null)
 		return Integer.parseInt(getDecodeTable()[index][3]);
 	}
 
+	// ---( compiled codec helpers )---
+	CCFCodec getCodec(String table[][])
+	{
+		CCFCodec codec = (CCFCodec)cache.get(table);
+		if (codec == null)
+		{
+			codec = new CCFCodec(this, table);
+			cache.put(table, codec);
+		}
+		return codec;
+	}
+
 	// ---( clone and utilities )---
 	CCFNode getClone()
 	{
@@ -310,7 +468,10 @@ if (head == null)
 	private boolean jumpDecode(int pos, CCFNodeState zs)
 	{
 		long oldpos = zs.buffer().getFilePointer();
-		log(3,"jumpDecode("+pos+") <- ("+oldpos+")");
+		if (debug.debug(3))
+		{
+			log(3,"jumpDecode("+pos+") <- ("+oldpos+")");
+		}
 		if (zs.seek(pos))
 		{
 			decode(zs);
@@ -325,7 +486,7 @@ if (head == null)
 		}
 	}
 
-	private CCFNode readItem(CCFNodeState zs, Class clz)
+	CCFNode readItem(CCFNodeState zs, Class clz)
 	{
 		return getItemByPos(zs, (int)zs.buffer().getFilePointer(), clz, false);
 	}
@@ -343,42 +504,59 @@ if (head == null)
 			return null;
 		}
 		CCFNode zp = zs.getObjectAt(pos);
-		if (zp != null)
+		if (zp == null)
 		{
-			// required to advance file pos
-			if (!jmp)
+			CCFNode nz;
+			try
 			{
-				log(3,"**** skipping already read ("+zp+")", zs);
-				zs.buffer().skipBytes(zp.getLength());
+				nz = (CCFNode)clz.newInstance();
+				nz.setHeader(zs.getHeader());
+				nz.checkVersion();
 			}
-			return zp;
-		}
-		try
-		{
-			zp = (CCFNode)clz.newInstance();
-			zp.setHeader(zs.getHeader());
-			zp.checkVersion();
-			zs.putObjectAt(pos, zp);
-		}
-		catch (Exception ex)
-		{
-			error(ex);
-			return null;
-		}
-		if (jmp)
-		{
-			// jump and decode
-			if (!zp.jumpDecode(pos, zs))
+			catch (Exception ex)
 			{
-				log(3,"**** removing invalid ("+zp+"@"+pos+")", zs);
-				zs.removeObjectAt(pos);
+				error(ex);
 				return null;
 			}
+			// a parallel decoder may have claimed the position first
+			zp = zs.claimObjectAt(pos, nz);
+			if (zp == nz)
+			{
+				try
+				{
+					if (jmp)
+					{
+						// jump and decode
+						if (!zp.jumpDecode(pos, zs))
+						{
+							log(3,"**** removing invalid ("+zp+"@"+pos+")", zs);
+							zs.removeObjectAt(pos);
+							return null;
+						}
+					}
+					else
+					{
+						// decode in place
+						zp.decode(zs);
+					}
+				}
+				finally
+				{
+					zs.claimDone(pos);
+				}
+				return zp;
+			}
 		}
-		else
+		// required to advance file pos
+		if (!jmp)
 		{
-			// decode in place
-			zp.decode(zs);
+			if (debug.debug(3))
+			{
+				log(3,"**** skipping already read ("+zp+")", zs);
+			}
+			// the length is only known once the claimer has decoded it
+			zs.awaitDecoded(pos);
+			zs.buffer().skipBytes(zp.getLength());
 		}
 		return zp;
 	}
@@ -428,6 +606,10 @@ if (head == null)
 	// returns the object length in bytes
 	int getLength()
 	{
+		if (CCFCodec.isEnabled())
+		{
+			return getCodec(getEncodeTable()).getLength(this);
+		}
 		int length = 0;
 		String encTable[][] = getEncodeTable();
 		for (int i=0; i<encTable.length; i++)
@@ -541,91 +723,106 @@ if (head == null)
 		preEncode(zs);
 		String encTable[][] = getEncodeTable();
 
-		for (i=0; i<encTable.length; i++)
+		if (CCFCodec.isEnabled())
 		{
-			char typ = encTable[i][0].charAt(0);
-			char len = encTable[i][0].charAt(1);
-			Object val = null;
 			try
 			{
-				val = getEncodeValue(i);
+				getCodec(encTable).encode(this, zs);
 			}
-			catch (Exception ex)
+			catch (CCFCodec.FieldException fex)
 			{
-				throw new RuntimeException(ex.getMessage());
+				i = fex.getIndex();
+				throw fex.getCause(fex);
 			}
-			log(3,
-				"   >>  @ "+hex(filepos)+" ("+myName()+","+
-				encTable[i][0]+","+encTable[i][1]+") ("+val+")"
-			);
-			switch (typ)
+		}
+		else
+		{
+			for (i=0; i<encTable.length; i++)
 			{
-				case IGNORE_FIELD:
-					continue;
-				case BYTE_FIELD:
-					ra.write((byte[])val);
-					break;
-				case NODE_FIELD:	
-					if (len == FIELD_PTR)
-					{
-						CCFNode z = (CCFNode)val;
-						if (z != null)
+				char typ = encTable[i][0].charAt(0);
+				char len = encTable[i][0].charAt(1);
+				Object val = null;
+				try
+				{
+					val = getEncodeValue(i);
+				}
+				catch (Exception ex)
+				{
+					throw new RuntimeException(ex.getMessage());
+				}
+				log(3,
+					"   >>  @ "+hex(filepos)+" ("+myName()+","+
+					encTable[i][0]+","+encTable[i][1]+") ("+val+")"
+				);
+				switch (typ)
+				{
+					case IGNORE_FIELD:
+						continue;
+					case BYTE_FIELD:
+						ra.write((byte[])val);
+						break;
+					case NODE_FIELD:	
+						if (len == FIELD_PTR)
 						{
-							ra.putInt(z.filepos);
+							CCFNode z = (CCFNode)val;
+							if (z != null)
+							{
+								ra.putInt(z.filepos);
+							}
+							else
+							{
+								ra.putInt(0);
+							}
 						}
 						else
+						if (len == FIELD_COUNT)
 						{
-							ra.putInt(0);
+							CCFNode z[] = (CCFNode[])val;
+							for (int j=0; z != null && j<z.length; j++)
+							{
+								z[j].encode(zs,false);
+							}
 						}
-					}
-					else
-					if (len == FIELD_COUNT)
-					{
-						CCFNode z[] = (CCFNode[])val;
-						for (int j=0; z != null && j<z.length; j++)
+						else
 						{
-							z[j].encode(zs,false);
+							CCFNode z = (CCFNode)val;
+							z.encode(zs,false);
 						}
-					}
-					else
-					{
-						CCFNode z = (CCFNode)val;
-						z.encode(zs,false);
-					}
-					break;
-				case INTEGER_FIELD:	
-					switch (len)
-					{
-						case '1':
-							ra.putByte(((Number)val).intValue());
-							break;
-						case '2':
-							ra.putShort(((Number)val).intValue());
-							break;
-						case '4':
-							ra.putInt(((Number)val).intValue());
-							break;
-						default:
-							int cnt = len - '0';
-							int valu = ((Number)val).intValue();
-							for (int c=0; c<cnt; c++)
-							{
-								ra.putByte((valu >> ((cnt-c)*8)) & 0xff);
-							}
-							break;
-					}
-					break;
-				case STRING_FIELD:
-					String str = (String)val;
-					if (len == FIELD_PTR)
-					{
-						ra.putInt(getStringEncodePos(zs,str));
-					}
-					else
-					{
-						stringEncode(ra, str);
-					}
-					break;
+						break;
+					case INTEGER_FIELD:	
+						switch (len)
+						{
+							case '1':
+								ra.putByte(((Number)val).intValue());
+								break;
+							case '2':
+								ra.putShort(((Number)val).intValue());
+								break;
+							case '4':
+								ra.putInt(((Number)val).intValue());
+								break;
+							default:
+								int cnt = len - '0';
+								int valu = ((Number)val).intValue();
+								for (int c=0; c<cnt; c++)
+								{
+									ra.putByte((valu >> ((cnt-c)*8)) & 0xff);
+								}
+								break;
+						}
+						break;
+					case STRING_FIELD:
+						String str = (String)val;
+						if (len == FIELD_PTR)
+						{
+							ra.putInt(getStringEncodePos(zs,str));
+						}
+						else
+						{
+							stringEncode(ra, str);
+						}
+						break;
+				}
 			}
 		}
 
@@ -669,143 +866,158 @@ if (head == null)
 		filepos = fp;
 		String decTable[][] = getDecodeTable();
 
-		for (i=0; i<decTable.length; i++)
+		if (CCFCodec.isEnabled())
 		{
-			Object val = null;
-			char typ = decTable[i][0].charAt(0);
-			char len = decTable[i][0].charAt(1);
-			String fnm = getDecodeField(i);
-			Field fld = getField(fnm);
-			long pos = in.getFilePointer();
-			int defer = -1;
-			switch (typ)
+			try
 			{
-				case BYTE_FIELD:
-					{
-						int fromVal = getDecodeValueLength(i);
-						if (decTable[i].length > 3)
+				delta = getCodec(decTable).decode(this, zs);
+			}
+			catch (CCFCodec.FieldException fex)
+			{
+				i = fex.getIndex();
+				throw fex.getCause(fex);
+			}
+		}
+		else
+		{
+			for (i=0; i<decTable.length; i++)
+			{
+				Object val = null;
+				char typ = decTable[i][0].charAt(0);
+				char len = decTable[i][0].charAt(1);
+				String fnm = getDecodeField(i);
+				Field fld = getField(fnm);
+				long pos = in.getFilePointer();
+				int defer = -1;
+				switch (typ)
+				{
+					case BYTE_FIELD:
 						{
-							fromVal += getDecodeValueVariance(i);
+							int fromVal = getDecodeValueLength(i);
+							if (decTable[i].length > 3)
+							{
+								fromVal += getDecodeValueVariance(i);
+							}
+							byte b[] = new byte[fromVal];
+							in.readFully(b);
+							val = b;
+							delta += b.length;
 						}
-						byte b[] = new byte[fromVal];
-						in.readFully(b);
-						val = b;
-						delta += b.length;
-					}
-					break;
-				case NODE_FIELD:
-					Class clz = fld.getType();
-					if (len == FIELD_PTR)
-					{
-						int seek = in.getInt();
-						if (seek > 0)
+						break;
+					case NODE_FIELD:
+						Class clz = fld.getType();
+						if (len == FIELD_PTR)
 						{
-							zs.deferResolve(this,fnm,seek,clz);
-							defer = seek;
+							int seek = in.getInt();
+							if (seek > 0)
+							{
+								zs.deferResolve(this,fnm,seek,clz);
+								defer = seek;
+							}
+							delta += 4;
 						}
-						delta += 4;
-					}
-					else
-					if (len == FIELD_COUNT)
-					{
-						CCFNode o[] = (CCFNode[])Array.newInstance(
-							clz.getComponentType(), getDecodeValueLength(i));
-						for (int j=0; j<o.length; j++)
+						else
+						if (len == FIELD_COUNT)
 						{
-							o[j] = readItem(zs, clz.getComponentType());
-							o[j].fixedPos = true;
-						}
-						val = o;
-						delta += (in.getFilePointer()-pos);
-					}
-					else
-					if (len == '1')
-					{
-						CCFNode z = readItem(zs, clz);
-						z.fixedPos = true;
-						val = z;
-						delta += (in.getFilePointer()-pos);
-					}
-					break;
-				case INTEGER_FIELD:
-					switch (len)
-					{
-						case '1':
-							if (decTable[i].length > 2)
+							CCFNode o[] = (CCFNode[])Array.newInstance(
+								clz.getComponentType(), getDecodeValueLength(i));
+							for (int j=0; j<o.length; j++)
 							{
-								val = new Integer(in.getByte() & 0xff);
+								o[j] = readItem(zs, clz.getComponentType());
+								o[j].fixedPos = true;
 							}
-							else
+							val = o;
+							delta += (in.getFilePointer()-pos);
+						}
+						else
+						if (len == '1')
+						{
+							CCFNode z = readItem(zs, clz);
+							z.fixedPos = true;
+							val = z;
+							delta += (in.getFilePointer()-pos);
+						}
+						break;
+					case INTEGER_FIELD:
+						switch (len)
+						{
+							case '1':
+								if (decTable[i].length > 2)
+								{
+									val = new Integer(in.getByte() & 0xff);
+								}
+								else
+								{
+									val = new Integer(in.getByte());
+								}
+								break;
+							case '2':
+								if (decTable[i].length > 2)
+								{
+									val = new Integer(in.getShort() & 0xffff);
+								}
+								else
+								{
+									val = new Integer(in.getShort());
+								}
+								break;
+							case '4':
+								val = new Integer(in.getInt());
+								break;
+							default:
+								int cnt = len - '0';
+								int valu = 0;
+								for (int c=0; c<cnt; c++)
+								{
+									valu += (in.getByte() & 0xff) << ((cnt-c)*8);
+								}
+								val = new Integer(valu);
+								break;
+						}
+						delta += (len - '0');
+						break;
+					case STRING_FIELD:
+						long repos = -1;
+						if (len == FIELD_PTR)
+						{
+							int nupos = in.getInt();
+							val = zs.getLocationString(nupos);
+							if (val != null || nupos == 0)
 							{
-								val = new Integer(in.getByte());
+								break;
 							}
-							break;
-						case '2':
-							if (decTable[i].length > 2)
+							repos = in.getFilePointer();
+							if (nupos > in.length())
 							{
-								val = new Integer(in.getShort() & 0xffff);
+								val = null;
+								log(0, "attempt to read string outside of file bounds", zs);
 							}
 							else
 							{
-								val = new Integer(in.getShort());
-							}
-							break;
-						case '4':
-							val = new Integer(in.getInt());
-							break;
-						default:
-							int cnt = len - '0';
-							int valu = 0;
-							for (int c=0; c<cnt; c++)
-							{
-								valu += (in.getByte() & 0xff) << ((cnt-c)*8);
+								in.seek(nupos);
+								val = stringLengthDecode(in);
+								zs.putLocationString((String)val, nupos);
+								in.seek(repos);
 							}
-							val = new Integer(valu);
-							break;
-					}
-					delta += (len - '0');
-					break;
-				case STRING_FIELD:
-					long repos = -1;
-					if (len == FIELD_PTR)
-					{
-						int nupos = in.getInt();
-						val = zs.getLocationString(nupos);
-						if (val != null || nupos == 0)
-						{
-							break;
-						}
-						repos = in.getFilePointer();
-						if (nupos > in.length())
-						{
-							val = null;
-							log(0, "attempt to read string outside of file bounds", zs);
+							delta += 4;
 						}
 						else
 						{
-							in.seek(nupos);
-							val = stringLengthDecode(in);
-							zs.putLocationString((String)val, nupos);
-							in.seek(repos);
+							val = stringDecode(in, (char)(len - '0'));
+							delta += (len - '0');
 						}
-						delta += 4;
-					}
-					else
-					{
-						val = stringDecode(in, (char)(len - '0'));
-						delta += (len - '0');
-					}
-					break;
-			}
-			if (debug.debug(3))
-			{
-				log(3,
-					" >>  @ "+hex(in.getFilePointer())+" ("+myName()+","+
-					decTable[i][0]+","+decTable[i][1]+") "+
-					"("+(val == null ? Integer.toString(defer) : val)+")"
-				);
+						break;
+				}
+				if (debug.debug(3))
+				{
+					log(3,
+						" >>  @ "+hex(in.getFilePointer())+" ("+myName()+","+
+						decTable[i][0]+","+decTable[i][1]+") "+
+						"("+(val == null ? Integer.toString(defer) : val)+")"
+					);
+				}
+				fld.set(this, val);	
 			}
-			fld.set(this, val);	
 		}
 
 		}
@@ -819,6 +1031,7 @@ if (head == null)
 			trace(fp, getDecodeTable(), i, ex);
 		}
 
+		filelen = (int)zs.buffer().getFilePointer() - fp;
 		postDecode(zs);
 		zs.updateMeter(this, delta);
 		log(3, "end decode", zs);
@@ -935,7 +1148,7 @@ if (head == null)
 				else
 				if (val == null)
 				{
-					val = "<null>";
+					val = dumpNull(f.getName());
 				}
 				else
 				if (val instanceof String)
@@ -952,6 +1165,12 @@ if (head == null)
 		}
 	}
 
+	// how dump() shows a field that holds nothing
+	String dumpNull(String field)
+	{
+		return "<null>";
+	}
+
 	void log(int lvl, String msg)
 	{
 		debug.log(lvl, msg);
@@ -1035,6 +1254,13 @@ if (head == null)
 		return cname()+"@"+hex(filepos);
 	}
 
+	// overridden by nodes whose byte fields may stay in the decode
+	// buffer until first use. returns false to have the bytes copied.
+	boolean decodeSlice(String field, byte buf[], int off, int len)
+	{
+		return false;
+	}
+
 	// overridden in subclasses of CCFAction because they
 	// store all of their information in their parents fields.
 	boolean useParentFields()
@@ -1049,6 +1275,12 @@ if (head == null)
 		String encTable[][] = getEncodeTable();
 		for (int i=0; i<encTable.length; i++)
 		{
+			// numbers and byte data hold no nodes or strings
+			char typ = encTable[i][0].charAt(0);
+			if (typ == INTEGER_FIELD || typ == BYTE_FIELD)
+			{
+				continue;
+			}
 			zs.addField(
 				getEncodeValue(i), dst, encTable[i][0].charAt(1) == FIELD_PTR);
 		}
@@ -17,33 +17,99 @@ final class CCFNodeState
 	private static Debug debug = Debug.getInstance("ccf");
 	public final static int MAGIC = 0x4d4c5a4f;
 	public final static int magicOffset = 8;
+	private final static int BLOCK = 32768;	// lzo block size when writing
+	private final static boolean share = System.getProperty("ccf.noshare") == null;
 
 	// ---( instance fields )---
 	CCFHeader head;
 	private BufferedFile ra;
-	private Hashtable cache;		// key=pos val=object
-	private Hashtable strings;		// key=string val=pos
+	private IntObjectMap cache;		// key=pos val=object
+	private IntObjectMap strings;	// key=pos val=string
+	private ObjectIntMap locations;	// key=string val=pos
 	private Stack resolveStack;
 	private ITaskStatus status;
 	private long ccflen;
 	private long readbytes;
 	private int lastPCT = -1;
+	private boolean sliceable;
+	private boolean lazy;
+	private Vector pending;			// panels with undecoded children
+	private int threads = 1;
+	private int busy;				// panels being decoded by workers
+	private CCFNodeState main;		// set in parallel decode workers
+	private IntObjectMap decoding;	// key=pos of nodes workers are decoding
+	private Throwable error;		// first failure of a worker
+	private File image;				// file the node positions refer to
+	private long imageLen;
+	private long imageTime;
+	private boolean compressed;		// read from an lzo container
+	private boolean compress;		// write an lzo container
+	private boolean stringsIndexed;
+	private Vector appended;		// strings added by a patch
+	private int appendPos;
+	private Hashtable shared;		// key=duplicate val=node written in its place
+	private boolean compact;		// lay out in tree order
+	private int sharedBytes;
 
 	// ---( constructors )---
 	CCFNodeState(CCFHeader head, ITaskStatus status)
 	{
 		this.head = head;
 		this.status = status;
-		this.cache = new Hashtable();
-		this.strings = new Hashtable();
+		this.cache = new IntObjectMap(1024);
+		this.strings = new IntObjectMap(1024);
+		this.locations = new ObjectIntMap(1024);
 		this.resolveStack = new Stack();
 	}
 
+	// state for a parallel decode worker. shares the caches and the
+	// pending panel queue but reads through its own buffer cursor.
+	private CCFNodeState(CCFNodeState main)
+	{
+		this.main = main;
+		this.head = main.head;
+		this.cache = main.cache;
+		this.strings = main.strings;
+		this.locations = main.locations;
+		this.pending = main.pending;
+		this.decoding = main.decoding;
+		this.resolveStack = new Stack();
+		this.ra = main.ra.view();
+		this.ccflen = main.ccflen;
+		this.sliceable = main.sliceable;
+		this.lazy = true;
+	}
+
 	BufferedFile buffer()
 	{
 		return ra;
 	}
 
+	// true when decoded nodes may keep references into the buffer
+	// because nothing else owns or modifies it. only heap backed
+	// loads qualify: inflated LZO images and -Dccf.nomap file loads.
+	boolean isSliceable()
+	{
+		return sliceable;
+	}
+
+	// true when panel children are decoded on first access
+	boolean isLazy()
+	{
+		return lazy;
+	}
+
+	void setLazy(boolean lazy)
+	{
+		this.lazy = lazy;
+	}
+
+	// number of threads used to decode panels when not lazy
+	void setThreads(int threads)
+	{
+		this.threads = Math.max(1, threads);
+	}
+
 	void updateMeter(Object o, int len)
 	{
 		readbytes += len;
@@ -76,17 +142,109 @@ final class CCFNodeState
 	}
 
 	private void addByClass(Hashtable src, Vector dst, Class cls)
+	{
+		addByClass(src, dst, cls, null);
+	}
+
+	private void addByClass(Hashtable src, Vector dst, Class cls, Hashtable skip)
 	{
 		for (Enumeration e = src.elements(); e.hasMoreElements(); )
 		{
 			Object o = e.nextElement();
-			if (o.getClass() == cls)
+			if (o.getClass() == cls && (skip == null || skip.get(o) == null))
 			{
 				dst.addElement(o);
 			}
 		}
 	}
 
+	// add nodes and strings depth first from the header so a panel's
+	// buttons, frames, icons, action lists, ir codes and strings sit
+	// together. chained devices and panels follow once the one before
+	// them is done. anything not reached goes last by class.
+	private void addByTree(Hashtable src, Vector dst)
+	{
+		Hashtable done = new Hashtable();
+		done.put(head, head);
+		dst.addElement(head);
+		addTree(head, src, dst, done, true);
+		Class order[] = {
+			CCFIcon.class, String.class, CCFIRCode.class, CCFActionList.class,
+			CCFButton.class, CCFFrame.class, CCFPanel.class, CCFDevice.class,
+			CCFTimer.class
+		};
+		for (int i=0; i<order.length; i++)
+		{
+			addByClass(src, dst, order[i], done);
+		}
+	}
+
+	private void addTree(Object o, Hashtable src, Vector dst, Hashtable done, boolean root)
+	{
+		while (o != null)
+		{
+			if (o instanceof CCFNode[])
+			{
+				CCFNode z[] = (CCFNode[])o;
+				for (int i=0; i<z.length; i++)
+				{
+					addTree(z[i], src, dst, done, false);
+				}
+				return;
+			}
+			if (o instanceof String)
+			{
+				if (src.get(o) != null && done.put(o, o) == null)
+				{
+					dst.addElement(o);
+				}
+				return;
+			}
+			if (!(o instanceof CCFNode))
+			{
+				return;
+			}
+			CCFNode z = (CCFNode)o;
+			if (!root && !(z instanceof CCFAction || z instanceof CCFChild))
+			{
+				if (src.get(z) == null || done.put(z, z) != null)
+				{
+					return;
+				}
+				dst.addElement(z);
+			}
+			root = false;
+			if (z instanceof CCFAction)
+			{
+				// jumps to panels, buttons and devices are placed
+				// with their own tree, not the action's
+				Object target = ((CCFAction)z).action2;
+				if (target instanceof CCFIRCode || target instanceof CCFActionList)
+				{
+					addTree(target, src, dst, done, false);
+				}
+				return;
+			}
+			Object next = null;
+			String table[][] = z.getEncodeTable();
+			for (int i=0; i<table.length; i++)
+			{
+				Object val = z.getEncodeValue(i);
+				if (table[i][1].equals("next"))
+				{
+					next = val;
+				}
+				else
+				if (val instanceof CCFNode || val instanceof CCFNode[] ||
+					(val instanceof String && table[i][0].charAt(1) == '*'))
+				{
+					addTree(val, src, dst, done, false);
+				}
+			}
+			o = next;
+		}
+	}
+
 	private Hashtable all;
 
 	boolean willEncode(CCFNode node)
@@ -98,11 +256,20 @@ final class CCFNodeState
 		return all.get(node) != null;
 	}
 
+	void setCompressed(boolean compress)
+	{
+		this.compress = compress;
+	}
+
 	byte[] encodeToBytes()
 		throws IOException
 	{
 		ra = new BufferedFile();
 		encode();
+		if (compress)
+		{
+			return compressImage(ra.getBuffer(), (int)ra.length());
+		}
 		return ra.toByteArray();
 	}
 
@@ -113,9 +280,18 @@ final class CCFNodeState
 		File T = new File(file+".tmp-"+(Util.time()&0xffff));
 		debug.log(3, "encode: F="+F+" T="+T);
 		// encode to tmp
-		ra = new BufferedFile(T.toString(), "rw");
-		ra.setLength(0);
-		encode();
+		if (compress)
+		{
+			FileOutputStream out = new FileOutputStream(T);
+			out.write(encodeToBytes());
+			out.close();
+		}
+		else
+		{
+			ra = BufferedFile.open(T.toString(), "rw");
+			ra.setLength(0);
+			encode();
+		}
 		boolean rename = true;
 		// rename previous ccf to .old
 		if (F.exists())
@@ -144,6 +320,149 @@ final class CCFNodeState
 		{
 			throw new IOException("Unable to rename previous file to .old");
 		}
+		if (!compress)
+		{
+			setImage(F);
+		}
+	}
+
+	// remember the file node positions refer to until it changes
+	private void setImage(File file)
+	{
+		image = file.getAbsoluteFile();
+		imageLen = image.length();
+		imageTime = image.lastModified();
+	}
+
+	// true if the node was read from or laid out in the image
+	boolean inImage(CCFNode node)
+	{
+		if (node == head)
+		{
+			return true;
+		}
+		if (all != null)
+		{
+			return all.get(node) != null;
+		}
+		return getObjectAt(node.getFilePosition()) == node;
+	}
+
+	/**
+	 * Write the nodes changed since the file was read or last saved
+	 * back into it in place. Changed strings are appended to the end.
+	 * A different file is first made a copy of the last one, so an
+	 * unchanged CCF is saved elsewhere without being encoded at all.
+	 * Returns false without touching the file when the changes need
+	 * a full layout: untracked changes, nodes that are new or changed
+	 * size, or a file that changed on disk.
+	 */
+	boolean patchFile(String file)
+		throws IOException
+	{
+		File F = new File(file).getAbsoluteFile();
+		if (image == null || head.needsRelayout() ||
+			image.length() != imageLen || image.lastModified() != imageTime)
+		{
+			return false;
+		}
+		boolean copy = !image.getCanonicalFile().equals(F.getCanonicalFile());
+		// find the file level nodes to rewrite
+		Vector patch = new Vector();
+		Hashtable seen = new Hashtable();
+		seen.put(head, head);
+		patch.add(head);
+		CCFNode dirty[] = head.getDirty();
+		for (int i=0; i<dirty.length; i++)
+		{
+			CCFNode n = dirty[i].getFileContainer();
+			if (seen.put(n, n) == null)
+			{
+				patch.add(n);
+			}
+		}
+		for (int i=0; i<patch.size(); i++)
+		{
+			CCFNode n = (CCFNode)patch.get(i);
+			if (!inImage(n) || isShared(n) || n.getLength(n.getFilePosition()) != n.getFileLength() || !n.isPatchable(this))
+			{
+				debug.log(2, "patch: relayout for "+n.describe());
+				return false;
+			}
+		}
+		debug.log(2, "patch: "+patch.size()+" nodes in "+file);
+		indexStrings();
+		if (F.exists())
+		{
+			Util.copyFile(F, new File(file+".old"));
+		}
+		if (copy)
+		{
+			// unchanged nodes come across in one transfer
+			Util.copyFile(image, F);
+		}
+		appended = new Vector();
+		appendPos = head.crc1Pos;
+		ra = BufferedFile.open(file, "rw");
+		try
+		{
+
+		// the header goes last, it holds the crc position
+		for (int i=1; i<patch.size(); i++)
+		{
+			((CCFNode)patch.get(i)).encode(this, false);
+		}
+		int start = head.crc1Pos;
+		int mark;
+		do
+		{
+			mark = appendPos;
+			head.crc1Pos = mark + (mark % 2);
+			head.crc2Pos = head.crc1Pos;
+			head.encode(this, false);
+		}
+		while (mark != appendPos);
+		// new strings replace the old crc
+		ra.seek(start);
+		for (int i=0; i<appended.size(); i++)
+		{
+			CCFNode.stringLengthEncode(ra, (String)appended.get(i));
+		}
+		if (ra.getFilePointer() < head.crc1Pos)
+		{
+			ra.write(0);
+		}
+		ra.seek(head.crc1Pos);
+		ra.putShort(ra.getCRC(head.crc1Pos));
+
+		}
+		finally
+		{
+			appended = null;
+			ra.close();
+		}
+		setImage(F);
+		return true;
+	}
+
+	// decoded strings are keyed by position. patching also needs
+	// them keyed by value.
+	private void indexStrings()
+	{
+		if (stringsIndexed)
+		{
+			return;
+		}
+		int keys[] = strings.keys();
+		for (int i=0; i<keys.length; i++)
+		{
+			String str = (String)strings.get(keys[i]);
+			if (!locations.containsKey(str))
+			{
+				putStringLocation(keys[i], str);
+			}
+		}
+		stringsIndexed = true;
 	}
 
 	private void encode()
@@ -151,37 +470,144 @@ final class CCFNodeState
 	{
 		try
 		{
+			int len = layout(true);
+			// size the output once instead of growing it per write
+			ra.setLength(len);
+			write();
+		}
+		finally
+		{
+			ra.close();
+		}
+	}
+
+	/**
+	 * Write the encoded image to a stream as it is produced, without
+	 * building it in memory first. The stream is closed when done.
+	 */
+	void encodeToStream(OutputStream out)
+		throws IOException
+	{
+		layout(true);
+		writeStream(out);
+	}
+
+	/**
+	 * Assign file positions to every node for writeStream() or
+	 * openStream(). Returns the length of the encoded image.
+	 */
+	int prepareStream()
+	{
+		return layout(true);
+	}
+
+	// write an image laid out by prepareStream()
+	void writeStream(OutputStream out)
+		throws IOException
+	{
+		StreamBufferedFile sf = new StreamBufferedFile(out);
+		ra = sf;
+		try
+		{
+			write();
+		}
+		finally
+		{
+			ra.close();
+		}
+		sf.checkError();
+	}
 
+	/**
+	 * Returns a stream of an image laid out by prepareStream(),
+	 * written by another thread as the stream is read. Closing the
+	 * stream early stops the writer.
+	 */
+	InputStream openStream()
+		throws IOException
+	{
+		if (writer != null)
+		{
+			// a closed stream fails the writer's remaining writes
+			try
+			{
+				writer.join();
+			}
+			catch (InterruptedException ex)
+			{
+				throw new InterruptedIOException();
+			}
+		}
+		final PipedInputStream in = new PipedInputStream(16384);
+		final PipedOutputStream out = new PipedOutputStream(in);
+		writer = new Thread("ccf stream") {
+			public void run() {
+				try
+				{
+					writeStream(out);
+				}
+				catch (IOException ex)
+				{
+					debug.log(2, "ccf stream closed: "+ex);
+				}
+			}
+		};
+		writer.start();
+		return in;
+	}
+
+	private Vector ordered;
+	private Thread writer;
+
+	// returns the length of the image including the trailing crc
+	// when place is false only the length is worked out and the
+	// nodes keep the positions of the file they came from
+	private int layout(boolean place)
+	{
 		notify("Encoding CCF");
 		// clear caches
 		cache.clear();
 		strings.clear();
+		locations.clear();
+		stringsIndexed = false;
 		// re-populate cache and strings
 		all = new Hashtable();
-		head.setFilePosition(0);
+		if (place)
+		{
+			head.setFilePosition(0);
+		}
 		addField(head, all);
 		setMeter(0);
 		setMeter(1);
 		// build ordered write vector
-		Vector ordered = new Vector();
-		ordered.addElement(head);
-		addByClass(all, ordered, CCFIcon.class);
-		setMeter(2);
-		addByClass(all, ordered, String.class);
-		setMeter(3);
-		addByClass(all, ordered, CCFIRCode.class);
-		setMeter(4);
-		addByClass(all, ordered, CCFActionList.class);
-		setMeter(5);
-		addByClass(all, ordered, CCFButton.class);
-		setMeter(6);
-		addByClass(all, ordered, CCFFrame.class);
-		setMeter(7);
-		addByClass(all, ordered, CCFPanel.class);
-		setMeter(8);
-		addByClass(all, ordered, CCFDevice.class);
-		setMeter(9);
-		addByClass(all, ordered, CCFTimer.class);
+		ordered = new Vector();
+		if (compact)
+		{
+			addByTree(all, ordered);
+			setMeter(9);
+		}
+		else
+		{
+			ordered.addElement(head);
+			addByClass(all, ordered, CCFIcon.class);
+			setMeter(2);
+			addByClass(all, ordered, String.class);
+			setMeter(3);
+			addByClass(all, ordered, CCFIRCode.class);
+			setMeter(4);
+			addByClass(all, ordered, CCFActionList.class);
+			setMeter(5);
+			addByClass(all, ordered, CCFButton.class);
+			setMeter(6);
+			addByClass(all, ordered, CCFFrame.class);
+			setMeter(7);
+			addByClass(all, ordered, CCFPanel.class);
+			setMeter(8);
+			addByClass(all, ordered, CCFDevice.class);
+			setMeter(9);
+			addByClass(all, ordered, CCFTimer.class);
+		}
+		shareDuplicates();
 		setMeter(10);
 		// update positions
 		int end = 0;
@@ -193,14 +619,28 @@ final class CCFNodeState
 			if (o instanceof CCFNode)
 			{
 				CCFNode z = (CCFNode)o;
+				// lengths depend on alignment at the new position
+				int pos = z.getFilePosition();
 				z.setFilePosition(end);
-				end += z.getLength();
+				int len = z.getLength();
+				if (place)
+				{
+					z.setFileLength(len);
+				}
+				else
+				{
+					z.setFilePosition(pos);
+				}
+				end += len;
 			}
 			else
 			if (o instanceof String)
 			{
 				String s = (String)o;
-				putStringLocation(end, s);
+				if (place)
+				{
+					putStringLocation(end, s);
+				}
 				end += (s.length()+1);
 			}
 			setMeter(10+(cnt/sz));
@@ -208,9 +648,144 @@ final class CCFNodeState
 		}
 		// make even bytes in length
 		end += (end % 2);
+		if (!place)
+		{
+			return end + 2;
+		}
+		// duplicates point at the copy written in their place
+		for (Enumeration e = shared.keys(); e.hasMoreElements(); )
+		{
+			CCFNode z = (CCFNode)e.nextElement();
+			CCFNode c = (CCFNode)shared.get(z);
+			z.setFilePosition(c.getFilePosition());
+			z.setFileLength(c.getFileLength());
+		}
 		head.crc1Pos = end;
 		head.crc2Pos = end;
-		// write elements
+		return end + 2;
+	}
+
+	// drop icons and ir codes that would write the same bytes as
+	// one already in the ordered list
+	private void shareDuplicates()
+	{
+		shared = new Hashtable();
+		sharedBytes = 0;
+		if (!share)
+		{
+			return;
+		}
+		Hashtable seen = new Hashtable();
+		Vector keep = new Vector(ordered.size());
+		int dups = 0;
+		for (int i=0; i<ordered.size(); i++)
+		{
+			Object o = ordered.get(i);
+			if (o instanceof CCFIcon || o instanceof CCFIRCode)
+			{
+				// compare in the form that will be written
+				CCFNode z = (CCFNode)o;
+				z.preEncode(this);
+				CCFContent key = new CCFContent(z);
+				CCFNode c = (CCFNode)seen.get(key);
+				if (c != null)
+				{
+					// the kept copy maps to itself
+					shared.put(c, c);
+					shared.put(z, c);
+					sharedBytes += c.getLength();
+					dups++;
+					continue;
+				}
+				seen.put(key, z);
+			}
+			keep.add(o);
+		}
+		if (dups > 0)
+		{
+			debug.log(2, "shared "+dups+" duplicate icons and ir codes saving "+sharedBytes+" bytes");
+		}
+		ordered = keep;
+	}
+
+	void setCompact(boolean compact)
+	{
+		this.compact = compact;
+	}
+
+	// returns the size of the image a save would write without
+	// moving any node from where the loaded file has it
+	int measure()
+	{
+		return layout(false);
+	}
+
+	/**
+	 * Returns the bytes between nodes that no node occupies in the
+	 * file that was decoded. Files written here have none but other
+	 * editors leave space behind.
+	 */
+	int getWastedBytes()
+	{
+		if (all != null)
+		{
+			return 0;
+		}
+		// every node and string read is a span of the file
+		Object nodes[] = cache.values();
+		int keys[] = strings.keys();
+		long span[] = new long[nodes.length + keys.length];
+		int n = 0;
+		for (int i=0; i<nodes.length; i++)
+		{
+			CCFNode z = (CCFNode)nodes[i];
+			if (!(z instanceof CCFAction || z instanceof CCFChild))
+			{
+				span[n++] = ((long)z.getFilePosition() << 32) | z.getFileLength();
+			}
+		}
+		for (int i=0; i<keys.length; i++)
+		{
+			span[n++] = ((long)keys[i] << 32) | (((String)strings.get(keys[i])).length() + 1);
+		}
+		Arrays.sort(span, 0, n);
+		int end = head.getFileLength();
+		int wasted = 0;
+		for (int i=0; i<n; i++)
+		{
+			int pos = (int)(span[i] >>> 32);
+			if (pos > end)
+			{
+				wasted += pos - end;
+			}
+			end = Math.max(end, pos + (int)span[i]);
+		}
+		// allow the pad that keeps the crc on an even byte
+		if (head.crc1Pos > end + 1)
+		{
+			wasted += head.crc1Pos - end;
+		}
+		return wasted;
+	}
+
+	// bytes saved by sharing duplicates in the last layout
+	int getSharedBytes()
+	{
+		return sharedBytes;
+	}
+
+	// true if the node was written to a place shared with others
+	private boolean isShared(CCFNode node)
+	{
+		return shared != null && shared.get(node) != null;
+	}
+
+	// write elements in file order so the output can be a stream
+	private void write()
+		throws IOException
+	{
+		int cnt = 0;
+		int sz = ordered.size();
 		for (Enumeration e = ordered.elements(); e.hasMoreElements(); )
 		{
 			Object o = e.nextElement();
@@ -223,21 +798,13 @@ final class CCFNodeState
 			{
 				CCFNode.stringLengthEncode(ra, (String)o);
 			}
-			setMeter(10+(cnt/sz));
+			setMeter(40+(cnt/sz));
 			cnt += 60;
 		}
 		setMeter(100);
 		// write crc
 		ra.seek(head.crc1Pos);
-		ra.write(0);
-		ra.seek(head.crc1Pos);
 		ra.putShort(ra.getCRC(head.crc1Pos));
-
-		}
-		finally
-		{
-			ra.close();
-		}
 	}
 
 	void setBuffer(byte b[])
@@ -248,20 +815,113 @@ final class CCFNodeState
 	void setBuffer(String file)
 		throws IOException
 	{
-		this.ra = new BufferedFile(file, "r");
+		this.ra = BufferedFile.open(file, "r");
 	}
 
 	void decodeFromBytes(byte b[])
 	{
 		this.ra = new BufferedFile(b);
+		this.sliceable = false;
 		decode();
 	}
 
 	void decodeFromFile(String file)
 		throws IOException
 	{
-		this.ra = new BufferedFile(file, "r");
+		this.ra = BufferedFile.open(file, "r");
+		// a mapped file has no heap array to slice from. slices into it
+		// would also keep the file mapped, so those loads copy.
+		this.sliceable = ra.getBuffer() != null;
 		decode();
+		if (!compressed)
+		{
+			setImage(new File(file));
+		}
+	}
+
+	/**
+	 * Decode only the fixed header fields and the strings they point
+	 * to. Node pointers are left unresolved so no tree is built, and
+	 * only as much of a compressed file is inflated as the header needs.
+	 * The header keeps the positions of those pointers for dump().
+	 */
+	void peekFromFile(String file)
+		throws IOException
+	{
+		this.ra = BufferedFile.open(file, "r");
+		try
+		{
+			if (ra.length() > magicOffset + 4)
+			{
+				ra.seek(magicOffset);
+				if (ra.getInt() == MAGIC)
+				{
+					BufferedFile nf = peekLZO();
+					ra.close();
+					ra = nf;
+				}
+			}
+			ra.seek(0);
+			head.decode(this);
+		}
+		finally
+		{
+			ra.close();
+		}
+		while (!resolveStack.empty())
+		{
+			defer d = (defer)resolveStack.pop();
+			if (d.src == head)
+			{
+				head.setPeeked(d.field, d.pos);
+			}
+		}
+	}
+
+	// inflate blocks in order until the header and the version string
+	// it points to are covered. usually that is the first block alone.
+	private BufferedFile peekLZO()
+		throws IOException
+	{
+		ra.seek(0);
+		int blksize = ra.getInt();
+		int filelen = ra.getInt();
+		ra.getInt();
+		byte out[] = new byte[filelen];
+		byte ipbuf[] = new byte[blksize];
+		int have = 0;
+		int need = 1;
+		while (have < need)
+		{
+			int iplen = ra.getInt();
+			if (iplen <= 0)
+			{
+				break;
+			}
+			if (iplen > ipbuf.length)
+			{
+				ipbuf = new byte[iplen];
+			}
+			ra.read(ipbuf, 0, iplen);
+			ra.skipBytes((iplen%4) > 0 ? (4-(iplen%4)) : 0);
+			try
+			{
+				have += Util.decompress(ipbuf, 0, iplen, out, have, filelen - have);
+			}
+			catch (Exception ex)
+			{
+				throw new IOException("lzo block corrupt at "+have);
+			}
+			if (need == 1 && have >= 4)
+			{
+				// room for the longest length prefixed string
+				int ver = ((out[0] & 0xff) << 24) | ((out[1] & 0xff) << 16) |
+					((out[2] & 0xff) << 8) | (out[3] & 0xff);
+				need = Math.min(filelen, Math.max(have, ver + 256));
+			}
+		}
+		debug.log(2, "lzo peek inflated "+have+" of "+filelen);
+		return new BufferedFile(out);
 	}
 
 	private void checkLZO()
@@ -277,13 +937,9 @@ final class CCFNodeState
 			int blksize = ra.getInt();
 			int filelen = ra.getInt();
 			int magic = ra.getInt();
-			int blk = 0;
-
-			byte ipbuf[] = new byte[blksize];
-			byte opbuf[] = new byte[blksize];
-
-			BufferedFile nf = new BufferedFile(new byte[filelen]);
 
+			// blocks are independent so find them all first
+			Vector blocks = new Vector();
 			while (true)
 			{
 				int iplen = ra.getInt();
@@ -291,15 +947,37 @@ final class CCFNodeState
 				{
 					break;
 				}
-				int rd = ra.read(ipbuf, 0, iplen);
-				int rz = Util.decompress(ipbuf, 0, iplen, opbuf, 0, blksize);
-				int pct = 100-(int)((double)iplen/(double)rz*100.0);
-				debug.log(2, "lzo blk="+(blk++)+" in="+iplen+" out="+rz+" comp="+pct+"%");
-				ra.skipBytes((iplen%4) > 0 ? (4-(iplen%4)) : 0);
-				nf.write(opbuf,0,rz);
+				blocks.add(new int[] { (int)ra.getFilePointer(), iplen });
+				ra.skipBytes(iplen + ((iplen%4) > 0 ? (4-(iplen%4)) : 0));
+			}
+
+			BufferedFile nf = decompressBlocks(blocks, blksize, filelen);
+			if (nf == null)
+			{
+				// blocks that are not all full size have to be
+				// read in order to know where each one goes
+				debug.log(2, "lzo blocks vary in size");
+				nf = new BufferedFile(new byte[filelen]);
+				byte ipbuf[] = new byte[blksize];
+				byte opbuf[] = new byte[blksize];
+				for (int blk=0; blk<blocks.size(); blk++)
+				{
+					int b[] = (int[])blocks.get(blk);
+					if (b[1] > ipbuf.length)
+					{
+						ipbuf = new byte[b[1]];
+					}
+					ra.seek(b[0]);
+					ra.read(ipbuf, 0, b[1]);
+					int rz = Util.decompress(ipbuf, 0, b[1], opbuf, 0, blksize);
+					nf.write(opbuf,0,rz);
+				}
 			}
 
+			ra.close();
 			ra = nf;
+			sliceable = true;
+			compressed = true;
 		}
 		ra.seek(0);
 
@@ -310,6 +988,159 @@ final class CCFNodeState
 		}
 	}
 
+	// decompress full size blocks in parallel straight into place.
+	// returns null if a block did not fill its place.
+	private BufferedFile decompressBlocks(final Vector blocks, final int blksize, final int filelen)
+		throws IOException
+	{
+		final byte out[] = new byte[filelen];
+		final boolean full[] = { true };
+		new Blocks() {
+			void run(int blk) throws Exception {
+				int b[] = (int[])blocks.get(blk);
+				int off = blk * blksize;
+				int max = Math.min(blksize, filelen - off);
+				byte ipbuf[] = new byte[b[1]];
+				BufferedFile in = ra.view();
+				in.seek(b[0]);
+				in.read(ipbuf, 0, b[1]);
+				in.close();
+				try
+				{
+					int rz = Util.decompress(ipbuf, 0, b[1], out, off, max);
+					if (rz != max)
+					{
+						full[0] = false;
+					}
+					if (debug.debug(2))
+					{
+						int pct = 100-(int)((double)b[1]/(double)rz*100.0);
+						debug.log(2, "lzo blk="+blk+" in="+b[1]+" out="+rz+" comp="+pct+"%");
+					}
+				}
+				catch (ArrayIndexOutOfBoundsException ex)
+				{
+					full[0] = false;
+				}
+			}
+		}.runAll(blocks.size());
+		return full[0] ? new BufferedFile(out) : null;
+	}
+
+	// split an encoded image into blocks, compress them in parallel
+	// and lay them out in order behind the container header
+	private byte[] compressImage(final byte img[], final int len)
+		throws IOException
+	{
+		long time = Util.time();
+		int count = (len + BLOCK - 1) / BLOCK;
+		final byte blk[][] = new byte[count][];
+		final int blklen[] = new int[count];
+		new Blocks() {
+			void run(int i) {
+				int off = i * BLOCK;
+				int sz = Math.min(BLOCK, len - off);
+				blk[i] = new byte[sz + sz/16 + 67];
+				blklen[i] = Util.compress(img, off, sz, blk[i], 0);
+			}
+		}.runAll(count);
+		BufferedFile out = new BufferedFile();
+		out.putInt(BLOCK);
+		out.putInt(len);
+		out.putInt(MAGIC);
+		for (int i=0; i<count; i++)
+		{
+			out.putInt(blklen[i]);
+			out.write(blk[i], 0, blklen[i]);
+			while (out.getFilePointer() % 4 != 0)
+			{
+				out.write(0);
+			}
+		}
+		out.putInt(0);
+		debug.log(2, "lzo "+len+" to "+out.length()+" in "+count+" blocks "+(Util.time()-time)+" ms");
+		return out.toByteArray();
+	}
+
+	// runs numbered jobs on as many threads as there are processors
+	private abstract static class Blocks
+	{
+		private int next;
+		private int count;
+		private Exception error;
+
+		abstract void run(int blk) throws Exception;
+
+		void runAll(int count)
+			throws IOException
+		{
+			this.count = count;
+			int workers = Math.min(count, Runtime.getRuntime().availableProcessors());
+			Thread t[] = new Thread[Math.max(workers-1, 0)];
+			for (int i=0; i<t.length; i++)
+			{
+				t[i] = new Thread("ccf block "+i) {
+					public void run() {
+						work();
+					}
+				};
+				t[i].start();
+			}
+			work();
+			// the workers share the caller's buffers, so they are all
+			// waited for before an interrupt is reported
+			boolean interrupted = false;
+			for (int i=0; i<t.length; )
+			{
+				try
+				{
+					t[i].join();
+					i++;
+				}
+				catch (InterruptedException ex)
+				{
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+			{
+				throw new InterruptedIOException();
+			}
+			if (error != null)
+			{
+				throw new IOException(error.toString());
+			}
+		}
+
+		private void work()
+		{
+			try
+			{
+				int blk;
+				while ((blk = claim()) >= 0)
+				{
+					run(blk);
+				}
+			}
+			catch (Exception ex)
+			{
+				synchronized (this)
+				{
+					if (error == null)
+					{
+						error = ex;
+					}
+					next = count;
+				}
+			}
+		}
+
+		private synchronized int claim()
+		{
+			return next < count ? next++ : -1;
+		}
+	}
+
 	private void decode()
 	{
 		notify("Decoding CCF");
@@ -318,16 +1149,191 @@ final class CCFNodeState
 		ccflen = ra.length();
 		cache.clear();
 		strings.clear();
+		locations.clear();
+		stringsIndexed = false;
+		pending = new Vector();
+		// a parallel decode reads the panel lists first then
+		// hands the deferred panels out to the workers
+		boolean parallel = threads > 1 && !lazy;
+		lazy |= parallel;
 		head.decode(this);
 		processDeferred();
+		if (parallel)
+		{
+			decoding = new IntObjectMap();
+			decodeParallel();
+			decoding = null;
+			lazy = false;
+		}
 		head.buildTree(null);
 		setMeter(100);
-		ra.close();
+		if (pending.isEmpty())
+		{
+			ra.close();
+		}
+		else
+		{
+			// the buffer stays open until the last panel is read
+			debug.log(2, pending.size()+" panels deferred");
+			status = null;
+		}
 		//ra = null;
 		time = Util.time() - time;
 		debug.log(2, "*** ccf decoded in "+time+" ms ***");
 	}
 
+	// remember a panel whose children were skipped
+	void deferChildren(CCFPanel panel)
+	{
+		synchronized (pending)
+		{
+			pending.addElement(panel);
+			pending.notifyAll();
+		}
+	}
+
+	// decode all deferred panels on worker threads
+	private void decodeParallel()
+	{
+		int count = Math.min(threads, pending.size());
+		debug.log(2, "decoding "+pending.size()+" panels with "+count+" threads");
+		Thread worker[] = new Thread[count];
+		for (int i=0; i<count; i++)
+		{
+			final CCFNodeState zs = new CCFNodeState(this);
+			worker[i] = new Thread("ccf decode "+i) {
+				public void run() {
+					zs.drainPending();
+				}
+			};
+			worker[i].start();
+		}
+		// the workers read the buffer that decode() closes afterwards,
+		// so they are all waited for even when interrupted
+		boolean interrupted = false;
+		for (int i=0; i<count; )
+		{
+			try
+			{
+				worker[i].join();
+				i++;
+			}
+			catch (InterruptedException ex)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (error instanceof RuntimeException)
+		{
+			throw (RuntimeException)error;
+		}
+		if (error instanceof Error)
+		{
+			throw (Error)error;
+		}
+		if (error != null)
+		{
+			throw new RuntimeException(error.toString());
+		}
+	}
+
+	// worker loop. decoding a panel can defer more panels, so the
+	// queue is only done once it is empty and no worker is busy.
+	private void drainPending()
+	{
+		while (true)
+		{
+			CCFPanel panel = null;
+			synchronized (pending)
+			{
+				while (pending.isEmpty() && main.busy > 0)
+				{
+					try
+					{
+						pending.wait();
+					}
+					catch (InterruptedException ex)
+					{
+						return;
+					}
+				}
+				if (pending.isEmpty())
+				{
+					break;
+				}
+				panel = (CCFPanel)pending.remove(0);
+				main.busy++;
+			}
+			try
+			{
+				ra.seek(panel.childPos);
+				panel.decodeChildren(this);
+				panel.lazy = null;
+				processDeferred();
+			}
+			catch (Throwable ex)
+			{
+				debug.log(0, "panel '"+panel+"' decode failed: "+ex);
+				// the load fails, so the other workers stop early
+				synchronized (pending)
+				{
+					if (main.error == null)
+					{
+						main.error = ex;
+					}
+					pending.removeAllElements();
+				}
+			}
+			finally
+			{
+				synchronized (pending)
+				{
+					main.busy--;
+					pending.notifyAll();
+				}
+			}
+		}
+		ra.close();
+	}
+
+	// decode the children of a panel skipped by a lazy decode
+	synchronized void decodeChildren(CCFPanel panel)
+	{
+		if (!pending.removeElement(panel))
+		{
+			return;
+		}
+		long time = Util.time();
+		long oldpos = ra.getFilePointer();
+		ra.seek(panel.childPos);
+		panel.decodeChildren(this);
+		processDeferred();
+		panel.buildTree(panel.getParent());
+		panel.lazy = null;
+		ra.seek(oldpos);
+		if (pending.isEmpty())
+		{
+			ra.close();
+		}
+		if (debug.debug(3))
+		{
+			debug.log(3, "panel '"+panel+"' decoded in "+(Util.time()-time)+" ms");
+		}
+	}
+
+	// decode all panels still waiting on a lazy decode
+	synchronized void decodePending()
+	{
+		while (pending != null && !pending.isEmpty())
+		{
+			decodeChildren((CCFPanel)pending.firstElement());
+		}
+	}
+
 	// encode setup
 	void addField(Object o, Hashtable v)
 	{
@@ -368,27 +1374,96 @@ final class CCFNodeState
 		}
 	}
 
-	// store an object keyed by location
+	// store an object keyed by location. parallel decode workers
+	// share the maps so they lock around them. the main state never
+	// runs at the same time as its workers.
 	void putObjectAt(int location, CCFNode obj)
 	{
-		cache.put(new Integer(location), obj);
+		if (main != null)
+		{
+			synchronized (cache)
+			{
+				cache.put(location, obj);
+			}
+		}
+		else
+		{
+			cache.put(location, obj);
+		}
+	}
+
+	// store an object keyed by location unless one is already there.
+	// returns the object that holds the location. in a parallel decode
+	// the claimer calls claimDone() once the object is decoded.
+	CCFNode claimObjectAt(int location, CCFNode obj)
+	{
+		synchronized (cache)
+		{
+			CCFNode cur = getObjectAt(location);
+			if (cur != null)
+			{
+				return cur;
+			}
+			putObjectAt(location, obj);
+			if (decoding != null)
+			{
+				decoding.put(location, obj);
+			}
+			return obj;
+		}
+	}
+
+	// a node claimed at a location has been decoded, so its length
+	// is known to workers waiting to skip past it
+	void claimDone(int location)
+	{
+		if (decoding != null)
+		{
+			synchronized (cache)
+			{
+				decoding.remove(location);
+				cache.notifyAll();
+			}
+		}
+	}
+
+	// wait for the worker that claimed a location to decode its node
+	void awaitDecoded(int location)
+	{
+		if (decoding == null)
+		{
+			return;
+		}
+		synchronized (cache)
+		{
+			while (decoding.get(location) != null)
+			{
+				try
+				{
+					cache.wait();
+				}
+				catch (InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
 	}
 
 	void removeObjectAt(int location)
 	{
-		cache.remove(new Integer(location));
+		synchronized (cache)
+		{
+			cache.remove(location);
+		}
 	}
 
 	CCFNode[] getOrderedNodes()
 	{
 		Vector v = new Vector();
 		v.add(head);
-		for (Enumeration e = cache.keys(); e.hasMoreElements(); )
-		{
-			Integer k = (Integer)e.nextElement();
-			CCFNode n = (CCFNode)cache.get(k);
-			v.add(n);
-		}
+		v.addAll(Arrays.asList(cache.values()));
 		CCFNode n[] = new CCFNode[v.size()];
 		v.copyInto(n);
 		Arrays.sort(n, new Comparator() {
@@ -410,19 +1485,43 @@ final class CCFNodeState
 	// retrieve an object by location
 	CCFNode getObjectAt(int location)
 	{
-		return (CCFNode)cache.get(new Integer(location));
+		if (main != null)
+		{
+			synchronized (cache)
+			{
+				return (CCFNode)cache.get(location);
+			}
+		}
+		return (CCFNode)cache.get(location);
 	}
 
 	// store a string by location
 	void putLocationString(String str, int loc)
 	{
-		strings.put(new Integer(loc), str);
+		if (main != null)
+		{
+			synchronized (strings)
+			{
+				strings.put(loc, str);
+			}
+		}
+		else
+		{
+			strings.put(loc, str);
+		}
 	}
 
 	// retrieve a string by location
 	String getLocationString(int loc)
 	{
-		return (String)strings.get(new Integer(loc));
+		if (main != null)
+		{
+			synchronized (strings)
+			{
+				return (String)strings.get(loc);
+			}
+		}
+		return (String)strings.get(loc);
 	}
 
 	// retrieve a location given a string
@@ -432,14 +1531,22 @@ final class CCFNodeState
 		{
 			return 0;
 		}
-		Long l = (Long)strings.get(str);
-		return l != null ? l.longValue() : 0;
+		int loc = locations.get(str, -1);
+		if (loc < 0 && appended != null)
+		{
+			// a patch places new strings at the end of the file
+			loc = appendPos;
+			putStringLocation(appendPos, str);
+			appended.add(str);
+			appendPos += str.length()+1;
+		}
+		return loc >= 0 ? loc : 0;
 	}
 
 	// store a location with the string as key
 	void putStringLocation(long location, String str)
 	{
-		strings.put(str, new Long(location));
+		locations.put(str, (int)location);
 	}
 
 	private int getCRC(String file, int pos)
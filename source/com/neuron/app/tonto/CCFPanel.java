@@ -40,6 +40,15 @@ public class CCFPanel
 		{ "Z+", "child", "count1" },
 	};
 
+	// children are left in the file until first accessed
+	private final static String[][] decodeLazy = new String[][]
+	{
+		{ "Z*", "next" },
+		{ "N4", "namePos" },
+		{ "N1", "count1" },
+		{ "N1", "count2" },
+	};
+
 	final static int HIDDEN = 0x80000000;
 	final static int NAME_MASK = 0x7fffffff;
 
@@ -67,6 +76,7 @@ public class CCFPanel
 
 	CCFNode getClone(boolean list)
 	{
+		loadChildren();
 		CCFPanel p = (CCFPanel)super.getClone();
 		if (list)
 		{
@@ -86,7 +96,7 @@ public class CCFPanel
 
 	void delete(CCFNode find)
 	{
-		setChildren(delete(child, find));
+		setChildren(delete(getChildren(), find));
 	}
 
 	CCFChild getPrevious(CCFChild node)
@@ -197,6 +207,11 @@ public class CCFPanel
 	boolean   hidden;
 	String    name;
 
+	// set while children are undecoded. cleared by the decoder only once
+	// the children are built, so a thread that sees it cleared sees them.
+	transient volatile CCFNodeState lazy;
+	transient int childPos;
+
 	// ---( public API )---
 	/**
 	 * Return this panel's name.
@@ -212,6 +227,7 @@ public class CCFPanel
 	public void setName(String name)
 	{
 		this.name = name;
+		renamed();
 	}
 
 	public IListElement getNextElement()
@@ -237,6 +253,7 @@ public class CCFPanel
 			next.setParent(getParent());
 		}
 		this.next = next;
+		treeChanged();
 	}
 
 	public boolean isTemplate()
@@ -261,6 +278,7 @@ public class CCFPanel
 			next = panel;
 		}
 		panel.buildTree(getParent());
+		treeChanged();
 	}
 
 	/**
@@ -302,14 +320,24 @@ public class CCFPanel
 	 */
 	public CCFChild[] getChildren()
 	{
+		loadChildren();
 		return child;
 	}
 
 	public boolean hasChildren()
 	{
+		loadChildren();
 		return child != null && child.length > 0;
 	}
 
+	/**
+	 * Returns true if the children have not yet been read from the file.
+	 */
+	public boolean isLazy()
+	{
+		return lazy != null;
+	}
+
 	public CCFPanel getTemplate()
 	{
 		CCFHeader h = getHeader();
@@ -331,10 +359,12 @@ public class CCFPanel
 	 */
 	public void setChildren(CCFChild c[])
 	{
+		loadChildren();
 		child = c;
 		count1 = c != null ? c.length : 0;
 		count2 = count1;
 		buildTree(getParent());
+		nodeChanged();
 	}
 
 	/**
@@ -342,7 +372,7 @@ public class CCFPanel
 	 */
 	public void addChild(CCFChild c)
 	{
-		setChildren(add(child, c));
+		setChildren(add(getChildren(), c));
 	}
 
 	/**
@@ -350,7 +380,7 @@ public class CCFPanel
 	 */
 	public void addButton(CCFButton b)
 	{
-		setChildren(add(child, b.getChildWrapper()));
+		setChildren(add(getChildren(), b.getChildWrapper()));
 	}
 
 	/**
@@ -358,7 +388,7 @@ public class CCFPanel
 	 */
 	public void addFrame(CCFFrame f)
 	{
-		setChildren(add(child, f.getChildWrapper()));
+		setChildren(add(getChildren(), f.getChildWrapper()));
 	}
 
 	/**
@@ -389,6 +419,7 @@ public class CCFPanel
 	CCFButton[] getButtons()
 	{
 		Vector v = new Vector();
+		CCFChild child[] = getChildren();
 		if (child != null)
 		{
 			for (int i=0; i<child.length; i++)
@@ -440,7 +471,7 @@ public class CCFPanel
 	{
 		return "Panel,"+(
 			name != null ? (hidden ? "("+name+")" : name) : ""
-		)+","+(child != null ? child.length : 0);
+		)+","+(child != null ? child.length : lazy != null ? count1 : 0);
 	}
 
 	// ---( abstract methods )---
@@ -459,10 +490,16 @@ public class CCFPanel
 
 	void preDecode(CCFNodeState zs)
 	{
+		lazy = zs.isLazy() ? zs : null;
 	}
 
 	void postDecode(CCFNodeState zs)
 	{
+		if (lazy != null)
+		{
+			childPos = (int)zs.buffer().getFilePointer();
+			zs.deferChildren(this);
+		}
 		if (count1 != count2)
 		{
 			log(0,"panel: child count mismatch "+count1+" != "+count2, zs);
@@ -486,9 +523,38 @@ public class CCFPanel
 
 	String[][] getDecodeTable()
 	{
-		return decode;
+		return lazy != null ? decodeLazy : decode;
 	}	
 
+	void encodePrep(CCFNodeState zs, Hashtable dst)
+	{
+		loadChildren();
+		super.encodePrep(zs, dst);
+	}
+
+	// read children skipped by a lazy decode
+	private void loadChildren()
+	{
+		CCFNodeState zs = lazy;
+		if (zs != null)
+		{
+			zs.decodeChildren(this);
+		}
+	}
+
+	// called by CCFNodeState with the buffer positioned at childPos
+	void decodeChildren(CCFNodeState zs)
+	{
+		CCFChild c[] = new CCFChild[count1];
+		for (int i=0; i<c.length; i++)
+		{
+			c[i] = (CCFChild)readItem(zs, CCFChild.class);
+			c[i].setFixedPosition(true);
+		}
+		child = c;
+		setFileLength((int)zs.buffer().getFilePointer() - getFilePosition());
+	}
+
 	void buildTree(CCFNode parent)
 	{
 		setParent(parent);
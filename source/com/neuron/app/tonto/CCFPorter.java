@@ -378,7 +378,7 @@ public class CCFPorter
 		incrPos(panel);
 		emit(z, "<panel "+atstr("name",safe(panel.name))+(panel.isHidden() ? " hidden" : "")+">");
 		pushPos();
-		emit(z+1, panel.child);
+		emit(z+1, panel.getChildren());
 		popPos();
 		emit(z, "</panel>");
 		emit(z, panel.next);
@@ -0,0 +1,615 @@
+/*
+ * Copyright (c) 2001-2002, Stewart Allen <stewart@neuron.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the Artistic License.
+ */
+
+package com.neuron.app.tonto;
+
+// ---( imports )---
+import java.util.Stack;
+import java.util.Vector;
+import java.util.Hashtable;
+
+/**
+ * A compiled path query that selects nodes from a CCF. A query is a
+ * list of steps separated by '/' (children) or '//' (any depth below).
+ * A step names a node type: device, panel, frame, button, action,
+ * ircode or '*'. Each step may be followed by tests in brackets:
+ * <pre>
+ *   [name=Main]      name is exactly Main
+ *   [name!=Main]     name is not Main
+ *   [name~main]      name contains main, ignoring case
+ *   [id=...]         button ID tag
+ *   [code~006d]      IR code hex, spaces ignored
+ *   [type=delay]     action type
+ *   [action=delay]   button or device has an action of this type
+ * </pre>
+ * Action types are ircode, button, jump, delay, key, device, timer and
+ * beep. Values may be quoted with "". For example:
+ * <pre>
+ *   device[name=TV]/panel//button[action=delay]
+ *   //button[name~play]/action[type=ircode]/ircode
+ * </pre>
+ * Steps testing a name, ID tag or IR hex start from the CCF's name
+ * and search indexes instead of reading every node. An IR code can be
+ * sent by many actions but only knows one of them, so an ircode step
+ * starts from the index only when it searches the whole CCF, as in
+ * //ircode[code~006d]. Below another step it reads the nodes there.
+ */
+public final class CCFQuery
+{
+	// ---( static fields )---
+	private final static String KINDS[] = {
+		"device", "panel", "frame", "button", "action", "ircode", "*"
+	};
+	private final static int TYPES[] = {
+		CCFWalker.DEVICE, CCFWalker.PANEL, CCFWalker.FRAME, CCFWalker.BUTTON,
+		CCFWalker.ACTION, CCFWalker.IR_CODE, CCFWalker.ALL
+	};
+	// indexed by CCFAction.ACT_*
+	private final static String ACTIONS[] = {
+		"dummy", "ircode", "button", "jump", "delay", "key", "device", "timer", "beep", "jump"
+	};
+	// types found by the search index whose parent leads back to the
+	// nodes they were found under. ir codes are also indexed but may
+	// be shared, so they only start from the index at the top.
+	private final static int INDEXED =
+		CCFWalker.DEVICE | CCFWalker.PANEL | CCFWalker.FRAME | CCFWalker.BUTTON;
+
+	private final static int BELOW_PANEL =
+		CCFWalker.FRAME | CCFWalker.BUTTON | CCFWalker.ACTION | CCFWalker.IR_CODE;
+
+	private final static int NAME   = 0;
+	private final static int ID     = 1;
+	private final static int CODE   = 2;
+	private final static int TYPE   = 3;
+	private final static int ACTION = 4;
+	private final static String KEYS[] = { "name", "id", "code", "type", "action" };
+
+	private final static int EQ   = 0;
+	private final static int NE   = 1;
+	private final static int LIKE = 2;
+
+	// ---( static methods )---
+	/**
+	 * Compile a query.
+	 *
+	 * @param query query text
+	 * @throws IllegalArgumentException if the query is malformed
+	 */
+	public static CCFQuery compile(String query)
+	{
+		return new CCFQuery(query);
+	}
+
+	// ---( constructors )---
+	private CCFQuery(String query)
+	{
+		this.text = query;
+		Vector v = new Vector();
+		int pos = 0;
+		int len = query.length();
+		boolean deep = false;
+		if (query.startsWith("//"))
+		{
+			deep = true;
+			pos = 2;
+		}
+		else
+		if (query.startsWith("/"))
+		{
+			pos = 1;
+		}
+		while (true)
+		{
+			Step s = new Step();
+			s.deep = deep;
+			int end = pos;
+			while (end < len && "/[".indexOf(query.charAt(end)) < 0)
+			{
+				end++;
+			}
+			String kind = query.substring(pos, end).trim();
+			s.type = lookup(KINDS, kind, "node type");
+			s.kind = TYPES[s.type];
+			pos = end;
+			Vector tests = new Vector();
+			while (pos < len && query.charAt(pos) == '[')
+			{
+				int close = closing(query, pos);
+				tests.addElement(new Test(query.substring(pos+1, close)));
+				pos = close + 1;
+				while (pos < len && query.charAt(pos) == ' ')
+				{
+					pos++;
+				}
+			}
+			s.tests = new Test[tests.size()];
+			tests.copyInto(s.tests);
+			v.addElement(s);
+			if (pos >= len)
+			{
+				break;
+			}
+			if (query.charAt(pos) != '/')
+			{
+				throw error("expected '/' at "+pos);
+			}
+			deep = query.startsWith("//", pos);
+			pos += deep ? 2 : 1;
+		}
+		steps = new Step[v.size()];
+		v.copyInto(steps);
+	}
+
+	// ---( instance fields )---
+	private String text;
+	private Step steps[];
+
+	// ---( instance methods )---
+	/**
+	 * Return the nodes matched by this query in the order found.
+	 * Actions are returned as the typed Action classes.
+	 *
+	 * @param ccf CCF to query
+	 */
+	public CCFNode[] select(CCF ccf)
+	{
+		CCFHeader head = ccf.header();
+		Vector cur = new Vector();
+		cur.addElement(head);
+		for (int i=0; i<steps.length && cur.size() > 0; i++)
+		{
+			cur = steps[i].apply(ccf, head, cur);
+		}
+		CCFNode r[] = new CCFNode[cur.size()];
+		cur.copyInto(r);
+		return r;
+	}
+
+	public String toString()
+	{
+		return text;
+	}
+
+	// ---( utility methods )---
+	private static int lookup(String list[], String val, String what)
+	{
+		for (int i=0; i<list.length; i++)
+		{
+			if (list[i].equals(val))
+			{
+				return i;
+			}
+		}
+		throw error("unknown "+what+" '"+val+"'");
+	}
+
+	// position of the ']' closing the test opened at pos
+	private static int closing(String q, int pos)
+	{
+		boolean quote = false;
+		for (int i=pos+1; i<q.length(); i++)
+		{
+			char ch = q.charAt(i);
+			if (ch == '"')
+			{
+				quote = !quote;
+			}
+			else
+			if (ch == ']' && !quote)
+			{
+				return i;
+			}
+		}
+		throw error("missing ']' after "+pos);
+	}
+
+	private static IllegalArgumentException error(String msg)
+	{
+		return new IllegalArgumentException("query: "+msg);
+	}
+
+	private static int typeOf(CCFNode node)
+	{
+		if (node instanceof CCFDevice)
+		{
+			return CCFWalker.DEVICE;
+		}
+		if (node instanceof CCFPanel)
+		{
+			return CCFWalker.PANEL;
+		}
+		if (node instanceof CCFFrame)
+		{
+			return CCFWalker.FRAME;
+		}
+		if (node instanceof CCFButton)
+		{
+			return CCFWalker.BUTTON;
+		}
+		if (node instanceof CCFAction)
+		{
+			return CCFWalker.ACTION;
+		}
+		if (node instanceof CCFIRCode)
+		{
+			return CCFWalker.IR_CODE;
+		}
+		return 0;
+	}
+
+	// node types that can be found below node
+	private static int under(CCFNode node)
+	{
+		switch (typeOf(node))
+		{
+			case CCFWalker.DEVICE:
+				return CCFWalker.PANEL | BELOW_PANEL;
+			case CCFWalker.PANEL:
+			case CCFWalker.FRAME:
+				return BELOW_PANEL;
+			case CCFWalker.BUTTON:
+				return CCFWalker.ACTION | CCFWalker.IR_CODE;
+			case CCFWalker.ACTION:
+				return CCFWalker.IR_CODE;
+			case CCFWalker.IR_CODE:
+				return 0;
+		}
+		return CCFWalker.ALL;
+	}
+
+	// nodes one step below node
+	private static void children(CCFNode node, Vector out)
+	{
+		if (node instanceof CCFHeader)
+		{
+			CCFHeader h = (CCFHeader)node;
+			CCFDevice d[] = h.getNameIndex().getDevices();
+			for (int i=0; i<d.length; i++)
+			{
+				out.addElement(d[i]);
+			}
+			for (CCFPanel p = h.macroPanel; p != null; p = p.getNextPanel())
+			{
+				out.addElement(p);
+			}
+		}
+		else
+		if (node instanceof CCFDevice)
+		{
+			CCFDevice d = (CCFDevice)node;
+			for (CCFPanel p = d.getFirstPanel(); p != null; p = p.getNextPanel())
+			{
+				out.addElement(p);
+			}
+			CCFActionList al[] = CCFRefIndex.lists(d);
+			for (int i=0; i<al.length; i++)
+			{
+				actions(al[i], out);
+			}
+		}
+		else
+		if (node instanceof IChildContainer)
+		{
+			CCFChild c[] = ((IChildContainer)node).getChildren();
+			for (int i=0; c != null && i<c.length; i++)
+			{
+				out.addElement(c[i].child);
+			}
+		}
+		else
+		if (node instanceof CCFButton)
+		{
+			actions(((CCFButton)node).actions, out);
+		}
+		else
+		if (node instanceof CCFAction)
+		{
+			CCFAction a = (CCFAction)node;
+			if (a.action2 instanceof CCFIRCode)
+			{
+				out.addElement(a.action2);
+			}
+		}
+	}
+
+	private static void actions(CCFActionList al, Vector out)
+	{
+		if (al != null && al.action != null)
+		{
+			CCFAction a[] = al.getActions();
+			for (int i=0; i<a.length; i++)
+			{
+				out.addElement(a[i]);
+			}
+		}
+	}
+
+	// the node one step above node as children() sees it
+	private static CCFNode parent(CCFNode node)
+	{
+		CCFNode p = node.getParent();
+		return p instanceof CCFChild ? p.getParent() : p;
+	}
+
+	private static String strip(String s)
+	{
+		StringBuffer sb = new StringBuffer(s.length());
+		for (int i=0; i<s.length(); i++)
+		{
+			if (!Character.isWhitespace(s.charAt(i)))
+			{
+				sb.append(Character.toLowerCase(s.charAt(i)));
+			}
+		}
+		return sb.toString();
+	}
+
+	// ---( inner classes )---
+	private static class Step
+	{
+		boolean deep;
+		int type;
+		int kind;
+		Test tests[];
+
+		Vector apply(CCF ccf, CCFHeader head, Vector from)
+		{
+			Vector found = seed(ccf, head, from);
+			Vector out = new Vector();
+			Hashtable seen = new Hashtable();
+			if (found != null)
+			{
+				Hashtable in = new Hashtable();
+				for (int i=0; i<from.size(); i++)
+				{
+					in.put(from.get(i), from.get(i));
+				}
+				for (int i=0; i<found.size(); i++)
+				{
+					CCFNode n = (CCFNode)found.get(i);
+					if (below(n, in) && matches(n) && seen.put(n, n) == null)
+					{
+						out.addElement(n);
+					}
+				}
+				return out;
+			}
+			Stack stack = new Stack();
+			Vector sub = new Vector();
+			for (int i=0; i<from.size(); i++)
+			{
+				push(stack, (CCFNode)from.get(i), sub);
+				while (!stack.empty())
+				{
+					CCFNode n = (CCFNode)stack.pop();
+					if (matches(n) && seen.put(n, n) == null)
+					{
+						out.addElement(n);
+					}
+					if (deep && (under(n) & kind) != 0)
+					{
+						push(stack, n, sub);
+					}
+				}
+			}
+			return out;
+		}
+
+		// push the children of node so they pop in tree order
+		private static void push(Stack stack, CCFNode node, Vector tmp)
+		{
+			tmp.clear();
+			children(node, tmp);
+			for (int i=tmp.size()-1; i>=0; i--)
+			{
+				stack.push(tmp.get(i));
+			}
+		}
+
+		// candidates from an index, or null to read the tree
+		private Vector seed(CCF ccf, CCFHeader head, Vector from)
+		{
+			boolean fromTop = from.size() == 1 && from.get(0) == head;
+			if ((kind & ~INDEXED) != 0 && !(deep && fromTop))
+			{
+				return null;
+			}
+			for (int i=0; i<tests.length; i++)
+			{
+				Test t = tests[i];
+				if (t.op == NE || t.value.length() == 0 ||
+					(t.key != NAME && t.key != ID && t.key != CODE))
+				{
+					continue;
+				}
+				Vector v = new Vector();
+				if (t.key == NAME && t.op == EQ && kind == CCFWalker.DEVICE)
+				{
+					add(v, head.getNameIndex().getDevices(t.value));
+				}
+				else
+				if (t.key == NAME && t.op == EQ && kind == CCFWalker.PANEL)
+				{
+					add(v, head.getNameIndex().getPanels(t.value));
+					for (CCFPanel p = head.macroPanel; p != null; p = p.getNextPanel())
+					{
+						v.addElement(p);
+					}
+				}
+				else
+				{
+					add(v, ccf.search(t.value, kind));
+				}
+				return v;
+			}
+			return null;
+		}
+
+		private static void add(Vector v, CCFNode n[])
+		{
+			for (int i=0; i<n.length; i++)
+			{
+				v.addElement(n[i]);
+			}
+		}
+
+		// node is a child, or with deep any descendant, of a node in set
+		private boolean below(CCFNode node, Hashtable set)
+		{
+			if (deep && set.size() == 1 && set.get(node.getHeader()) != null)
+			{
+				return true;
+			}
+			for (CCFNode p = parent(node); p != null; p = deep ? parent(p) : null)
+			{
+				if (set.get(p) != null)
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean matches(CCFNode node)
+		{
+			if ((typeOf(node) & kind) == 0)
+			{
+				return false;
+			}
+			for (int i=0; i<tests.length; i++)
+			{
+				if (!tests[i].test(node))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static class Test
+	{
+		int key;
+		int op;
+		String value;
+		String lower;
+
+		Test(String spec)
+		{
+			int at = -1;
+			for (int i=0; i<spec.length() && at < 0; i++)
+			{
+				if ("=!~".indexOf(spec.charAt(i)) >= 0)
+				{
+					at = i;
+				}
+			}
+			if (at < 0)
+			{
+				throw error("expected key=value in ["+spec+"]");
+			}
+			key = lookup(KEYS, spec.substring(0, at).trim(), "test");
+			int vpos = at + 1;
+			switch (spec.charAt(at))
+			{
+				case '=': op = EQ; break;
+				case '~': op = LIKE; break;
+				default:
+					if (!spec.startsWith("!=", at))
+					{
+						throw error("expected != in ["+spec+"]");
+					}
+					op = NE;
+					vpos++;
+					break;
+			}
+			value = spec.substring(vpos).trim();
+			if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+			{
+				value = value.substring(1, value.length()-1);
+			}
+			if (key == CODE)
+			{
+				value = strip(value);
+			}
+			if (key == TYPE || key == ACTION)
+			{
+				lookup(ACTIONS, value, "action type");
+			}
+			lower = value.toLowerCase();
+		}
+
+		boolean test(CCFNode node)
+		{
+			switch (key)
+			{
+				case NAME:
+					return compare(
+						node instanceof INamed ? ((INamed)node).getName() :
+						node instanceof CCFIRCode ? ((CCFIRCode)node).getName() : null);
+				case ID:
+					return compare(node instanceof CCFButton ? ((CCFButton)node).getIDTag() : null);
+				case CODE:
+					return compare(node instanceof CCFIRCode ? strip(((CCFIRCode)node).getCode()) : null);
+				case TYPE:
+					return compare(node instanceof CCFAction ? name((CCFAction)node) : null);
+				case ACTION:
+					return hasAction(node) != (op == NE);
+			}
+			return false;
+		}
+
+		private boolean compare(String s)
+		{
+			if (s == null)
+			{
+				return op == NE;
+			}
+			switch (op)
+			{
+				case EQ: return s.equals(value);
+				case NE: return !s.equals(value);
+				default: return s.toLowerCase().indexOf(lower) >= 0;
+			}
+		}
+
+		private boolean hasAction(CCFNode node)
+		{
+			CCFActionList al[];
+			if (node instanceof CCFButton)
+			{
+				al = new CCFActionList[] { ((CCFButton)node).actions };
+			}
+			else
+			if (node instanceof CCFDevice)
+			{
+				al = CCFRefIndex.lists((CCFDevice)node);
+			}
+			else
+			{
+				return false;
+			}
+			for (int i=0; i<al.length; i++)
+			{
+				for (int j=0; al[i] != null && al[i].action != null && j<al[i].action.length; j++)
+				{
+					if (al[i].action[j] != null && value.equals(name(al[i].action[j])))
+					{
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		private static String name(CCFAction a)
+		{
+			int t = a.getActionType();
+			return t >= 0 && t < ACTIONS.length ? ACTIONS[t] : null;
+		}
+	}
+}
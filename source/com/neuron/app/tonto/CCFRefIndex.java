@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2001-2002, Stewart Allen <stewart@neuron.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the Artistic License.
+ */
+
+package com.neuron.app.tonto;
+
+// ---( imports )---
+import java.util.*;
+
+/**
+ * Reverse index of the references in a CCF. Action lists are indexed
+ * by the devices, panels, buttons and IR codes their actions target.
+ * Buttons, frames and devices are indexed by the icons they show.
+ * Nodes report in place changes through update(). Devices or panels
+ * being added or moved drop the index and it is rebuilt on the next
+ * lookup. Entries for nodes that were removed or replaced are left
+ * behind and skipped when looked up.
+ */
+final class CCFRefIndex
+{
+	// ---( constructors )---
+	CCFRefIndex(CCFHeader head)
+	{
+		this.head = head;
+	}
+
+	// ---( instance fields )---
+	private CCFHeader head;
+	private boolean valid;
+	private Hashtable users = new Hashtable();	// key=target val=Vector of holders
+	private Hashtable uses = new Hashtable();	// key=holder val=CCFNode[] targets
+	private Hashtable owner = new Hashtable();	// key=action list val=button or device
+
+	// ---( instance methods )---
+	synchronized void invalidate()
+	{
+		valid = false;
+	}
+
+	/**
+	 * Returns the action lists with an action that targets this node
+	 * and the buttons, frames and devices that show it as an icon.
+	 */
+	synchronized CCFNode[] getUsers(CCFNode target)
+	{
+		if (!valid)
+		{
+			rebuild();
+		}
+		Vector v = (Vector)users.get(target);
+		if (v == null)
+		{
+			return new CCFNode[0];
+		}
+		Vector found = new Vector(v.size());
+		for (int i=0; i<v.size(); i++)
+		{
+			CCFNode n = (CCFNode)v.get(i);
+			if (holds(n, target) && attached(head, owner, n))
+			{
+				found.addElement(n);
+			}
+		}
+		CCFNode r[] = new CCFNode[found.size()];
+		found.copyInto(r);
+		return r;
+	}
+
+	/**
+	 * Read the references held by this node and the nodes below it
+	 * again. Devices are read without their panels.
+	 */
+	synchronized void update(CCFNode node)
+	{
+		if (!valid)
+		{
+			return;
+		}
+		Vector v = new Vector();
+		collect(node, v, owner);
+		for (int i=0; i<v.size(); i++)
+		{
+			record((CCFNode)v.get(i));
+		}
+	}
+
+	private void rebuild()
+	{
+		users.clear();
+		uses.clear();
+		owner.clear();
+		Vector v = new Vector();
+		CCFDevice root[] = { head.firstHome, head.firstDevice, head.firstMacro };
+		for (int i=0; i<root.length; i++)
+		{
+			for (CCFDevice d = root[i]; d != null; d = d.getNextDevice())
+			{
+				collect(d, v, owner);
+				for (CCFPanel p = d.getFirstPanel(); p != null; p = p.getNextPanel())
+				{
+					collect(p, v, owner);
+				}
+			}
+		}
+		for (CCFPanel p = head.macroPanel; p != null; p = p.getNextPanel())
+		{
+			collect(p, v, owner);
+		}
+		for (int i=0; i<v.size(); i++)
+		{
+			record((CCFNode)v.get(i));
+		}
+		valid = true;
+	}
+
+	// devices, buttons, frames and action lists at or below node. the
+	// button or device holding each action list is put in owner.
+	static void collect(CCFNode node, Vector v, Hashtable owner)
+	{
+		if (node instanceof CCFDevice)
+		{
+			CCFDevice d = (CCFDevice)node;
+			v.addElement(d);
+			CCFActionList al[] = lists(d);
+			for (int i=0; i<al.length; i++)
+			{
+				if (al[i] != null)
+				{
+					owner.put(al[i], d);
+					v.addElement(al[i]);
+				}
+			}
+		}
+		else
+		if (node instanceof IChildContainer)
+		{
+			if (node instanceof CCFFrame)
+			{
+				v.addElement(node);
+			}
+			CCFChild c[] = ((IChildContainer)node).getChildren();
+			for (int i=0; c != null && i<c.length; i++)
+			{
+				collect(c[i], v, owner);
+			}
+		}
+		else
+		if (node instanceof CCFChild)
+		{
+			collect(((CCFChild)node).child, v, owner);
+		}
+		else
+		if (node instanceof CCFButton)
+		{
+			CCFButton b = (CCFButton)node;
+			v.addElement(b);
+			if (b.actions != null)
+			{
+				owner.put(b.actions, b);
+				v.addElement(b.actions);
+			}
+		}
+		else
+		if (node instanceof CCFActionList)
+		{
+			v.addElement(node);
+		}
+	}
+
+	private void record(CCFNode holder)
+	{
+		unrecord(holder);
+		CCFNode t[] = targets(holder);
+		if (t.length == 0)
+		{
+			return;
+		}
+		uses.put(holder, t);
+		for (int i=0; i<t.length; i++)
+		{
+			Vector v = (Vector)users.get(t[i]);
+			if (v == null)
+			{
+				v = new Vector(2);
+				users.put(t[i], v);
+			}
+			if (!v.contains(holder))
+			{
+				v.addElement(holder);
+			}
+		}
+	}
+
+	private void unrecord(CCFNode holder)
+	{
+		CCFNode t[] = (CCFNode[])uses.remove(holder);
+		for (int i=0; t != null && i<t.length; i++)
+		{
+			Vector v = (Vector)users.get(t[i]);
+			if (v != null)
+			{
+				v.removeElement(holder);
+				if (v.size() == 0)
+				{
+					users.remove(t[i]);
+				}
+			}
+		}
+	}
+
+	private static CCFNode[] targets(CCFNode holder)
+	{
+		Vector v = new Vector();
+		if (holder instanceof CCFActionList)
+		{
+			CCFActionList al = (CCFActionList)holder;
+			for (int i=0; al.action != null && i<al.action.length; i++)
+			{
+				CCFAction a = al.action[i];
+				if (a != null)
+				{
+					add(v, a.action1);
+					add(v, a.action2);
+				}
+			}
+		}
+		else
+		if (holder instanceof CCFButton)
+		{
+			CCFButton b = (CCFButton)holder;
+			add(v, b.iconIU);
+			add(v, b.iconIS);
+			add(v, b.iconAU);
+			add(v, b.iconAS);
+		}
+		else
+		if (holder instanceof CCFFrame)
+		{
+			add(v, ((CCFFrame)holder).icon);
+		}
+		else
+		if (holder instanceof CCFDevice)
+		{
+			CCFDevice d = (CCFDevice)holder;
+			add(v, d.iconUnselected);
+			add(v, d.iconSelected);
+		}
+		CCFNode t[] = new CCFNode[v.size()];
+		v.copyInto(t);
+		return t;
+	}
+
+	private static void add(Vector v, CCFNode n)
+	{
+		if (n != null && !v.contains(n))
+		{
+			v.addElement(n);
+		}
+	}
+
+	// the holder still refers to the target
+	private static boolean holds(CCFNode holder, CCFNode target)
+	{
+		CCFNode t[] = targets(holder);
+		for (int i=0; i<t.length; i++)
+		{
+			if (t[i] == target)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// the node can still be reached from the header. action lists
+	// are looked up in owner as not all of them have a parent.
+	static boolean attached(CCFHeader head, Hashtable owner, CCFNode node)
+	{
+		return attached(head, owner, node, null);
+	}
+
+	// as above, remembering the answer for each node passed in memo
+	static boolean attached(CCFHeader head, Hashtable owner, CCFNode node, Hashtable memo)
+	{
+		if (node == head)
+		{
+			return true;
+		}
+		Boolean known = memo != null ? (Boolean)memo.get(node) : null;
+		if (known != null)
+		{
+			return known.booleanValue();
+		}
+		CCFNode up = node instanceof CCFActionList ?
+			(CCFNode)owner.get(node) : node.getParent();
+		boolean ok = up != null && contains(head, up, node) &&
+			attached(head, owner, up, memo);
+		if (memo != null)
+		{
+			memo.put(node, ok ? Boolean.TRUE : Boolean.FALSE);
+		}
+		return ok;
+	}
+
+	private static boolean contains(CCFHeader head, CCFNode parent, CCFNode node)
+	{
+		if (parent instanceof CCFChild)
+		{
+			return ((CCFChild)parent).child == node;
+		}
+		if (parent instanceof CCFButton)
+		{
+			return ((CCFButton)parent).actions == node;
+		}
+		if (parent instanceof IChildContainer)
+		{
+			CCFChild c[] = ((IChildContainer)parent).getChildren();
+			for (int i=0; c != null && i<c.length; i++)
+			{
+				if (c[i] == node)
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+		if (parent instanceof CCFDevice)
+		{
+			CCFDevice d = (CCFDevice)parent;
+			if (node instanceof CCFPanel)
+			{
+				return inList(d.getFirstPanel(), node);
+			}
+			CCFActionList al[] = lists(d);
+			for (int i=0; i<al.length; i++)
+			{
+				if (al[i] == node)
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+		if (parent == head)
+		{
+			if (node instanceof CCFPanel)
+			{
+				return inList(head.macroPanel, node);
+			}
+			return
+				inList(head.firstHome, node) ||
+				inList(head.firstDevice, node) ||
+				inList(head.firstMacro, node);
+		}
+		return false;
+	}
+
+	private static boolean inList(IListElement e, CCFNode node)
+	{
+		for ( ; e != null; e = e.getNextElement())
+		{
+			if (e == node)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// the device action list and its hard key lists
+	static CCFActionList[] lists(CCFDevice d)
+	{
+		return new CCFActionList[] {
+			d.action, d.keyLt, d.keyRt, d.keyFarLt, d.keyFarRt,
+			d.keyVolDn, d.keyVolUp, d.keyChanDn, d.keyChanUp, d.keyMute,
+			d.keyM, d.keyReturn, d.keyEX,
+			d.arrowUp, d.arrowLt, d.arrowRt, d.arrowDn,
+		};
+	}
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2001-2002, Stewart Allen <stewart@neuron.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the Artistic License.
+ */
+
+package com.neuron.app.tonto;
+
+// ---( imports )---
+import java.util.*;
+
+/**
+ * Search index over the text in a CCF: device, panel and frame names,
+ * button labels and ID tags, IR code names and IR code hex. Every run
+ * of up to three characters in that text maps to the nodes containing
+ * it, so a search only checks the nodes holding the rarest three
+ * characters of what is searched for. Nodes report in place changes
+ * through update(). Devices or panels being added or moved drop the
+ * index and it is rebuilt on the next search. Nodes that were removed
+ * are skipped when found.
+ */
+final class CCFTextIndex
+{
+	// ---( static fields )---
+	private final static int GRAM = 3;
+
+	// ---( constructors )---
+	CCFTextIndex(CCFHeader head)
+	{
+		this.head = head;
+	}
+
+	// ---( instance fields )---
+	private CCFHeader head;
+	private boolean valid;
+	private Hashtable grams = new Hashtable();	// key=text run val=Vector of nodes
+	private Hashtable text = new Hashtable();	// key=node val=String[] indexed
+	private Hashtable owner = new Hashtable();	// key=action list val=button or device
+	private Hashtable codes = new Hashtable();	// key=ir code val=Vector of action lists
+
+	// ---( instance methods )---
+	synchronized void invalidate()
+	{
+		valid = false;
+	}
+
+	/**
+	 * Build the index now unless it is current.
+	 */
+	synchronized void prepare()
+	{
+		if (!valid)
+		{
+			rebuild();
+		}
+	}
+
+	/**
+	 * Returns the nodes of the given types whose text contains this,
+	 * ignoring case. Spaces are ignored when matching IR code hex.
+	 *
+	 * @param find text to look for
+	 * @param types CCFWalker node types to return
+	 */
+	synchronized CCFNode[] search(String find, int types)
+	{
+		String s = find.toLowerCase();
+		String hex = strip(s);
+		if (s.length() == 0)
+		{
+			return new CCFNode[0];
+		}
+		prepare();
+		Vector cand = candidates(s);
+		if (!hex.equals(s) && hex.length() > 0)
+		{
+			Vector more = candidates(hex);
+			Hashtable seen = new Hashtable();
+			for (int i=0; i<cand.size(); i++)
+			{
+				seen.put(cand.get(i), cand.get(i));
+			}
+			for (int i=0; i<more.size(); i++)
+			{
+				if (seen.put(more.get(i), more.get(i)) == null)
+				{
+					cand.addElement(more.get(i));
+				}
+			}
+		}
+		Vector found = new Vector();
+		Hashtable memo = new Hashtable();
+		for (int i=0; i<cand.size(); i++)
+		{
+			CCFNode n = (CCFNode)cand.get(i);
+			if ((typeOf(n) & types) != 0 && matches(n, s, hex) && attached(n, memo))
+			{
+				found.addElement(n);
+			}
+		}
+		CCFNode r[] = new CCFNode[found.size()];
+		found.copyInto(r);
+		return r;
+	}
+
+	/**
+	 * Read the text of this node and the nodes below it again.
+	 * Devices are read without their panels.
+	 */
+	synchronized void update(CCFNode node)
+	{
+		if (!valid)
+		{
+			return;
+		}
+		if (node instanceof CCFIRCode)
+		{
+			index(node);
+			return;
+		}
+		if (node instanceof CCFPanel)
+		{
+			index(node);
+		}
+		collect(node);
+	}
+
+	private void rebuild()
+	{
+		grams.clear();
+		text.clear();
+		owner.clear();
+		codes.clear();
+		CCFDevice root[] = { head.firstHome, head.firstDevice, head.firstMacro };
+		for (int i=0; i<root.length; i++)
+		{
+			for (CCFDevice d = root[i]; d != null; d = d.getNextDevice())
+			{
+				collect(d);
+				for (CCFPanel p = d.getFirstPanel(); p != null; p = p.getNextPanel())
+				{
+					index(p);
+					collect(p);
+				}
+			}
+		}
+		for (CCFPanel p = head.macroPanel; p != null; p = p.getNextPanel())
+		{
+			index(p);
+			collect(p);
+		}
+		valid = true;
+	}
+
+	// index the named nodes at or below node and the ir codes they send
+	private void collect(CCFNode node)
+	{
+		Vector v = new Vector();
+		CCFRefIndex.collect(node, v, owner);
+		for (int i=0; i<v.size(); i++)
+		{
+			CCFNode n = (CCFNode)v.get(i);
+			if (!(n instanceof CCFActionList))
+			{
+				index(n);
+				continue;
+			}
+			CCFAction a[] = ((CCFActionList)n).action;
+			for (int j=0; a != null && j<a.length; j++)
+			{
+				if (a[j] != null && a[j].action2 instanceof CCFIRCode)
+				{
+					Vector l = (Vector)codes.get(a[j].action2);
+					if (l == null)
+					{
+						l = new Vector(1);
+						codes.put(a[j].action2, l);
+					}
+					if (!l.contains(n))
+					{
+						l.addElement(n);
+					}
+					index(a[j].action2);
+				}
+			}
+		}
+	}
+
+	private void index(CCFNode node)
+	{
+		String now[] = fields(node);
+		String old[] = (String[])text.get(node);
+		if (old != null && Arrays.equals(old, now))
+		{
+			return;
+		}
+		if (old != null)
+		{
+			Hashtable seen = new Hashtable();
+			for (int i=0; i<old.length; i++)
+			{
+				for (Enumeration e = runs(old[i], seen); e.hasMoreElements(); )
+				{
+					Object g = e.nextElement();
+					Vector v = (Vector)grams.get(g);
+					if (v != null)
+					{
+						v.removeElement(node);
+						if (v.size() == 0)
+						{
+							grams.remove(g);
+						}
+					}
+				}
+			}
+		}
+		text.put(node, now);
+		Hashtable seen = new Hashtable();
+		for (int i=0; i<now.length; i++)
+		{
+			for (Enumeration e = runs(now[i], seen); e.hasMoreElements(); )
+			{
+				Object g = e.nextElement();
+				Vector v = (Vector)grams.get(g);
+				if (v == null)
+				{
+					v = new Vector(2);
+					grams.put(g, v);
+				}
+				v.addElement(node);
+			}
+		}
+	}
+
+	// runs of up to GRAM characters in s that are not in seen yet
+	private static Enumeration runs(String s, Hashtable seen)
+	{
+		Vector v = new Vector();
+		for (int i=0; s != null && i<s.length(); i++)
+		{
+			for (int len=1; len<=GRAM && i+len<=s.length(); len++)
+			{
+				String g = s.substring(i, i+len);
+				if (seen.put(g, g) == null)
+				{
+					v.addElement(g);
+				}
+			}
+		}
+		return v.elements();
+	}
+
+	// nodes holding every run in s, taken from the shortest list
+	private Vector candidates(String s)
+	{
+		Vector best = null;
+		int len = Math.min(s.length(), GRAM);
+		for (int i=0; i+len<=s.length(); i++)
+		{
+			Vector v = (Vector)grams.get(s.substring(i, i+len));
+			if (v == null)
+			{
+				return new Vector();
+			}
+			if (best == null || v.size() < best.size())
+			{
+				best = v;
+			}
+		}
+		return best != null ? (Vector)best.clone() : new Vector();
+	}
+
+	private boolean matches(CCFNode node, String s, String hex)
+	{
+		String f[] = (String[])text.get(node);
+		for (int i=0; f != null && i<f.length; i++)
+		{
+			if (f[i] == null)
+			{
+				continue;
+			}
+			String q = node instanceof CCFIRCode && i == 1 ? hex : s;
+			if (q.length() > 0 && f[i].indexOf(q) >= 0)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// ir codes are kept while any action list sending them is
+	private boolean attached(CCFNode node, Hashtable memo)
+	{
+		if (!(node instanceof CCFIRCode))
+		{
+			return CCFRefIndex.attached(head, owner, node, memo);
+		}
+		Vector l = (Vector)codes.get(node);
+		for (int i=0; l != null && i<l.size(); i++)
+		{
+			CCFActionList al = (CCFActionList)l.get(i);
+			for (int j=0; al.action != null && j<al.action.length; j++)
+			{
+				if (al.action[j] != null && al.action[j].action2 == node &&
+					CCFRefIndex.attached(head, owner, al, memo))
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// searchable text of a node in lower case. ir hex has no spaces.
+	private static String[] fields(CCFNode node)
+	{
+		if (node instanceof CCFDevice)
+		{
+			return new String[] { lower(((CCFDevice)node).getName()) };
+		}
+		if (node instanceof CCFPanel)
+		{
+			return new String[] { lower(((CCFPanel)node).getName()) };
+		}
+		if (node instanceof CCFButton)
+		{
+			CCFButton b = (CCFButton)node;
+			return new String[] { lower(b.getName()), lower(b.getIDTag()) };
+		}
+		if (node instanceof CCFFrame)
+		{
+			return new String[] { lower(((CCFFrame)node).getName()) };
+		}
+		if (node instanceof CCFIRCode)
+		{
+			CCFIRCode c = (CCFIRCode)node;
+			return new String[] { lower(c.getName()), strip(c.getCode()) };
+		}
+		return new String[0];
+	}
+
+	private static int typeOf(CCFNode node)
+	{
+		if (node instanceof CCFDevice)
+		{
+			return CCFWalker.DEVICE;
+		}
+		if (node instanceof CCFPanel)
+		{
+			return CCFWalker.PANEL;
+		}
+		if (node instanceof CCFButton)
+		{
+			return CCFWalker.BUTTON;
+		}
+		if (node instanceof CCFFrame)
+		{
+			return CCFWalker.FRAME;
+		}
+		if (node instanceof CCFIRCode)
+		{
+			return CCFWalker.IR_CODE;
+		}
+		return 0;
+	}
+
+	private static String lower(String s)
+	{
+		return s != null ? s.toLowerCase() : null;
+	}
+
+	private static String strip(String s)
+	{
+		StringBuffer sb = new StringBuffer(s.length());
+		for (int i=0; i<s.length(); i++)
+		{
+			if (!Character.isWhitespace(s.charAt(i)))
+			{
+				sb.append(Character.toLowerCase(s.charAt(i)));
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -12,6 +12,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.FileOutputStream;
 import java.util.Stack;
+import java.util.Vector;
 import java.util.Hashtable;
 import java.lang.reflect.Field;
 import com.neuron.irdb.*;
@@ -27,6 +28,7 @@ public class CCFWalker
 {
 	// ---( static fields )---
 	private final static Hashtable cmd = new Hashtable();
+	private static CCFQuery query;
 
 	private final static int HEAD  = 0;
 	private final static int VIEW  = 1;
@@ -38,6 +40,25 @@ public class CCFWalker
 	private final static int DBUG  = 7;
 	private final static int XPRT  = 8;
 	private final static int MPRT  = 9;
+	private final static int PACK  = 10;
+	private final static int CMPT  = 11;
+	private final static int QURY  = 12;
+
+	// node types for walks that only want some of them
+	public final static int DEVICE      = 1 << 0;
+	public final static int PANEL       = 1 << 1;
+	public final static int CHILD       = 1 << 2;
+	public final static int FRAME       = 1 << 3;
+	public final static int BUTTON      = 1 << 4;
+	public final static int ICON        = 1 << 5;
+	public final static int ACTION_LIST = 1 << 6;
+	public final static int ACTION      = 1 << 7;
+	public final static int IR_CODE     = 1 << 8;
+	public final static int ALL         = (1 << 9) - 1;
+
+	// types found below a panel and below an action list
+	private final static int IN_PANEL       = ALL & ~(DEVICE | PANEL);
+	private final static int IN_ACTION_LIST = ACTION_LIST | ACTION | IR_CODE;
 
 	static
 	{
@@ -51,6 +72,9 @@ public class CCFWalker
 		cmd.put("-dbug",  new Integer(DBUG));
 		cmd.put("-xprt",  new Integer(XPRT));
 		cmd.put("-mprt",  new Integer(MPRT));
+		cmd.put("-pack",  Integer.valueOf(PACK));
+		cmd.put("-cmpt",  Integer.valueOf(CMPT));
+		cmd.put("-query", Integer.valueOf(QURY));
 
 		if (System.getProperty("ccf") != null)
 		{
@@ -73,26 +97,159 @@ public class CCFWalker
 			usage();
 			return;
 		}
-		for (int i=1; i<args.length; i++)
+		int first = 1;
+		int threads = 0;
+		if (c.intValue() == QURY)
 		{
-			switch (c.intValue())
+			if (args.length < 3)
 			{
-				case HEAD:  head(args[i]); break;
-				case VIEW:  view(args[i]); break;
-				case IREX1: irex(args[i],true); break;
-				case LOAD:  load(args[i]); break;
-				case SORT:  sort(args[i]); break;
-				case SUMM:  summ(args[i],i); break;
-				case IREX2: irex(args[i],false); break;
-				case DBUG:  dbug(args[i]); break;
-				case XPRT:  xprt(args[1],args[2]); i=args.length; break;
-				case MPRT:  mprt(args[1],args[2]); i=args.length; break;
-				default: usage(); break;
+				usage();
+				return;
 			}
+			query = CCFQuery.compile(args[1]);
+			first = 2;
+		}
+		if (args[first].equals("-j") && args.length > first+2)
+		{
+			threads = Math.max(1, Integer.parseInt(args[first+1]));
+			first += 2;
+		}
+		String files[] = subarr(args, first, args.length - first);
+		switch (c.intValue())
+		{
+			case LOAD:
+				for (int i=0; i<files.length; i++)
+				{
+					load(files[i]);
+				}
+				break;
+			case XPRT:  xprt(files[0],files[1]); break;
+			case MPRT:  mprt(files[0],files[1]); break;
+			case PACK:  pack(files[0],files[1]); break;
+			case CMPT:  cmpt(files[0],files.length > 1 ? files[1] : null); break;
+			default:    batch(c.intValue(), files, threads); break;
 		}
 		System.exit(0);
 	}
 
+	// run a per-file command over every file. with threads > 0 the
+	// files are shared out to that many workers, output is printed
+	// in argument order and each file is timed.
+	private static void batch(final int c, final String files[], int threads)
+		throws Exception
+	{
+		if (c == SUMM)
+		{
+			debug("capability                            "+
+				  "attributes                            version4");
+		}
+		final IRDatabase db[] = new IRDatabase[files.length];
+		final StringBuffer out[] = new StringBuffer[files.length];
+		final long time[] = new long[files.length];
+		final int next[] = { 0 };
+		long start = Util.time();
+		if (threads == 0)
+		{
+			for (int i=0; i<files.length; i++)
+			{
+				db[i] = run(c, files[i]);
+			}
+		}
+		else
+		{
+			Runnable worker = new Runnable() {
+				public void run() {
+					while (true)
+					{
+						int i;
+						synchronized (next)
+						{
+							if (next[0] >= files.length)
+							{
+								return;
+							}
+							i = next[0]++;
+						}
+						StringBuffer sb = new StringBuffer();
+						Debug.capture(sb);
+						long t = Util.time();
+						IRDatabase d = null;
+						try
+						{
+							d = CCFWalker.run(c, files[i]);
+						}
+						catch (Throwable ex)
+						{
+							sb.append(files[i]+": "+ex+"\n");
+						}
+						Debug.capture(null);
+						synchronized (out)
+						{
+							db[i] = d;
+							time[i] = Util.time() - t;
+							out[i] = sb;
+							out.notifyAll();
+						}
+					}
+				}
+			};
+			for (int i=0; i<Math.min(threads, files.length); i++)
+			{
+				new Thread(worker, "walker-"+i).start();
+			}
+			long bytes = 0;
+			for (int i=0; i<files.length; i++)
+			{
+				synchronized (out)
+				{
+					while (out[i] == null)
+					{
+						out.wait();
+					}
+				}
+				long len = new File(files[i]).length();
+				bytes += len;
+				System.out.print(out[i]);
+				debug("-- "+files[i]+" : "+len+" bytes in "+time[i]+" ms");
+			}
+			long total = Math.max(1, Util.time() - start);
+			debug("-- "+files.length+" files, "+bytes+" bytes in "+total+" ms on "+
+				threads+" threads ("+(bytes * 1000 / total / 1024)+" KB/s)");
+		}
+		if (c == IREX1)
+		{
+			// one writer, merged in argument order
+			IRDatabase all = IRDatabase.create("new.db");
+			for (int i=0; i<db.length; i++)
+			{
+				for (int j=0; db[i] != null && j<db[i].size(); j++)
+				{
+					all.add(db[i].getByIndex(j));
+				}
+			}
+			all.write();
+		}
+	}
+
+	// returns the codes extracted by -irex1
+	private static IRDatabase run(int c, String file)
+		throws Exception
+	{
+		switch (c)
+		{
+			case HEAD:  head(file); break;
+			case VIEW:  view(file); break;
+			case IREX1: return irex(file,true);
+			case SORT:  sort(file); break;
+			case SUMM:  summ(file); break;
+			case IREX2: irex(file,false); break;
+			case DBUG:  dbug(file); break;
+			case QURY:  query(file); break;
+			default: usage(); break;
+		}
+		return null;
+	}
+
 	private static String[] subarr(String s[], int off, int len)
 	{
 		String ns[] = new String[len];
@@ -102,7 +259,8 @@ public class CCFWalker
 
 	private static void usage()
 	{
-		debug("CCFWalker <command> <ccf.file>");
+		debug("CCFWalker <command> [-j threads] <ccf.file> ...");
+		debug("CCFWalker -query <query> [-j threads] <ccf.file> ...");
 		debug("   -head      = dump ccf header");
 		debug("   -view      = walk the ccf tree");
 		debug("   -irex[1|2] = extract ir codes 1) save 2) view");
@@ -111,16 +269,18 @@ public class CCFWalker
 		debug("   -dbug      = full debug load/parse of ccf");
 		debug("   -xprt      = export ccf as zip/xml file");
 		debug("   -mprt      = import ccf from zip/xml file");
+		debug("   -pack      = save lzo compressed copy of ccf");
+		debug("   -cmpt      = report compact size, save if given a second file");
+		debug("   -query     = list nodes matching a path query, ie:");
+		debug("                device[name=TV]/panel//button[action=delay]");
 	}
 
 	// -- CCF Heaeder --
 	private static void head(String file)
 		throws IOException
 	{
-		CCF ccf = new CCF();
 		Debug.getInstance("ccf").setLevel(1);
-		ccf.load(file);
-		ccf.header().dump();
+		CCF.peekHeader(file).header().dump();
 	}
 
 	private static void dbug(String file)
@@ -131,6 +291,41 @@ public class CCFWalker
 		ccf.load(file);
 	}
 
+	private static void pack(String ccfile, String out)
+		throws IOException
+	{
+		CCF ccf = new CCF();
+		ccf.load(ccfile);
+		ccf.setCompressed(true);
+		ccf.save(out);
+	}
+
+	private static void cmpt(String ccfile, String out)
+		throws IOException
+	{
+		CCF ccf = new CCF();
+		ccf.load(ccfile);
+		long time = System.currentTimeMillis();
+		int wasted = ccf.getWastedBytes();
+		int size = ccf.getImageSize(true);
+		time = System.currentTimeMillis() - time;
+		debug("file size    : "+new File(ccfile).length());
+		debug("wasted space : "+wasted);
+		debug("compact size : "+size+" ("+time+" ms)");
+		ProntoModel pm = ccf.getConformsTo(null);
+		if (pm != null)
+		{
+			int mem = pm.getMemory();
+			debug(CCFNode.rpad(pm.getName(),13)+": "+mem+(size > mem ?
+				" (over by "+(size-mem)+")" : " ("+(mem-size)+" free)"));
+		}
+		if (out != null)
+		{
+			ccf.setCompact(true);
+			ccf.save(out);
+		}
+	}
+
 	private static void xprt(String ccfile, String zip)
 		throws IOException
 	{
@@ -165,7 +360,32 @@ public class CCFWalker
 					debug("    "+node.describe());
 				}
 			}
-		});
+		}, DEVICE | PANEL | ICON);
+	}
+
+	private static void query(String file)
+		throws IOException
+	{
+		CCF ccf = new CCF();
+		ccf.load(file, true);
+		CCFNode n[] = query.select(ccf);
+		for (int i=0; i<n.length; i++)
+		{
+			if (n[i] instanceof CCFPanel)
+			{
+				debug(((CCFPanel)n[i]).getFQN());
+			}
+			else
+			if (n[i] instanceof CCFButton)
+			{
+				debug(((CCFButton)n[i]).getFQN());
+			}
+			else
+			{
+				debug(n[i].describe());
+			}
+		}
+		debug("-- "+n.length+" matching '"+query+"'");
 	}
 
 	private static void load(String file)
@@ -214,19 +434,12 @@ public class CCFWalker
 			debug("["+i+"] pos="+pos+" len="+len+" >> "+node.describe());
 		}
 		debug("** wasted space: "+wasted);
-		System.exit(0);
 	}
 
-	private static void summ(String file, int idx)
+	private static void summ(String file)
 		throws Exception
 	{
-		if (idx == 1)
-		{
-			debug("capability                            "+
-				  "attributes                            version4");
-		}
-		CCF ccf = new CCF();
-		ccf.load(file);
+		CCF ccf = CCF.peekHeader(file);
 		CCFHeader head = ccf.header();
 		String fname = new File(file).getName();
 		if (fname.toLowerCase().endsWith(".ccf"))
@@ -242,14 +455,16 @@ public class CCFWalker
 		debug(head.summary()+" "+CCFNode.rpad(fname,20)+" "+sb.toString());
 	}
 
-	private static void irex(String file, boolean store)
+	private static IRDatabase irex(String file, boolean store)
 		throws IOException
 	{
 		CCF ccf = new CCF();
 		ccf.load(file);
 		if (store)
 		{
-			irex(ccf, IRDatabase.create("new.db"));
+			IRDatabase db = IRDatabase.create("new.db");
+			extract(ccf, db);
+			return db;
 		}
 		else
 		{
@@ -263,12 +478,20 @@ public class CCFWalker
 					}
 				}
 			};
-			new CCFWalker(ccf).walk(walker);
+			new CCFWalker(ccf).walk(walker, IR_CODE);
 		}
+		return null;
 	}
 
 	public static void irex(CCF ccf, IRDatabase dbi)
 		throws IOException
+	{
+		extract(ccf, dbi);
+		dbi.write();
+	}
+
+	// add a remote per device holding its ir codes
+	private static void extract(CCF ccf, IRDatabase dbi)
 	{
 		final IRDatabase db = dbi;
 		final CCF c = ccf;
@@ -316,143 +539,177 @@ public class CCFWalker
 					}
 				}
 			}
-		});
-
-		db.write();
+		}, DEVICE | PANEL | BUTTON | ACTION_LIST);
 	}
 
 	private static void debug(String m)
 	{
-		System.out.println(m);
-	}
-
-	// ---( private instance methods )---
-	private boolean process(CCFNode node)
-	{
-		return node != null && (walker2 != null ? walker2.processNode(node) : true);
-	}
-
-	private void walk(CCF ccf)
-	{
-		if (ccf == null)
+		StringBuffer sb = Debug.getCapture();
+		if (sb != null)
 		{
-			return;
+			sb.append(m).append('\n');
 		}
-		walk(ccf.getFirstHomeDevice());
-		walk(ccf.getFirstDevice());
-		walk(ccf.getFirstMacroDevice());
-		walk(ccf.getMacroPanel());
-	}
-
-	private void walk(CCFDevice dev)
-	{
-		if (!process(dev))
-		{
-			return;
-		}
-		walker.onNode(dev);
-		CCFHardKey key[] = dev.getHardKeys();
-		for (int i=0; i<key.length; i++)
+		else
 		{
-			walk(key[i].getActionList());
+			System.out.println(m);
 		}
-		walk(dev.getFirstPanel());
-		walk(dev.getNextDevice());
 	}
 
-	private void walk(CCFPanel panel)
+	// ---( private instance methods )---
+	private boolean process(CCFNode node)
 	{
-		if (!process(panel))
-		{
-			return;
-		}
-		walker.onNode(panel);
-		walk(panel.getChildren());
-		walk(panel.getNextPanel());
+		return node != null && (walker2 != null ? walker2.processNode(node) : true);
 	}
 
-	private void walk(CCFChild c[])
+	private void emit(int type, CCFNode node)
 	{
-		if (c == null || c.length == 0)
-		{
-			return;
-		}
-		for (int i=0; i<c.length; i++)
+		if ((mask & type) != 0 && node != null)
 		{
-			walk(c[i]);
+			walker.onNode(node);
 		}
 	}
 
-	private void walk(CCFChild child)
+	private static void push(Stack stack, CCFNode node)
 	{
-		if (!process(child))
+		if (node != null)
 		{
-			return;
+			stack.push(node);
 		}
-		walker.onNode(child);
-		walk(child.getButton());
-		walk(child.getFrame());
 	}
 
-	private void walk(CCFButton button)
+	private static void push(Stack stack, CCFChild c[])
 	{
-		if (!process(button))
+		for (int i=(c != null ? c.length-1 : -1); i>=0; i--)
 		{
-			return;
+			push(stack, c[i]);
 		}
-		walker.onNode(button);
-		walker.onNode(button.iconIU);
-		walker.onNode(button.iconIS);
-		walker.onNode(button.iconAU);
-		walker.onNode(button.iconAS);
-		walk(button.getActionList());
 	}
 
-	private void walk(CCFFrame frame)
+	private void setWalker(IWalker walker, int mask)
 	{
-		if (!process(frame))
-		{
-			return;
-		}
-		walker.onNode(frame);
-		walker.onNode(frame.icon);
-		walk(frame.getChildren());
+		this.walker = walker;
+		this.walker2 = walker instanceof IWalker2 ? (IWalker2)walker : null;
+		this.mask = mask;
 	}
 
-	private void walk(CCFActionList list)
+	// visit nodes on the stack and everything below them in tree
+	// order: a node, its contents, then the next node in its list.
+	// the list is not followed past the node 'only'.
+	private void run(Stack stack, CCFNode only)
 	{
-		if (!process(list))
-		{
-			return;
-		}
-		walker.onNode(list);
-		CCFAction a[] = list.getActions();
-		for (int i=0; a != null && i<a.length; i++)
+		while (!stack.empty())
 		{
-			walk(a[i]);
+			CCFNode node = (CCFNode)stack.pop();
+			if (node != only)
+			{
+				if (node instanceof CCFDevice)
+				{
+					push(stack, ((CCFDevice)node).getNextDevice());
+				}
+				else
+				if (node instanceof CCFPanel)
+				{
+					push(stack, ((CCFPanel)node).getNextPanel());
+				}
+			}
+			if (!process(node))
+			{
+				continue;
+			}
+			Class nclass = node.getClass();
+			if (nclass == CCFDevice.class)
+			{
+				CCFDevice dev = (CCFDevice)node;
+				emit(DEVICE, dev);
+				if ((mask & ~DEVICE) != 0)
+				{
+					push(stack, dev.getFirstPanel());
+				}
+				if ((mask & IN_ACTION_LIST) != 0)
+				{
+					CCFHardKey key[] = dev.getHardKeys();
+					for (int i=key.length-1; i>=0; i--)
+					{
+						push(stack, key[i].getActionList());
+					}
+				}
+			}
+			else
+			if (nclass == CCFPanel.class)
+			{
+				emit(PANEL, node);
+				if ((mask & IN_PANEL) != 0)
+				{
+					push(stack, ((CCFPanel)node).getChildren());
+				}
+			}
+			else
+			if (nclass == CCFChild.class)
+			{
+				CCFChild child = (CCFChild)node;
+				emit(CHILD, child);
+				push(stack, child.getFrame());
+				push(stack, child.getButton());
+			}
+			else
+			if (nclass == CCFButton.class)
+			{
+				CCFButton button = (CCFButton)node;
+				emit(BUTTON, button);
+				emit(ICON, button.iconIU);
+				emit(ICON, button.iconIS);
+				emit(ICON, button.iconAU);
+				emit(ICON, button.iconAS);
+				if ((mask & IN_ACTION_LIST) != 0)
+				{
+					push(stack, button.getActionList());
+				}
+			}
+			else
+			if (nclass == CCFFrame.class)
+			{
+				CCFFrame frame = (CCFFrame)node;
+				emit(FRAME, frame);
+				emit(ICON, frame.icon);
+				push(stack, frame.getChildren());
+			}
+			else
+			if (nclass == CCFActionList.class)
+			{
+				emit(ACTION_LIST, node);
+				if ((mask & (ACTION | IR_CODE)) != 0)
+				{
+					CCFAction a[] = ((CCFActionList)node).getActions();
+					for (int i=0; a != null && i<a.length; i++)
+					{
+						visit(a[i]);
+					}
+				}
+			}
+			else
+			if (node instanceof CCFAction)
+			{
+				visit((CCFAction)node);
+			}
 		}
 	}
 
-	private void walk(CCFAction action)
+	// actions are leaves but for their ir code
+	private void visit(CCFAction action)
 	{
 		if (!process(action))
 		{
 			return;
 		}
-		walker.onNode(action);
+		emit(ACTION, action);
 		if (action.getActionType() == CCFAction.ACT_IRCODE)
 		{
-			walk((CCFIRCode)action.action2);
-		}
-	}
-
-	private void walk(CCFIRCode code)
-	{
-		if (!process(code))
-		{
-			return;
+			CCFIRCode code = (CCFIRCode)action.action2;
+			if (process(code))
+			{
+				emit(IR_CODE, code);
+			}
 		}
-		walker.onNode(code);
 	}
 
 	// ---( Constructors )---
@@ -465,6 +722,7 @@ public class CCFWalker
 	private CCF ccf;
 	private IWalker walker;
 	private IWalker2 walker2;
+	private int mask;
 
 	// ---( instance methods )---
 	/**
@@ -474,12 +732,33 @@ public class CCFWalker
 	 */
 	public void walk(IWalker walker)
 	{
-		this.walker = walker;
-		if (walker instanceof IWalker2)
+		walk(walker, ALL);
+	}
+
+	/**
+	 * Initiate a CCF tree walk that only reports some node types.
+	 * Subtrees that cannot hold those types are not entered, so lazily
+	 * loaded panels are left alone by a walk that only wants devices
+	 * and panels. An IWalker2 is still asked about every node entered
+	 * and returning false from processNode() skips that node and all
+	 * below it, but not the nodes that follow it in its list.
+	 *
+	 * @param walker object to be notified as nodes are walked.
+	 * @param mask node types to report (DEVICE, PANEL, ...) or ALL.
+	 */
+	public void walk(IWalker walker, int mask)
+	{
+		setWalker(walker, mask);
+		if (ccf == null)
 		{
-			this.walker2 = (IWalker2)walker;
+			return;
 		}
-		walk(ccf);
+		Stack stack = new Stack();
+		push(stack, ccf.getMacroPanel());
+		push(stack, ccf.getFirstMacroDevice());
+		push(stack, ccf.getFirstDevice());
+		push(stack, ccf.getFirstHomeDevice());
+		run(stack, null);
 	}
 
 	/**
@@ -490,22 +769,110 @@ public class CCFWalker
 	 */
 	public void walk(IWalker walker, CCFNode node)
 	{
-		this.walker = walker;
-		if (walker instanceof IWalker2)
+		setWalker(walker, ALL);
+		Stack stack = new Stack();
+		push(stack, node);
+		run(stack, null);
+	}
+
+	/**
+	 * Walk each device on its own thread. The walker is called from
+	 * several threads at once so it must be safe for that and must not
+	 * change the tree. Templates are walked last on the calling thread.
+	 *
+	 * @param walker object to be notified as nodes are walked.
+	 * @param mask node types to report (DEVICE, PANEL, ...) or ALL.
+	 * @param threads number of threads to walk devices on.
+	 */
+	public void walkParallel(IWalker walker, int mask, int threads)
+	{
+		if (ccf == null)
+		{
+			return;
+		}
+		final Vector devices = new Vector();
+		CCFDevice roots[] = {
+			ccf.getFirstHomeDevice(), ccf.getFirstDevice(), ccf.getFirstMacroDevice()
+		};
+		for (int i=0; i<roots.length; i++)
+		{
+			for (CCFDevice d = roots[i]; d != null; d = d.getNextDevice())
+			{
+				devices.addElement(d);
+			}
+		}
+		final IWalker w = walker;
+		final int m = mask;
+		final int next[] = { 0 };
+		final Throwable error[] = { null };
+		Runnable worker = new Runnable() {
+			public void run() {
+				CCFWalker cw = new CCFWalker(ccf);
+				cw.setWalker(w, m);
+				Stack stack = new Stack();
+				while (true)
+				{
+					CCFDevice dev;
+					synchronized (next)
+					{
+						if (next[0] >= devices.size() || error[0] != null)
+						{
+							return;
+						}
+						dev = (CCFDevice)devices.get(next[0]++);
+					}
+					try
+					{
+						stack.push(dev);
+						cw.run(stack, dev);
+					}
+					catch (Throwable ex)
+					{
+						synchronized (next)
+						{
+							error[0] = ex;
+						}
+						return;
+					}
+				}
+			}
+		};
+		Thread t[] = new Thread[Math.max(1, Math.min(threads, devices.size()))];
+		for (int i=0; i<t.length; i++)
+		{
+			t[i] = new Thread(worker, "walk-"+i);
+			t[i].start();
+		}
+		// the serial walk below must not overlap the workers
+		boolean interrupted = false;
+		for (int i=0; i<t.length; )
+		{
+			try
+			{
+				t[i].join();
+				i++;
+			}
+			catch (InterruptedException ex)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (error[0] instanceof RuntimeException)
 		{
-			this.walker2 = (IWalker2)walker;
+			throw (RuntimeException)error[0];
 		}
-		Class nclass = node.getClass();
-		if (nclass == CCFDevice.class)     { walk((CCFDevice)node); }     else
-		if (nclass == CCFPanel.class)      { walk((CCFPanel)node); }      else
-		if (nclass == CCFFrame.class)      { walk((CCFFrame)node); }      else
-		if (nclass == CCFButton.class)     { walk((CCFButton)node); }     else
-		if (nclass == CCFChild.class)      { walk((CCFChild)node); }      else
-		if (nclass == CCFActionList.class) { walk((CCFActionList)node); } else
-		if (nclass == CCFAction.class)     { walk((CCFAction)node); }     else
+		if (error[0] instanceof Error)
 		{
-			// no match
+			throw (Error)error[0];
 		}
+		setWalker(walker, mask);
+		Stack stack = new Stack();
+		push(stack, ccf.getMacroPanel());
+		run(stack, null);
 	}
 }
 
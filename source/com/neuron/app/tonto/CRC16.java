@@ -9,6 +9,29 @@ package com.neuron.app.tonto;
 
 class CRC16
 {
+	// crc of each byte value, so updates take one lookup per byte
+	private final static int table[] = new int[256];
+
+	static
+	{
+		for (int b=0; b<256; b++)
+		{
+			int crc = b << 8;
+			for (int i=0; i<8; i++)
+			{
+				if ((crc & 0x8000) != 0)
+				{
+					crc = crc << 1 ^ 0x1021;
+				}
+				else
+				{
+					crc = (crc << 1);
+				}
+			}
+			table[b] = crc & 0xffff;
+		}
+	}
+
     private int crc;
 
     public CRC16()
@@ -34,28 +57,17 @@ class CRC16
 
 	public void update(byte b[], int off, int len)
 	{
-		for (int i=0; i<len; i++)
+		int c = crc;
+		for (int i=off; i<off+len; i++)
 		{
-			update(b[i+off]);
+			c = ((c << 8) ^ table[((c >> 8) ^ b[i]) & 0xff]) & 0xffff;
 		}
+		crc = c;
 	}
 
     public void update(byte aByte)
 	{
-		crc = crc ^ aByte << 8;
-
-        for (int i=0; i<8; i++)
-		{
-            if ((crc & 0x8000) != 0)
-			{
-                crc = crc << 1 ^ 0x1021;
-            }
-			else
-			{
-                crc = (crc << 1);
-            }
-        }
-        crc = crc & 0xffff;
+		crc = ((crc << 8) ^ table[((crc >> 8) ^ aByte) & 0xff]) & 0xffff;
     }
 
     public void reset()
@@ -800,6 +800,22 @@ class Comm implements IComm
 
 	void setCCF(byte b[], ITaskStatus status)
 		throws IOException
+	{
+		setCCF(b, null, b.length, status);
+	}
+
+	/**
+	 * Download an image laid out by CCFNodeState.prepareStream(),
+	 * encoding it as the transfer proceeds.
+	 */
+	void setCCF(CCFNodeState zs, int len, ITaskStatus status)
+		throws IOException
+	{
+		setCCF(null, zs, len, status);
+	}
+
+	private void setCCF(byte b[], CCFNodeState zs, int len, ITaskStatus status)
+		throws IOException
 	{
 		/*
 		status.taskStatus(0, "Checking Pronto Capability");
@@ -813,9 +829,11 @@ class Comm implements IComm
 			sendCMD("dl ccf");
 			safeSleep(loadDelay);
 			status.taskStatus(10, "Download in Progress");
+			// each attempt re-reads the image from the start
+			InputStream in = b != null ? new ByteArrayInputStream(b) : zs.openStream();
 			try
 			{
-				new Xmodem(this, new ScopeTask(status, 10, 100)).sendFile(b);
+				new Xmodem(this, new ScopeTask(status, 10, 100)).sendFile(in, len);
 				status.taskNotify("Download Complete");
 				return;
 			}
@@ -825,6 +843,10 @@ class Comm implements IComm
 				status.taskNotify("Download Error... Retrying");
 				safeSleep(500);
 			}
+			finally
+			{
+				in.close();
+			}
 		}
 		throw new IOException("Unexpected response ("+reply+")");
 	}
@@ -23,6 +23,7 @@ public final class Debug
 	private static Thread flusher;
 	private static Thread hook;
 	private static Vector listeners;
+	private static ThreadLocal capture = new ThreadLocal();
 
 	public static void setLevels(String str)
 	{
@@ -87,7 +88,7 @@ public final class Debug
 		return getInstance(nm);
 	}
 
-	public static Debug getInstance(String name)
+	public synchronized static Debug getInstance(String name)
 	{
 		Debug d = (Debug)buggers.get(name);
 		if (d == null)
@@ -165,6 +166,12 @@ public final class Debug
 
 	private synchronized static void log(String msg)
 	{
+		StringBuffer sb = (StringBuffer)capture.get();
+		if (sb != null)
+		{
+			sb.append(msg).append('\n');
+		}
+		else
 		if (log == null)
 		{
 			out.println(msg);
@@ -254,6 +261,24 @@ public final class Debug
 		out = ps;
 	}
 
+	/**
+	 * Collect what the calling thread logs into a buffer instead of
+	 * writing it out, so the output of concurrent jobs can be printed
+	 * one job at a time. Pass null to stop collecting.
+	 */
+	public static void capture(StringBuffer sb)
+	{
+		capture.set(sb);
+	}
+
+	/**
+	 * Returns the buffer the calling thread is collecting into or null.
+	 */
+	public static StringBuffer getCapture()
+	{
+		return (StringBuffer)capture.get();
+	}
+
 	public static void addListener(DebugListener l)
 	{
 		if (listeners == null)
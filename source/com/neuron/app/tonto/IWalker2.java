@@ -11,6 +11,11 @@ package com.neuron.app.tonto;
 
 public interface IWalker2 extends IWalker
 {
+	/**
+	 * Called before a node is entered. Return false to skip the node
+	 * and everything below it. The nodes after it in the same list
+	 * are still walked.
+	 */
 	public boolean processNode(CCFNode node)
 		;
 }
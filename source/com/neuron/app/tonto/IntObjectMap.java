@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2001-2002, Stewart Allen <stewart@neuron.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the Artistic License.
+ */
+
+package com.neuron.app.tonto;
+
+/**
+ * Open addressed map from int keys to non-null objects. Unlike
+ * Hashtable (or Acme.IntHashtable) a lookup allocates nothing and a
+ * put allocates only when the table grows. Not synchronized.
+ */
+final class IntObjectMap
+{
+	// ---( constructors )---
+	IntObjectMap()
+	{
+		this(64);
+	}
+
+	IntObjectMap(int capacity)
+	{
+		int cap = 16;
+		while (cap < capacity * 2)
+		{
+			cap <<= 1;
+		}
+		keys = new int[cap];
+		vals = new Object[cap];
+	}
+
+	// ---( instance fields )---
+	private int keys[];
+	private Object vals[];		// null marks an empty slot
+	private int size;
+
+	// ---( instance methods )---
+	private int slot(int key)
+	{
+		int h = key * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & (keys.length - 1);
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	Object get(int key)
+	{
+		int i = slot(key);
+		Object v;
+		while ((v = vals[i]) != null)
+		{
+			if (keys[i] == key)
+			{
+				return v;
+			}
+			i = (i + 1) & (keys.length - 1);
+		}
+		return null;
+	}
+
+	Object put(int key, Object val)
+	{
+		int i = slot(key);
+		Object v;
+		while ((v = vals[i]) != null)
+		{
+			if (keys[i] == key)
+			{
+				vals[i] = val;
+				return v;
+			}
+			i = (i + 1) & (keys.length - 1);
+		}
+		keys[i] = key;
+		vals[i] = val;
+		if (++size * 2 > keys.length)
+		{
+			grow();
+		}
+		return null;
+	}
+
+	Object remove(int key)
+	{
+		int mask = keys.length - 1;
+		int i = slot(key);
+		Object v;
+		while ((v = vals[i]) != null)
+		{
+			if (keys[i] == key)
+			{
+				// shift later entries of the run back into the hole
+				int hole = i;
+				for (int j = (i + 1) & mask; vals[j] != null; j = (j + 1) & mask)
+				{
+					int home = slot(keys[j]);
+					if (((j - home) & mask) >= ((j - hole) & mask))
+					{
+						keys[hole] = keys[j];
+						vals[hole] = vals[j];
+						hole = j;
+					}
+				}
+				vals[hole] = null;
+				size--;
+				return v;
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	void clear()
+	{
+		java.util.Arrays.fill(vals, null);
+		size = 0;
+	}
+
+	/**
+	 * Returns the keys in no particular order.
+	 */
+	int[] keys()
+	{
+		int k[] = new int[size];
+		for (int i=0, n=0; i<vals.length; i++)
+		{
+			if (vals[i] != null)
+			{
+				k[n++] = keys[i];
+			}
+		}
+		return k;
+	}
+
+	/**
+	 * Returns the values in no particular order.
+	 */
+	Object[] values()
+	{
+		Object o[] = new Object[size];
+		for (int i=0, n=0; i<vals.length; i++)
+		{
+			if (vals[i] != null)
+			{
+				o[n++] = vals[i];
+			}
+		}
+		return o;
+	}
+
+	private void grow()
+	{
+		int ok[] = keys;
+		Object ov[] = vals;
+		keys = new int[ok.length * 2];
+		vals = new Object[ov.length * 2];
+		size = 0;
+		for (int i=0; i<ov.length; i++)
+		{
+			if (ov[i] != null)
+			{
+				put(ok[i], ov[i]);
+			}
+		}
+	}
+}
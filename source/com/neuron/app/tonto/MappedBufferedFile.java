@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2001-2002, Stewart Allen <stewart@neuron.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the Artistic License.
+ */
+
+package com.neuron.app.tonto;
+
+// ---( imports )---
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.lang.reflect.*;
+
+/**
+ * BufferedFile backed by a memory mapped FileChannel instead of a heap
+ * copy of the file. Reads come straight from the page cache and writes
+ * land in the file without an intermediate buffer, so large images are
+ * neither copied onto the heap at load nor copied again at save.
+ */
+class MappedBufferedFile extends BufferedFile
+{
+	// ---( static fields )---
+	private static Debug debug = Debug.getInstance("ccf");
+	private final static int GROW = 65536;
+
+	// ---( static methods )---
+	/**
+	 * Returns true if mappings can be released on demand. Windows will
+	 * not rename or truncate a file while any part of it is mapped, so
+	 * files should not be mapped there without this.
+	 */
+	static boolean canUnmap()
+	{
+		try
+		{
+			// 1.9+
+			Class.forName("sun.misc.Unsafe").getMethod(
+				"invokeCleaner", new Class[] { ByteBuffer.class });
+			return true;
+		}
+		catch (Throwable ex)
+		{
+		}
+		try
+		{
+			// 1.4 - 1.8
+			Class.forName("sun.nio.ch.DirectBuffer").getMethod(
+				"cleaner", new Class[0]);
+			return true;
+		}
+		catch (Throwable ex)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Release a mapping without waiting for it to be collected.
+	 * The buffer must not be touched again afterwards.
+	 */
+	static boolean unmap(MappedByteBuffer map)
+	{
+		if (map == null)
+		{
+			return true;
+		}
+		try
+		{
+			// 1.9+
+			Class uc = Class.forName("sun.misc.Unsafe");
+			Field uf = uc.getDeclaredField("theUnsafe");
+			uf.setAccessible(true);
+			Method clean = uc.getMethod("invokeCleaner", new Class[] { ByteBuffer.class });
+			clean.invoke(uf.get(null), new Object[] { map });
+			return true;
+		}
+		catch (Throwable ex)
+		{
+		}
+		try
+		{
+			// 1.4 - 1.8
+			Method cm = map.getClass().getMethod("cleaner", new Class[0]);
+			cm.setAccessible(true);
+			Object cleaner = cm.invoke(map, new Object[0]);
+			Method clean = cleaner.getClass().getMethod("clean", new Class[0]);
+			clean.setAccessible(true);
+			clean.invoke(cleaner, new Object[0]);
+			return true;
+		}
+		catch (Throwable ex)
+		{
+			debug.log(2, "unable to release mapping: "+ex);
+			return false;
+		}
+	}
+
+	// ---( constructors )---
+	public MappedBufferedFile (String f, String mode)
+		throws IOException
+	{
+		super(new byte[0]);
+		writable = !mode.equalsIgnoreCase("r");
+		file = new RandomAccessFile(f, writable ? "rw" : "r");
+		channel = file.getChannel();
+		flen = channel.size();
+		remap(flen);
+		if (!writable)
+		{
+			// the mapping stays valid after the channel is closed
+			channel.close();
+			file.close();
+			channel = null;
+			file = null;
+		}
+		seek(0);
+	}
+
+	// read-only view sharing another file's mapping
+	private MappedBufferedFile (ByteBuffer map, long flen)
+	{
+		super(new byte[0]);
+		this.map = map;
+		this.flen = flen;
+		this.view = true;
+		seek(0);
+	}
+
+	// ---( instance fields )---
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private ByteBuffer map;
+	private boolean writable;
+	private boolean view;
+	private boolean dirty;
+	private long flen;
+
+	// ---( instance methods )---
+	private void remap(long size)
+		throws IOException
+	{
+		int pos = map != null ? map.position() : 0;
+		if (map != null)
+		{
+			((MappedByteBuffer)map).force();
+			unmap((MappedByteBuffer)map);
+		}
+		map = channel.map(writable ?
+			FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+		map.position((int)Math.min(pos, size));
+	}
+
+	private void checkWritePos(long pos, int len)
+	{
+		if (!writable)
+		{
+			throw new NonWritableChannelException();
+		}
+		if (pos+len > map.capacity())
+		{
+			try
+			{
+				remap(pos+len+GROW);
+			}
+			catch (IOException ex)
+			{
+				throw new RuntimeException(ex.getMessage());
+			}
+		}
+		flen = Math.max(flen, pos+len);
+		dirty = true;
+	}
+
+	public void setLength(int len)
+		throws IOException
+	{
+		if (writable && len > map.capacity())
+		{
+			remap(len);
+		}
+		flen = len;
+	}
+
+	public void readFully(byte b[])
+		throws EOFException
+	{
+		if (map.position()+b.length > flen)
+		{
+			throw new EOFException();
+		}
+		map.get(b);
+	}
+
+	public int skipBytes(int len)
+	{
+		map.position(map.position()+len);
+		return len;
+	}
+
+	public long getFilePointer()
+	{
+		return map.position();
+	}
+
+	public void seek(long pos)
+	{
+		if (map == null)
+		{
+			// called by the super constructor before mapping
+			return;
+		}
+		if (writable && pos > map.capacity())
+		{
+			checkWritePos(pos, 0);
+		}
+		map.position((int)pos);
+	}
+
+	public long length()
+	{
+		return flen;
+	}
+
+	public int getShort()
+	{
+		return map.getShort();
+	}
+
+	public int getInt()
+	{
+		return map.getInt();
+	}
+
+	public int read()
+	{
+		return map.get()&0xff;
+	}
+
+	public int read(byte b[], int offset, int len)
+	{
+		map.get(b, offset, len);
+		return len;
+	}
+
+	public void putShort(int s)
+	{
+		checkWritePos(map.position(), 2);
+		map.putShort((short)s);
+	}
+
+	public void putInt(int i)
+	{
+		checkWritePos(map.position(), 4);
+		map.putInt(i);
+	}
+
+	public void write(int b)
+	{
+		checkWritePos(map.position(), 1);
+		map.put((byte)(b & 0xff));
+	}
+
+	public void write(byte b[], int off, int len)
+	{
+		checkWritePos(map.position(), len);
+		map.put(b, off, len);
+	}
+
+	public int getCRC(int pos)
+	{
+		CRC16 crc = new CRC16();
+		for (int i=0; i<pos; i++)
+		{
+			crc.update(map.get(i));
+		}
+		return crc.getValue();
+	}
+
+	BufferedFile view()
+	{
+		return new MappedBufferedFile(map.duplicate(), flen);
+	}
+
+	// no heap array to slice from, so byte fields of mapped loads
+	// are always copied
+	byte[] getBuffer()
+	{
+		return null;
+	}
+
+	public byte[] toByteArray()
+	{
+		byte b[] = new byte[(int)flen];
+		ByteBuffer dup = map.duplicate();
+		dup.position(0);
+		dup.get(b);
+		return b;
+	}
+
+	public void close()
+	{
+		if (view)
+		{
+			// the mapping belongs to the file this was viewed from
+			map = null;
+			return;
+		}
+		try
+		{
+			if (map != null && dirty)
+			{
+				((MappedByteBuffer)map).force();
+			}
+			unmap((MappedByteBuffer)map);
+			map = null;
+			if (channel != null)
+			{
+				// drop the unused tail of the last mapping
+				channel.truncate(flen);
+				channel.close();
+				channel = null;
+			}
+			if (file != null)
+			{
+				file.close();
+				file = null;
+			}
+			dirty = false;
+		}
+		catch (Exception ex)
+		{
+			ex.printStackTrace();
+		}
+	}
+}
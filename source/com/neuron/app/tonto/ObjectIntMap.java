@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2001-2002, Stewart Allen <stewart@neuron.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the Artistic License.
+ */
+
+package com.neuron.app.tonto;
+
+/**
+ * Open addressed map from non-null object keys to int values. The
+ * counterpart of IntObjectMap for lookups by value, such as string to
+ * file position. Not synchronized.
+ */
+final class ObjectIntMap
+{
+	// ---( constructors )---
+	ObjectIntMap()
+	{
+		this(64);
+	}
+
+	ObjectIntMap(int capacity)
+	{
+		int cap = 16;
+		while (cap < capacity * 2)
+		{
+			cap <<= 1;
+		}
+		keys = new Object[cap];
+		vals = new int[cap];
+	}
+
+	// ---( instance fields )---
+	private Object keys[];		// null marks an empty slot
+	private int vals[];
+	private int size;
+
+	// ---( instance methods )---
+	private int slot(Object key)
+	{
+		int h = key.hashCode() * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & (keys.length - 1);
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the value for key or def if there is none.
+	 */
+	int get(Object key, int def)
+	{
+		int i = slot(key);
+		Object k;
+		while ((k = keys[i]) != null)
+		{
+			if (k == key || k.equals(key))
+			{
+				return vals[i];
+			}
+			i = (i + 1) & (keys.length - 1);
+		}
+		return def;
+	}
+
+	boolean containsKey(Object key)
+	{
+		int i = slot(key);
+		Object k;
+		while ((k = keys[i]) != null)
+		{
+			if (k == key || k.equals(key))
+			{
+				return true;
+			}
+			i = (i + 1) & (keys.length - 1);
+		}
+		return false;
+	}
+
+	void put(Object key, int val)
+	{
+		int i = slot(key);
+		Object k;
+		while ((k = keys[i]) != null)
+		{
+			if (k == key || k.equals(key))
+			{
+				vals[i] = val;
+				return;
+			}
+			i = (i + 1) & (keys.length - 1);
+		}
+		keys[i] = key;
+		vals[i] = val;
+		if (++size * 2 > keys.length)
+		{
+			grow();
+		}
+	}
+
+	void clear()
+	{
+		java.util.Arrays.fill(keys, null);
+		size = 0;
+	}
+
+	private void grow()
+	{
+		Object ok[] = keys;
+		int ov[] = vals;
+		keys = new Object[ok.length * 2];
+		vals = new int[ov.length * 2];
+		size = 0;
+		for (int i=0; i<ok.length; i++)
+		{
+			if (ok[i] != null)
+			{
+				put(ok[i], ov[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2001-2002, Stewart Allen <stewart@neuron.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the Artistic License.
+ */
+
+package com.neuron.app.tonto;
+
+// ---( imports )---
+import java.util.*;
+
+/**
+ * Map for caches that are filled once and then only read, such as the
+ * per-class field and codec lookups in CCFNode. Lookups read an
+ * immutable snapshot without locking so parallel decoders never contend
+ * on them. The rare insert copies the snapshot.
+ */
+final class ReadCache
+{
+	// ---( instance fields )---
+	private volatile HashMap map = new HashMap();
+
+	// ---( instance methods )---
+	Object get(Object key)
+	{
+		return map.get(key);
+	}
+
+	synchronized void put(Object key, Object val)
+	{
+		HashMap m = new HashMap(map);
+		m.put(key, val);
+		map = m;
+	}
+
+	synchronized void clear()
+	{
+		map = new HashMap();
+	}
+}
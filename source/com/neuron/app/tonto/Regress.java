@@ -19,7 +19,20 @@ public class Regress
 	public static void main(String args[])
 		throws Exception
 	{
-		Regress r = new Regress(args[0]);
+		int arg = 0;
+		if (args.length > 1 && args[0].equals("-reflect"))
+		{
+			// run the corpus through the reflective table interpreter
+			CCFCodec.setEnabled(false);
+			arg++;
+		}
+		if (args.length > arg+2 && args[arg].equals("-bench"))
+		{
+			// time decode and encode of the largest inputs
+			bench(new File(args[arg+2]), Integer.parseInt(args[arg+1]));
+			return;
+		}
+		Regress r = new Regress(args[arg]);
 		r.test();
 		Hashtable h = r.getErrors();
 		if (h != null)
@@ -36,6 +49,86 @@ public class Regress
 		System.out.println("-- all passed --");
 	}
 
+	private static void bench(File dir, int runs)
+		throws Exception
+	{
+		Vector files = new Vector();
+		list(dir, files);
+		File f[] = new File[files.size()];
+		files.copyInto(f);
+		Arrays.sort(f, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				long l1 = ((File)o1).length();
+				long l2 = ((File)o2).length();
+				return l1 > l2 ? -1 : l1 < l2 ? 1 : 0;
+			}
+		});
+		for (int i=0; i<Math.min(3, f.length); i++)
+		{
+			String file = f[i].toString();
+			CCF ccf = new CCF();
+			for (int w=0; w<3; w++)
+			{
+				ccf.load(file);
+				ccf.encode();
+			}
+			long dtime = 0, dmem = 0, etime = 0, emem = 0;
+			for (int r=0; r<runs; r++)
+			{
+				long mem = allocated();
+				long time = System.nanoTime();
+				ccf.load(file);
+				dtime += System.nanoTime() - time;
+				dmem += allocated() - mem;
+				mem = allocated();
+				time = System.nanoTime();
+				ccf.encode();
+				etime += System.nanoTime() - time;
+				emem += allocated() - mem;
+			}
+			// byte fields are only left in the buffer of heap loads
+			System.out.println("bench: "+f[i]+" ("+f[i].length()+" bytes, "+
+				(System.getProperty("ccf.nomap") == null ? "mapped" : "heap")+" load)");
+			System.out.println("  decode "+(dtime/runs/1000000)+" ms "+(dmem/runs/1024)+" KB allocated");
+			System.out.println("  encode "+(etime/runs/1000000)+" ms "+(emem/runs/1024)+" KB allocated");
+		}
+	}
+
+	private static void list(File dir, Vector files)
+	{
+		String l[] = dir.list();
+		for (int i=0; i<l.length; i++)
+		{
+			File f = new File(dir, l[i]);
+			if (f.isDirectory())
+			{
+				list(f, files);
+			}
+			else
+			if (l[i].toLowerCase().endsWith(".ccf"))
+			{
+				files.add(f);
+			}
+		}
+	}
+
+	// bytes allocated by this thread where the vm reports it
+	private static long allocated()
+	{
+		try
+		{
+			Object mx = Class.forName("java.lang.management.ManagementFactory")
+				.getMethod("getThreadMXBean", new Class[0]).invoke(null, new Object[0]);
+			return ((Long)Class.forName("com.sun.management.ThreadMXBean")
+				.getMethod("getThreadAllocatedBytes", new Class[] { long.class })
+				.invoke(mx, new Object[] { Long.valueOf(Thread.currentThread().getId()) })).longValue();
+		}
+		catch (Throwable ex)
+		{
+			return 0;
+		}
+	}
+
 	// ---( constructors )---
 	public Regress (String d)
 		throws IOException
@@ -54,6 +147,15 @@ public class Regress
 	// ---( instance methods )---
 	public void test()
 	{
+		System.out.println("test : icon compression");
+		try
+		{
+			testIcons();
+		}
+		catch (Throwable ex)
+		{
+			errors.put(new File("synthetic icons"), ex);
+		}
 		test(dir);
 	}
 
@@ -99,13 +201,29 @@ public class Regress
 			ccf.load(f.toString());
 			System.out.print(" write...");
 			ccf.save(tmp.toString());
+			// duplicate icons and ir codes are written once
+			int shared = ccf.getSharedBytes();
 			System.out.print(" reread...");
 			ccf.load(tmp.toString());
-			sz2 = tmp.length();
+			sz2 = tmp.length() + shared;
 			if (Math.abs(sz2 - sz1) > sz1/20)
 			{
 				throw new RuntimeException("size mismatch: "+sz1+" -> "+sz2);
 			}
+			System.out.print(" patch...");
+			testPatch(f, tmp);
+			System.out.print(" merge...");
+			testMerge(f);
+			System.out.print(" icons...");
+			testIcons(f);
+			System.out.print(" refs...");
+			testRefs(f);
+			System.out.print(" names...");
+			testNames(f);
+			System.out.print(" search...");
+			testSearch(f);
+			System.out.print(" select...");
+			testSelect(f);
 		}
 		catch (Throwable ex)
 		{
@@ -119,6 +237,751 @@ public class Regress
 		}
 	}
 
+	// edit an ir code and an action list in place, save incrementally
+	// and check each edit is in the file that is read back
+	private void testPatch(File f, File tmp)
+		throws IOException
+	{
+		CCF ccf = new CCF();
+		ccf.load(f.toString());
+		CCFButton b[] = buttons(ccf);
+		if (b.length == 0)
+		{
+			return;
+		}
+		// measuring either layout must not cost the next save its patch
+		ccf.getImageSize(!ccf.isCompact());
+		if (ccf.header().needsRelayout())
+		{
+			throw new RuntimeException("measure forced a relayout");
+		}
+		CCFIRCode ir = irCode(b);
+		if (ir != null)
+		{
+			// same length so the code is rewritten where it is
+			String code = ir.getCode();
+			int last = code.length() - 1;
+			ir.setCode(code.substring(0, last) + (code.charAt(last) == '0' ? '1' : '0'));
+			code = ir.getCode();
+			ccf = patch(ccf, tmp);
+			b = buttons(ccf);
+			if (!code.equals(irCode(b).getCode()))
+			{
+				throw new RuntimeException("patch lost ir code");
+			}
+		}
+		CCFActionList list = b[0].getActionList();
+		list.appendAction(new ActionDelay(250));
+		int count = list.size();
+		ccf = patch(ccf, tmp);
+		b = buttons(ccf);
+		if (b[0].getActionList().size() != count)
+		{
+			throw new RuntimeException("patch lost action: "+count+" -> "+b[0].getActionList().size());
+		}
+	}
+
+	// merge a file into a copy of itself. every device and panel
+	// is already present so nothing may be added or renamed.
+	private void testMerge(File f)
+		throws IOException
+	{
+		CCF ccf = new CCF();
+		ccf.load(f.toString());
+		CCF copy = new CCF();
+		copy.load(f.toString());
+		String before = dump(ccf);
+		CCFMerge report = ccf.merge(copy);
+		if (report.getAdded().length > 0 || report.getRenamed().length > 0)
+		{
+			throw new RuntimeException("self merge changed devices: "+report);
+		}
+		if (ccf.getAllDevices().length > 0 && report.getShared().length == 0)
+		{
+			throw new RuntimeException("self merge shared nothing");
+		}
+		if (!before.equals(dump(ccf)))
+		{
+			throw new RuntimeException("self merge changed the tree");
+		}
+	}
+
+	// compress and uncompress every 4 gray and 256 color icon
+	private void testIcons(File f)
+		throws IOException
+	{
+		CCF ccf = new CCF();
+		ccf.load(f.toString());
+		final Hashtable icons = new Hashtable();
+		new CCFWalker(ccf).walk(new IWalker() {
+			public void onNode(CCFNode node) {
+				icons.put(node, node);
+			}
+		}, CCFWalker.ICON);
+		for (Enumeration e = icons.keys(); e.hasMoreElements(); )
+		{
+			roundTrip((CCFIcon)e.nextElement());
+		}
+	}
+
+	// the same on icons made to hit the edges of both encodings: one
+	// pixel, odd counts, runs of exactly 0x7f and 0x7e pairs, the 35
+	// pixel gray run limit and literals next to runs. positive lengths
+	// are runs of one color, negative ones that many random pixels.
+	private void testIcons()
+	{
+		int runs[][] = {
+			{ 1 }, { 3 }, { -1 }, { -7 }, { -15 }, { -17 },
+			{ 254 }, { 252 }, { 253 }, { 255 }, { 256 },
+			{ 254, 254, 1 }, { 252, -3, 252 }, { -1, 254, -1 }, { 254, 254, -3 },
+			{ -254, 8, 254 }, { -252, 8, 254 }, { 4, -254, 8, 254 },
+			{ -253, 8, 254 }, { -256, 8, 254 },
+			{ 127, 129 }, { 35 }, { 36, 34 }, { 4, -3, 4 },
+		};
+		int color[] = { 0xff000000, 0xffffffff, 0xff808080, 0xffff0000 };
+		Random rnd = new Random(1);
+		for (int i=0; i<runs.length + 2; i++)
+		{
+			int w, h;
+			int img[];
+			if (i < runs.length)
+			{
+				w = 0;
+				for (int j=0; j<runs[i].length; j++)
+				{
+					w += Math.abs(runs[i][j]);
+				}
+				h = 1;
+				img = new int[w];
+				for (int j=0, p=0; j<runs[i].length; j++)
+				{
+					for (int k=0; k<Math.abs(runs[i][j]); k++)
+					{
+						img[p++] = runs[i][j] > 0 ? color[j % color.length] : 0xff000000 | rnd.nextInt();
+					}
+				}
+			}
+			else
+			{
+				// odd sized blocks of noise
+				w = i == runs.length ? 13 : 3;
+				h = i == runs.length ? 11 : 5;
+				img = new int[w*h];
+				for (int p=0; p<img.length; p++)
+				{
+					img[p] = 0xff000000 | rnd.nextInt();
+				}
+			}
+			for (int mode=CCFIcon.MODE_2BIT; mode<=CCFIcon.MODE_8BIT; mode++)
+			{
+				CCFIcon icon = new CCFIcon();
+				icon.setFromPixels(w, h, img, mode, false, CCFIcon.DITHER_NONE);
+				roundTrip(icon);
+			}
+		}
+	}
+
+	// switch compression and back and check the stored indexes or
+	// levels are the same each way
+	private static void roundTrip(CCFIcon icon)
+	{
+		if (icon.isFullColor() || !icon.isCompressible())
+		{
+			return;
+		}
+		byte pix[] = icon.getPixels();
+		boolean was = icon.isCompressed();
+		icon.setCompressed(!was);
+		if (!Arrays.equals(pix, icon.getPixels()))
+		{
+			throw new RuntimeException("pixels changed compressing "+icon);
+		}
+		icon.setCompressed(was);
+		if (!Arrays.equals(pix, icon.getPixels()))
+		{
+			throw new RuntimeException("pixels changed uncompressing "+icon);
+		}
+	}
+
+	// delete some buttons, panels and a device the way the editor does,
+	// removing the actions that target half of them, and check the
+	// reference index against a scan of every action list
+	private void testRefs(File f)
+		throws IOException
+	{
+		CCF ccf = new CCF();
+		ccf.load(f.toString());
+		final Vector targets = new Vector();
+		new CCFWalker(ccf).walk(new IWalker() {
+			public void onNode(CCFNode node) {
+				targets.addElement(node);
+			}
+		}, CCFWalker.DEVICE | CCFWalker.PANEL | CCFWalker.BUTTON | CCFWalker.IR_CODE);
+		// the index is built before the deletes and kept up after them
+		checkRefs(ccf, targets);
+		int n = 0;
+		for (int i=0; i<targets.size(); i++)
+		{
+			CCFNode node = (CCFNode)targets.get(i);
+			if (node.getParent() == null || (node instanceof CCFDevice ?
+				i % 2 != 0 : node instanceof CCFPanel ? i % 11 != 0 :
+				node instanceof CCFButton ? i % 7 != 0 : true))
+			{
+				continue;
+			}
+			if (n++ % 2 == 0)
+			{
+				CCFActionList list[] = ccf.getActionsTargeting(node);
+				for (int j=0; j<list.length; j++)
+				{
+					list[j].deleteMatching(node);
+				}
+			}
+			if (node instanceof CCFDevice)
+			{
+				((CCFDevice)node).delete();
+			}
+			else
+			if (node instanceof CCFPanel)
+			{
+				((CCFPanel)node).delete();
+			}
+			else
+			{
+				((CCFButton)node).delete();
+			}
+		}
+		checkRefs(ccf, targets);
+	}
+
+	private static void checkRefs(CCF ccf, Vector targets)
+	{
+		final Hashtable scan = new Hashtable();
+		new CCFWalker(ccf).walk(new IWalker() {
+			public void onNode(CCFNode node) {
+				CCFActionList al = (CCFActionList)node;
+				for (int i=0; al.action != null && i<al.action.length; i++)
+				{
+					CCFAction a = al.action[i];
+					if (a != null)
+					{
+						target(scan, a.action1, al);
+						target(scan, a.action2, al);
+					}
+				}
+			}
+		}, CCFWalker.ACTION_LIST);
+		for (int i=0; i<targets.size(); i++)
+		{
+			CCFNode node = (CCFNode)targets.get(i);
+			Hashtable want = (Hashtable)scan.get(node);
+			CCFActionList got[] = ccf.getActionsTargeting(node);
+			boolean same = got.length == (want != null ? want.size() : 0);
+			for (int j=0; same && j<got.length; j++)
+			{
+				same = want.get(got[j]) != null;
+			}
+			if (!same)
+			{
+				throw new RuntimeException("index has "+got.length+" lists targeting "+
+					node.describe()+", scan found "+(want != null ? want.size() : 0));
+			}
+		}
+	}
+
+	private static void target(Hashtable scan, CCFNode node, CCFActionList al)
+	{
+		if (node == null)
+		{
+			return;
+		}
+		Hashtable h = (Hashtable)scan.get(node);
+		if (h == null)
+		{
+			h = new Hashtable();
+			scan.put(node, h);
+		}
+		h.put(al, al);
+	}
+
+	// rename, add and delete devices and panels at random and check
+	// lookups by name against a search of the device lists
+	private void testNames(File f)
+		throws IOException
+	{
+		CCF ccf = new CCF();
+		ccf.load(f.toString());
+		checkNames(ccf, devices(ccf));
+		Random rnd = new Random(5);
+		for (int k=0; k<300; k++)
+		{
+			Vector dev = devices(ccf);
+			CCFDevice d = (CCFDevice)dev.get(rnd.nextInt(dev.size()));
+			CCFPanel p = d.getFirstPanel();
+			switch (rnd.nextInt(6))
+			{
+				case 0: d.setName("D"+rnd.nextInt(20)); break;
+				case 1: if (p != null) { p.setName("P"+rnd.nextInt(5)); } break;
+				case 2: if (p != null) { p.delete(); } break;
+				case 3: if (dev.size() > 5) { d.delete(); } break;
+				case 4: d.addPanel(d.createPanel("P"+rnd.nextInt(5))); break;
+				case 5:
+					CCFDevice nd = ccf.createDevice("D"+rnd.nextInt(20));
+					nd.addPanel(nd.createPanel("P"+rnd.nextInt(5)));
+					ccf.appendDevice(nd);
+					break;
+			}
+			dev = devices(ccf);
+			Vector some = new Vector();
+			some.addElement(d);
+			for (int i=0; i<10; i++)
+			{
+				some.addElement(dev.get(rnd.nextInt(dev.size())));
+			}
+			checkNames(ccf, some);
+			if (!Arrays.asList(ccf.getAllDevices()).equals(dev))
+			{
+				throw new RuntimeException("device list differs after change "+k);
+			}
+		}
+		checkNames(ccf, devices(ccf));
+	}
+
+	private static void checkNames(CCF ccf, Vector check)
+	{
+		Vector dev = devices(ccf);
+		Vector pan = new Vector();
+		for (int i=0; i<dev.size(); i++)
+		{
+			for (CCFPanel p = ((CCFDevice)dev.get(i)).getFirstPanel(); p != null; p = p.getNextPanel())
+			{
+				pan.addElement(p);
+			}
+		}
+		if (!Arrays.asList(ccf.getAllPanels()).equals(pan))
+		{
+			throw new RuntimeException("panel list differs");
+		}
+		for (int i=0; i<check.size(); i++)
+		{
+			CCFDevice d = (CCFDevice)check.get(i);
+			String name = d.getName();
+			CCFDevice want = null;
+			for (int j=0; j<dev.size() && want == null; j++)
+			{
+				if (name != null && name.equals(((CCFDevice)dev.get(j)).getName()))
+				{
+					want = (CCFDevice)dev.get(j);
+				}
+			}
+			if (ccf.getDeviceByName(name) != want)
+			{
+				throw new RuntimeException("device '"+name+"' found in the wrong place");
+			}
+			for (CCFPanel p = d.getFirstPanel(); p != null; p = p.getNextPanel())
+			{
+				// the first device of that name holding such a panel
+				CCFPanel match = null;
+				for (int j=0; j<dev.size() && match == null; j++)
+				{
+					CCFDevice o = (CCFDevice)dev.get(j);
+					if (name != null && name.equals(o.getName()))
+					{
+						match = o.getPanelByName(p.getName());
+					}
+				}
+				if (ccf.getPanelByName(name, p.getName()) != match)
+				{
+					throw new RuntimeException("panel '"+name+"/"+p.getName()+"' found in the wrong place");
+				}
+			}
+		}
+	}
+
+	// edit names, labels and ir codes at random and check searches
+	// for pieces of the text in the file against a walk
+	private void testSearch(File f)
+		throws IOException
+	{
+		CCF ccf = new CCF();
+		ccf.load(f.toString());
+		Random rnd = new Random(11);
+		checkSearch(ccf, rnd);
+		for (int k=0; k<20; k++)
+		{
+			edit(ccf, rnd);
+			checkSearch(ccf, rnd);
+		}
+	}
+
+	// rename, recode, delete or add a random node
+	private static void edit(CCF ccf, Random rnd)
+	{
+		Vector all = searchable(ccf);
+		CCFNode n = (CCFNode)all.get(rnd.nextInt(all.size()));
+		switch (rnd.nextInt(4))
+		{
+			case 0:
+				if (n instanceof CCFButton)
+				{
+					((CCFButton)n).setName("Btn"+rnd.nextInt(1000));
+				}
+				else
+				if (n instanceof CCFPanel)
+				{
+					((CCFPanel)n).setName("Pan"+rnd.nextInt(100));
+				}
+				else
+				if (n instanceof CCFDevice)
+				{
+					((CCFDevice)n).setName("Dev"+rnd.nextInt(100));
+				}
+				break;
+			case 1:
+				if (n instanceof CCFIRCode)
+				{
+					((CCFIRCode)n).setCode("0000 0067 0000 00"+Integer.toHexString(16+rnd.nextInt(200)));
+				}
+				break;
+			case 2:
+				if (n instanceof CCFButton && n.getParent() != null)
+				{
+					((CCFButton)n).delete();
+				}
+				break;
+			case 3:
+				if (n instanceof CCFPanel && n.getParent() != null)
+				{
+					CCFPanel p = (CCFPanel)n;
+					CCFButton b = p.createButton("new"+rnd.nextInt(100));
+					b.setIDTag("TAG"+rnd.nextInt(9));
+					b.appendAction(new ActionIRCode(ccf.createIRCode(
+						"0000 0048 0000 0001 abcd "+Integer.toHexString(0x1000+rnd.nextInt(900)))));
+					p.addButton(b);
+				}
+				break;
+		}
+	}
+
+	private static void checkSearch(CCF ccf, Random rnd)
+	{
+		Vector all = searchable(ccf);
+		String text[][] = new String[all.size()][];
+		for (int i=0; i<text.length; i++)
+		{
+			text[i] = text((CCFNode)all.get(i));
+		}
+		for (int k=0; k<20; k++)
+		{
+			String q = k == 0 ? "zzqqxx" : k == 1 ? " " : null;
+			while (q == null)
+			{
+				String t[] = text[rnd.nextInt(text.length)];
+				String from = t[rnd.nextInt(t.length)];
+				if (from != null && from.length() > 0)
+				{
+					int a = rnd.nextInt(from.length());
+					q = from.substring(a, Math.min(from.length(), a + 1 + rnd.nextInt(8)));
+					q = rnd.nextInt(4) == 0 ? q.toUpperCase() : q;
+				}
+			}
+			String s = q.toLowerCase();
+			String hex = noSpace(s);
+			Hashtable want = new Hashtable();
+			for (int i=0; i<all.size(); i++)
+			{
+				CCFNode n = (CCFNode)all.get(i);
+				String t[] = text[i];
+				for (int j=0; j<t.length; j++)
+				{
+					String find = n instanceof CCFIRCode && j == 1 ? hex : s;
+					if (t[j] != null && find.length() > 0 && t[j].indexOf(find) >= 0)
+					{
+						want.put(n, n);
+					}
+				}
+			}
+			CCFNode got[] = ccf.search(q);
+			boolean same = got.length == want.size();
+			for (int i=0; same && i<got.length; i++)
+			{
+				same = want.get(got[i]) != null;
+			}
+			if (!same)
+			{
+				throw new RuntimeException("search '"+q+"' found "+got.length+", walk found "+want.size());
+			}
+		}
+	}
+
+	// edit the file at random and check queries against a walk
+	private void testSelect(File f)
+		throws IOException
+	{
+		CCF ccf = new CCF();
+		ccf.load(f.toString());
+		Random rnd = new Random(13);
+		checkSelect(ccf, rnd);
+		for (int k=0; k<10; k++)
+		{
+			edit(ccf, rnd);
+			checkSelect(ccf, rnd);
+		}
+	}
+
+	private static void checkSelect(CCF ccf, Random rnd)
+	{
+		Vector all = searchable(ccf);
+		String text[][] = new String[all.size()][];
+		for (int i=0; i<text.length; i++)
+		{
+			text[i] = text((CCFNode)all.get(i));
+		}
+		for (int k=0; k<4; k++)
+		{
+			int at = rnd.nextInt(all.size());
+			CCFNode from = (CCFNode)all.get(at);
+			String code = from instanceof CCFIRCode ? text[at][1] : "0000";
+			String part = piece(text[at][0], rnd);
+			String id = from instanceof CCFButton ? piece(text[at][1], rnd) : "a";
+			String exact = from instanceof INamed ? ((INamed)from).getName() : null;
+			if (exact == null || exact.indexOf('"') >= 0 || !exact.equals(exact.trim()))
+			{
+				exact = "Main";
+			}
+			String hex = piece(code, rnd);
+			checkSelect(ccf, all, text, "//button[name~\""+part+"\"]", 0, part);
+			checkSelect(ccf, all, text, "//button[id~\""+id+"\"]", 1, id);
+			checkSelect(ccf, all, text, "//ircode[code~"+hex+"]", 2, hex);
+			checkSelect(ccf, all, text, "//panel[name=\""+exact+"\"]", 3, exact);
+			checkSelect(ccf, all, text, "device[name=\""+exact+"\"]/panel", 4, exact);
+			checkSelect(ccf, all, text, "//panel[name~\""+part+"\"]//button", 5, part);
+		}
+		checkSelect(ccf, all, text, "//panel//button[action=delay]", 6, null);
+		checkSelect(ccf, all, text, "//device", 7, null);
+	}
+
+	// query the ccf and check it finds the nodes the walk found
+	private static void checkSelect(CCF ccf, Vector all, String text[][], String query, int which, String v)
+	{
+		Hashtable want = new Hashtable();
+		String lower = v != null ? v.toLowerCase() : null;
+		for (int i=0; i<all.size(); i++)
+		{
+			CCFNode n = (CCFNode)all.get(i);
+			String t[] = text[i];
+			boolean hit = false;
+			switch (which)
+			{
+				case 0:
+					hit = n instanceof CCFButton && t[0] != null && t[0].indexOf(lower) >= 0;
+					break;
+				case 1:
+					hit = n instanceof CCFButton && t[1] != null && t[1].indexOf(lower) >= 0;
+					break;
+				case 2:
+					hit = n instanceof CCFIRCode && t[1].indexOf(lower) >= 0;
+					break;
+				case 3:
+					hit = n instanceof CCFPanel && v.equals(((CCFPanel)n).getName());
+					break;
+				case 4:
+					hit = n instanceof CCFPanel && n.getParent() instanceof CCFDevice &&
+						v.equals(((CCFDevice)n.getParent()).getName());
+					break;
+				case 5:
+					for (CCFNode p = n.getParent(); n instanceof CCFButton && p != null && !hit; p = p.getParent())
+					{
+						hit = p instanceof CCFPanel && ((CCFPanel)p).getName() != null &&
+							((CCFPanel)p).getName().toLowerCase().indexOf(lower) >= 0;
+					}
+					break;
+				case 6:
+					CCFActionList al = n instanceof CCFButton ? ((CCFButton)n).actions : null;
+					for (int j=0; al != null && al.action != null && j<al.action.length; j++)
+					{
+						hit |= al.action[j] != null && al.action[j].type == CCFAction.ACT_DELAY;
+					}
+					break;
+				case 7:
+					hit = n instanceof CCFDevice;
+					break;
+			}
+			if (hit)
+			{
+				want.put(n, n);
+			}
+		}
+		CCFNode got[] = ccf.select(query);
+		boolean same = got.length == want.size();
+		for (int i=0; same && i<got.length; i++)
+		{
+			same = want.get(got[i]) != null;
+		}
+		if (!same)
+		{
+			throw new RuntimeException("select "+query+" found "+got.length+", walk found "+want.size());
+		}
+	}
+
+	// a few characters from s, or s when it is empty
+	private static String piece(String s, Random rnd)
+	{
+		if (s == null || s.length() == 0)
+		{
+			return "a";
+		}
+		int a = rnd.nextInt(s.length());
+		String p = s.substring(a, Math.min(s.length(), a + 1 + rnd.nextInt(5))).trim();
+		return p.length() > 0 && p.indexOf('"') < 0 ? p : "a";
+	}
+
+	// devices, panels, buttons, frames and the ir codes actions send
+	private static Vector searchable(CCF ccf)
+	{
+		final Vector v = new Vector();
+		final Hashtable codes = new Hashtable();
+		new CCFWalker(ccf).walk(new IWalker() {
+			public void onNode(CCFNode node) {
+				if (!(node instanceof CCFActionList))
+				{
+					v.addElement(node);
+					return;
+				}
+				CCFAction a[] = ((CCFActionList)node).action;
+				for (int i=0; a != null && i<a.length; i++)
+				{
+					if (a[i] != null && a[i].action2 instanceof CCFIRCode && codes.put(a[i].action2, a[i].action2) == null)
+					{
+						v.addElement(a[i].action2);
+					}
+				}
+			}
+		}, CCFWalker.DEVICE | CCFWalker.PANEL | CCFWalker.BUTTON | CCFWalker.FRAME | CCFWalker.ACTION_LIST);
+		return v;
+	}
+
+	// the text search looks in, in lower case. ir hex is matched
+	// without spaces.
+	private static String[] text(CCFNode n)
+	{
+		String t[];
+		if (n instanceof CCFButton)
+		{
+			t = new String[] { ((CCFButton)n).getName(), ((CCFButton)n).getIDTag() };
+		}
+		else
+		if (n instanceof CCFIRCode)
+		{
+			t = new String[] { ((CCFIRCode)n).getName(), noSpace(((CCFIRCode)n).getCode()) };
+		}
+		else
+		if (n instanceof CCFDevice)
+		{
+			t = new String[] { ((CCFDevice)n).getName() };
+		}
+		else
+		if (n instanceof CCFPanel)
+		{
+			t = new String[] { ((CCFPanel)n).getName() };
+		}
+		else
+		{
+			t = new String[] { ((CCFFrame)n).getName() };
+		}
+		for (int i=0; i<t.length; i++)
+		{
+			t[i] = t[i] != null ? t[i].toLowerCase() : null;
+		}
+		return t;
+	}
+
+	private static String noSpace(String s)
+	{
+		StringBuffer sb = new StringBuffer(s.length());
+		for (int i=0; i<s.length(); i++)
+		{
+			if (!Character.isWhitespace(s.charAt(i)))
+			{
+				sb.append(s.charAt(i));
+			}
+		}
+		return sb.toString();
+	}
+
+	// home, normal and macro devices in list order
+	private static Vector devices(CCF ccf)
+	{
+		Vector v = new Vector();
+		CCFHeader h = ccf.header();
+		CCFDevice root[] = { h.firstHome, h.firstDevice, h.firstMacro };
+		for (int i=0; i<root.length; i++)
+		{
+			for (CCFDevice d = root[i]; d != null; d = d.getNextDevice())
+			{
+				v.addElement(d);
+			}
+		}
+		return v;
+	}
+
+	// every node in walk order with what it shows and targets
+	private static String dump(CCF ccf)
+	{
+		final StringBuffer sb = new StringBuffer();
+		new CCFWalker(ccf).walk(new IWalker() {
+			public void onNode(CCFNode node) {
+				sb.append(node.cname()+" "+node+"\n");
+			}
+		});
+		return sb.toString();
+	}
+
+	// save incrementally and read back
+	private static CCF patch(CCF ccf, File tmp)
+		throws IOException
+	{
+		ccf.save(tmp.toString(), true);
+		new File(tmp+".old").delete();
+		ccf = new CCF();
+		ccf.load(tmp.toString());
+		return ccf;
+	}
+
+	// buttons with actions in walk order
+	private static CCFButton[] buttons(CCF ccf)
+	{
+		final Vector v = new Vector();
+		new CCFWalker(ccf).walk(new IWalker() {
+			public void onNode(CCFNode node) {
+				if (node instanceof CCFButton && ((CCFButton)node).getActionList() != null)
+				{
+					v.add(node);
+				}
+			}
+		});
+		CCFButton b[] = new CCFButton[v.size()];
+		v.copyInto(b);
+		return b;
+	}
+
+	// the first ir code sent by one of the buttons
+	private static CCFIRCode irCode(CCFButton b[])
+	{
+		for (int i=0; i<b.length; i++)
+		{
+			CCFAction a[] = b[i].getActionList().getActions();
+			for (int j=0; j<a.length; j++)
+			{
+				if (a[j].type == CCFAction.ACT_IRCODE && a[j].action2 instanceof CCFIRCode)
+				{
+					return (CCFIRCode)a[j].action2;
+				}
+			}
+		}
+		return null;
+	}
+
 	public Hashtable getErrors()
 	{
 		return (errors.size() > 0 ? errors : null);
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2001-2002, Stewart Allen <stewart@neuron.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the Artistic License.
+ */
+
+package com.neuron.app.tonto;
+
+// ---( imports )---
+import java.io.*;
+import java.nio.channels.*;
+
+/**
+ * Write-only BufferedFile that passes bytes straight through to a stream
+ * and keeps a running CRC16 of everything written. The encoder writes
+ * nodes in file order, so the image is never held in memory and the CRC
+ * needs no second pass. Seeking forward pads with zeros. Seeking
+ * backward is not possible.
+ */
+class StreamBufferedFile extends BufferedFile
+{
+	// ---( constructors )---
+	public StreamBufferedFile (OutputStream out)
+	{
+		super(new byte[0]);
+		this.out = out;
+	}
+
+	public StreamBufferedFile (WritableByteChannel out)
+	{
+		this(Channels.newOutputStream(out));
+	}
+
+	// ---( instance fields )---
+	private OutputStream out;
+	private byte blk[] = new byte[8192];
+	private int fill;
+	private long pos;
+	private CRC16 crc = new CRC16();
+	private IOException error;
+
+	// ---( instance methods )---
+	private void drain()
+		throws IOException
+	{
+		if (fill > 0)
+		{
+			crc.update(blk, 0, fill);
+			int len = fill;
+			fill = 0;
+			out.write(blk, 0, len);
+		}
+	}
+
+	public void setLength(int len)
+	{
+		// nothing to pre-size
+	}
+
+	public long getFilePointer()
+	{
+		return pos;
+	}
+
+	public void seek(long npos)
+	{
+		if (npos == pos)
+		{
+			return;
+		}
+		if (npos < pos)
+		{
+			throw new IllegalStateException("stream seek back from "+pos+" to "+npos);
+		}
+		while (pos < npos)
+		{
+			write(0);
+		}
+	}
+
+	public long length()
+	{
+		return pos;
+	}
+
+	public void write(int b)
+	{
+		if (fill == blk.length)
+		{
+			flush();
+		}
+		blk[fill++] = (byte)b;
+		pos++;
+	}
+
+	public void write(byte b[], int off, int len)
+	{
+		if (fill + len > blk.length)
+		{
+			flush();
+		}
+		if (len > blk.length)
+		{
+			crc.update(b, off, len);
+			try
+			{
+				if (error == null)
+				{
+					out.write(b, off, len);
+				}
+			}
+			catch (IOException ex)
+			{
+				error = ex;
+			}
+		}
+		else
+		{
+			System.arraycopy(b, off, blk, fill, len);
+			fill += len;
+		}
+		pos += len;
+	}
+
+	// only the CRC of everything written so far is known
+	public int getCRC(int pos)
+	{
+		if (pos != this.pos)
+		{
+			throw new IllegalStateException("stream crc requested at "+pos+" of "+this.pos);
+		}
+		flush();
+		return crc.getValue();
+	}
+
+	// the node encoders do not expect write errors, so the first
+	// one is held until checkError() and later writes are dropped
+	private void flush()
+	{
+		try
+		{
+			if (error == null)
+			{
+				drain();
+			}
+		}
+		catch (IOException ex)
+		{
+			error = ex;
+		}
+		fill = 0;
+	}
+
+	/**
+	 * Throw the first error the stream reported, if any.
+	 */
+	void checkError()
+		throws IOException
+	{
+		if (error != null)
+		{
+			throw error;
+		}
+	}
+
+	byte[] getBuffer()
+	{
+		return null;
+	}
+
+	BufferedFile view()
+	{
+		throw new IllegalStateException("stream is write only");
+	}
+
+	public byte[] toByteArray()
+	{
+		throw new IllegalStateException("stream is write only");
+	}
+
+	public void close()
+	{
+		flush();
+		try
+		{
+			out.close();
+		}
+		catch (IOException ex)
+		{
+			ex.printStackTrace();
+		}
+	}
+}
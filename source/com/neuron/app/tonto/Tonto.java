@@ -36,6 +36,7 @@ import java.awt.image.*;
 import java.util.*;
 import java.util.zip.*;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import javax.swing.*;
 import javax.swing.text.*;
 import javax.swing.tree.*;
@@ -175,6 +176,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 	private final static int UTIL_EMULATOR      = BASE_UTIL + 8;
 	private final static int UTIL_EDITOR        = BASE_UTIL + 9;
 	private final static int UTIL_FIRMWARE      = BASE_UTIL + 10;
+	private final static int UTIL_COMPACT       = BASE_UTIL + 11;
 
 	// move/resize cursors
 	private final static Cursor CURSOR_DEFAULT  = new Cursor(Cursor.DEFAULT_CURSOR);
@@ -248,6 +250,8 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 	private final static String PREF_CENTER_DIALOGS    = "dialogs.center";
 	private final static String ASK_NETWORK_UPDATE     = "ask.network.update";
 	private final static String PREF_SELECTION_LAST    = "select.paint.last";
+	private final static String PREF_IMAGE_CACHE       = "image.cache.kb";
+	private final static String PREF_IMAGE_CACHE_SOFT  = "image.cache.soft";
 
 	private final static int numkey[] = new int[] {
 		KeyEvent.VK_1,
@@ -1169,6 +1173,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 			m_util.add(newMenuItem("Launch Emulator",   KeyEvent.VK_E, UTIL_EMULATOR, false));
 			m_util.add(newMenuItem("Launch Editor",     KeyEvent.VK_K, UTIL_EDITOR, false));
 			m_util.addSeparator();                     
+			m_util.add(newMenuItem("Compact Layout...", -1,            UTIL_COMPACT, false));
 			m_util.add(newMenuItem("Check For Update",  -1,            UTIL_NET_UPDATE, true));
 			m_util.add(revertMenu);
 
@@ -1655,6 +1660,8 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 			CCFColor.setGrayTint(prefs.getInteger(PREF_GRAY_TINT, CCFColor.getGrayTint()));
 			prefCenterDialogs = prefs.getBoolean(PREF_CENTER_DIALOGS, true);
 			prefSelectionLast = prefs.getBoolean(PREF_SELECTION_LAST, false);
+			CCFImageCache.setLimit(prefs.getInteger(PREF_IMAGE_CACHE, CCFImageCache.getLimit() / 1024) * 1024);
+			CCFImageCache.setSoft(prefs.getBoolean(PREF_IMAGE_CACHE_SOFT, true));
 		}
 		catch (Exception ex)
 		{
@@ -1722,6 +1729,8 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 			prefs.setProperty(PREF_GRAY_TINT, CCFColor.getGrayTint());
 			prefs.setProperty(PREF_CENTER_DIALOGS, prefCenterDialogs);
 			prefs.setProperty(PREF_SELECTION_LAST, prefSelectionLast);
+			prefs.setProperty(PREF_IMAGE_CACHE, CCFImageCache.getLimit() / 1024);
+			prefs.setProperty(PREF_IMAGE_CACHE_SOFT, CCFImageCache.isSoft());
 			prefs.save(prefFile);
 		}
 		catch (Exception ex)
@@ -2340,6 +2349,44 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 		runWithCCF(prefEditor);
 	}
 
+	// report the space a save would reclaim and offer the compact layout
+	private void compactLayout()
+	{
+		if (ccf == null)
+		{
+			return;
+		}
+		// wasted space comes from the loaded layout so measure it first
+		int wasted = ccf.getWastedBytes();
+		boolean was = ccf.isCompact();
+		int size = ccf.getImageSize(true);
+		ProntoModel model = ccf.getConformsTo(prefDefaultModel);
+		int mem = model.getMemory();
+		StringBuffer sb = new StringBuffer();
+		if (fileName != null && new File(fileName).exists())
+		{
+			sb.append("File size: "+new File(fileName).length()+" bytes\n");
+		}
+		sb.append("Unused space: "+wasted+" bytes\n");
+		sb.append("Compact size: "+size+" bytes\n");
+		if (mem > 0)
+		{
+			sb.append(model.getName()+" memory: "+mem+" bytes ");
+			sb.append(size <= mem ? "("+(mem-size)+" free)" : "(over by "+(size-mem)+")");
+			sb.append("\n");
+		}
+		if (was)
+		{
+			infoDialog(sb.append("\nThe compact layout is in use.").toString());
+			return;
+		}
+		if (confirmDialog("Compact Layout", sb.append("\nUse the compact layout when saving?").toString()))
+		{
+			ccf.setCompact(true);
+			setCCFChanged();
+		}
+	}
+
 	private String getEmulator()
 	{
 		if (ccf == null)
@@ -2544,7 +2591,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 				}
 			}
 		}
-		setCCFChanged();
+		setCCFChanged(doit);
 		updateMenuState();
 		return doit;
 	}
@@ -2556,6 +2603,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 		{
 			d = (Doable)undoStack.pop();
 			d.undoIt();
+			markChanged(d);
 			redoStack.push(d);
 			if (d instanceof DoEnd)
 			{
@@ -3701,7 +3749,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 					{
 						newCCF = new CCF();
 						newCCF.setNotify((ITaskStatus)dialog);
-						newCCF.load(fl);
+						newCCF.load(fl, true);
 					}
 				}
 			}.checkError();
@@ -3773,7 +3821,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 					else
 					{
 						ccf.setNotify((ITaskStatus)dialog);
-						ccf.save(fl);
+						ccf.save(fl, true);
 					}
 				}
 			}.checkError();
@@ -3830,9 +3878,16 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 			return false;
 		}
 		boolean merge = true;
+		CCFMerge report = null;
 		if (!isnew && ccf != null && new MergeDialog().getValue())
 		{
-			ccf.merge(newCCF);
+			report = ccf.merge(newCCF);
+			String renamed[] = report.getRenamed();
+			for (int i=0; i<renamed.length; i++)
+			{
+				debug.log(1, "merge renamed "+renamed[i]);
+			}
+			debug.log(0, "merge: "+report);
 			setCCFChanged();
 		}
 		else
@@ -3846,11 +3901,47 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 		newCCF = null;
 		updateMenuState();
 		refreshTreeModel();
-		icons.load(ccf);
+		// the icon scan reads every panel of a lazy load, so
+		// let the tree view paint first
+		final CCF scan = ccf;
+		SwingUtilities.invokeLater(new Runnable() { public void run() {
+			icons.load(scan);
+			scan.prepareSearch();
+		} });
 		panelSize = ccf.getScreenSize(prefDefaultModel);
+		if (report != null)
+		{
+			infoDialog(mergeReport(report));
+		}
 		return merge;
 	}
 
+	// what a merge added, shared and renamed, a few names of each
+	private static String mergeReport(CCFMerge report)
+	{
+		StringBuffer sb = new StringBuffer();
+		mergeReport(sb, "Added", report.getAdded());
+		mergeReport(sb, "Already present", report.getShared());
+		mergeReport(sb, "Renamed", report.getRenamed());
+		sb.append(report.getSharedIcons()+" icons and "+report.getSharedIRCodes()+" IR codes were already present.");
+		return sb.toString();
+	}
+
+	private static void mergeReport(StringBuffer sb, String title, String names[])
+	{
+		sb.append(title+": "+names.length+"\n");
+		int show = names.length > 12 ? 10 : names.length;
+		for (int i=0; i<show; i++)
+		{
+			sb.append("    "+names[i]+"\n");
+		}
+		if (show < names.length)
+		{
+			sb.append("    ... and "+(names.length-show)+" more\n");
+		}
+		sb.append("\n");
+	}
+
 	static File getFileOld(boolean load, String desc, String end[], File dir, File dfile)
 	{
 		final String e[] = end;
@@ -4008,7 +4099,73 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 		changed = false;
 	}
 
+	// a change not made through an undo record. the next save
+	// has to lay out the whole file again.
 	private void setCCFChanged()
+	{
+		ccf.setChanged(null);
+		setModified();
+	}
+
+	private void setCCFChanged(Doable doit)
+	{
+		markChanged(doit);
+		setModified();
+	}
+
+	// tell the ccf which nodes an undo record touches so a save
+	// can rewrite just those
+	private void markChanged(Doable doit)
+	{
+		if (doit instanceof DoNodeUpdate)
+		{
+			markChanged(((DoNodeUpdate)doit).node);
+		}
+		else
+		if (doit instanceof DoBounds)
+		{
+			DoBounds db = (DoBounds)doit;
+			if (db.child != null)
+			{
+				markChanged(db.child);
+			}
+			else
+			if (db.box instanceof ChildPanel && ((ChildPanel)db.box).getSource() != null)
+			{
+				markChanged(((ChildPanel)db.box).getSource());
+			}
+			else
+			{
+				ccf.setChanged(null);
+			}
+		}
+		else
+		if (doit instanceof MultiDo)
+		{
+			Vector dos = ((MultiDo)doit).dos;
+			for (int i=0; i<dos.size(); i++)
+			{
+				markChanged((Doable)dos.get(i));
+			}
+		}
+		else
+		if (!(doit instanceof DoStart || doit instanceof DoEnd || doit instanceof DoRefresher))
+		{
+			ccf.setChanged(null);
+		}
+	}
+
+	private void markChanged(CCFNode node)
+	{
+		ccf.setChanged(node);
+		if (node instanceof CCFChild && ((CCFChild)node).child != null)
+		{
+			// the size is kept in the button or frame
+			ccf.setChanged(((CCFChild)node).child);
+		}
+	}
+
+	private void setModified()
 	{
 		boolean ut = !changed;
 		isnew = false;
@@ -4504,6 +4661,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 		menuEnable(UTIL_EMULATOR, getEmulator() != null);
 		menuEnable(UTIL_EDITOR, prefEditor != null);
 		menuEnable(UTIL_FIRMWARE, hasComm);
+		menuEnable(UTIL_COMPACT, isLoaded());
 		menuEnable(UTIL_UNDEAD, hasComm);
 		menuEnable(AUTOLOAD_ADD, autoload);
 		menuEnable(AUTOLOAD_REMOVE, !autoload && fileName != null);
@@ -5093,6 +5251,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 	private void eventRunEditor()       { runEditor(); }
 	private void eventNetworkUpdate()   { checkForUpdates(true); }
 	private void eventRawUpload()       { rawUpload(); }
+	private void eventCompactLayout()   { compactLayout(); }
 	private void eventRawDownload()     { rawDownload(); }
 	private void eventEmailLogfile()    { emailLogfile(); }
 	private void eventAutoloadAdd()
@@ -5714,6 +5873,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 			case UTIL_EDITOR:        state().eventRunEditor(); break;
 			case UTIL_NET_UPDATE:    state().eventNetworkUpdate(); break;
 			case UTIL_FIRMWARE:      state().eventRemoteFirmware(); break;
+			case UTIL_COMPACT:       state().eventCompactLayout(); break;
 			case OBJECT_TRANSPARENT: state().eventObjectTransparency(); break;
 
 			case ABOUT:              state().eventHelpAbout(); break;
@@ -5889,7 +6049,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 						return true;
 					}
 				}
-			});
+			}, CCFWalker.FRAME | CCFWalker.BUTTON);
 			infoDialog("Applied "+theme.getName()+" to "+count+" objects");
 			refreshAllPanels();
 		}
@@ -6680,7 +6840,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 		{
 			pushDo(new MultiDo(new Doable[] {
 				new DoDeleteDevice(dev, folder),
-				//new DoRemoveDependencies(ccf, dev),
+				new DoRemoveDependencies(ccf, dev),
 			}));
 		}
 
@@ -6806,7 +6966,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 			}
 			pushDo(new MultiDo(new Doable[] {
 				new DoDeletePanel(panel),
-				//new DoRemoveDependencies(ccf, panel),
+				new DoRemoveDependencies(ccf, panel),
 			}));
 		}
 
@@ -7707,8 +7867,10 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 	class ObjectPanel extends AAPanel implements ActionListener
 	{
 		private boolean apply;
+		private javax.swing.Timer memoryTimer;
 		private Object object;
 		private JLabel flabel = new JLabel("Font");
+		private JLabel memory = new JLabel();
 		private NameAttr name = new NameAttr(this);
 		private GeomPanel geom = new GeomPanel(true);
 		private JComboBox font = new JComboBox(new String[] {
@@ -7722,8 +7884,15 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 			define('f', font,   "pad=3,3,2,2;fill=n;wy=1");
 			define('n', name,   "pad=3,3,2,2;fill=n;wy=1");
 			define('p', pad,    "pad=3,3,2,2;fill=b;wy=1;wx=1");
+			define('m', memory, "pad=3,3,2,2;fill=n;wy=1");
 			define('g', geom,   "pad=3,3,2,2;fill=n;wy=1");
-			setLayout(new String[] { "F f n p g" });
+			setLayout(new String[] { "F f n p m g" });
+			memoryTimer = new javax.swing.Timer(2000, new ActionListener() {
+				public void actionPerformed(ActionEvent ae) {
+					updateMemory();
+				}
+			});
+			updateMemory();
 			setObject(null);
 			font.addActionListener(new ActionListener() {
 				public void actionPerformed(ActionEvent ae) {
@@ -7737,6 +7906,27 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 			setBorder(new BevelBorder(BevelBorder.LOWERED));
 		}
 
+		// the timer only runs while the panel is shown so a closed
+		// window is not kept alive by it
+		public void addNotify()
+		{
+			super.addNotify();
+			memoryTimer.start();
+		}
+
+		public void removeNotify()
+		{
+			memoryTimer.stop();
+			super.removeNotify();
+		}
+
+		// live decoded image memory shared by all windows
+		private void updateMemory()
+		{
+			memory.setText("images "+(CCFImageCache.getUsed() / 1024)+"K");
+			memory.setToolTipText("image cache "+CCFImageCache.report());
+		}
+
 		public void setObject(Object object)
 		{
 			apply = false;
@@ -8676,8 +8866,6 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 					dos.add(new DoBounds(cp, ob, nb));
 				}
 				pushDo(dos);
-
-				setCCFChanged();
 			}
 		}
 
@@ -9437,7 +9625,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 
 		public void ccfChangeEvent()
 		{
-			setChildren(panel.child);
+			setChildren(panel.getChildren());
 		}
 
 		public void addButton()
@@ -9460,7 +9648,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 			boolean color = color();
 			setBackground(CCFColor.getNamedColor(CCFColor.WHITE, color).getAWTColor(color));
 			setSize(panelSize);
-			setChildren(panel.child);
+			setChildren(panel.getChildren());
 			repaint();
 		}
 
@@ -9468,7 +9656,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 		{
 			pushDo(new MultiDo(new Doable[] {
 				new DoDeletePanel(panel),
-				//new DoRemoveDependencies(ccf, panel),
+				new DoRemoveDependencies(ccf, panel),
 			}));
 		}
 
@@ -9837,7 +10025,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 		{
 			pushDo(new MultiDo(new Doable[] {
 				new DoDeleteChild(button.getChildWrapper()),
-				//new DoRemoveDependencies(ccf, button),
+				new DoRemoveDependencies(ccf, button),
 			}));
 		}
 
@@ -11218,7 +11406,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 
 		public void doOK()
 		{
-			dev.name = name.getName();
+			dev.setName(name.getName());
 			dev.action = action.save();
 			dev.rfExtender = extender.getSelectedIndex();
 
@@ -11916,10 +12104,11 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 				}
 			});
 
-			CCFHeader hdr = ccf().header().getHeader();
-			addDeviceAliases(v, hdr.firstHome);
-			addDeviceAliases(v, hdr.firstDevice);
-			addDeviceAliases(v, hdr.firstMacro);
+			CCFDevice dev[] = ccf().getAllDevices();
+			for (int i=0; i<dev.length; i++)
+			{
+				addDeviceAliases(v, dev[i]);
+			}
 			Object last = state().lastAlias;
 			if (act.action1 != null || last == null)
 			{
@@ -11973,10 +12162,6 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 
 		private void addDeviceAliases(Vector v, CCFDevice d)
 		{
-			if (d == null)
-			{
-				return;
-			}
 			v.addElement(d);
 			CCFHardKey keys[] = d.getHardKeys();
 			for (int i=0; i<keys.length; i++)
@@ -11992,7 +12177,6 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 					v.addElement(b[j]);
 				}
 			}
-			addDeviceAliases(v, d.next);
 		}
 
 		public void doOK()
@@ -12103,9 +12287,16 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 				v.addElement(new JumpWrapper(CCFAction.JUMP_FORWARD));
 				v.addElement(new JumpWrapper(CCFAction.JUMP_BACK));
 			}
-			addPanelJumps(v, ccf.getFirstHomeDevice());
-			addPanelJumps(v, ccf.getFirstDevice());
-			addPanelJumps(v, ccf.getFirstMacroDevice());
+			CCFPanel p[] = ccf.getAllPanels();
+			for (int i=0; i<p.length; i++)
+			{
+				PanelWrapper pw = new PanelWrapper(p[i]);
+				if (sel.equals(p[i]))
+				{
+					sel = pw;
+				}
+				v.addElement(pw);
+			}
 
 			combo = new JList(new VectorListModel(v));
 			combo.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -12160,24 +12351,6 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 			return new Dimension(Math.min(250, d.width), d.height);
 		}
 
-		private void addPanelJumps(Vector v, CCFDevice d)
-		{
-			while (d != null)
-			{
-				CCFPanel p[] = d.getPanels();
-				for (int i=0; i<p.length; i++)
-				{
-					PanelWrapper pw = new PanelWrapper(p[i]);
-					if (sel.equals(p[i]))
-					{
-						sel = pw;
-					}
-					v.addElement(pw);
-				}
-				d = d.next;
-			}	
-		}
-
 		public void doOK()
 		{
 			sel = combo.getSelectedValue();
@@ -13535,6 +13708,10 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 				Field f[] = node.getClass().getDeclaredFields();
 				for (int i=0; i<f.length; i++)
 				{
+					if (Modifier.isTransient(f[i].getModifiers()))
+					{
+						continue;
+					}
 					try {
 					h.put(f[i], f[i].get(node));
 					} catch (Exception ex) { }
@@ -13822,6 +13999,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 					case DEVICE: if (header.firstDevice != null) { header.firstDevice.appendDevice(device); } else { header.firstDevice = device; } break;
 					case MACRO: if (header.firstMacro != null) { header.firstMacro.appendDevice(device); } else { header.firstMacro = device; } break;
 				}
+				header.treeChanged();
 			}
 			else
 			{
@@ -13836,7 +14014,7 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 	}
 
 	// ---( Inner Class DoRemoveDependencies )---
-	class DoRemoveDependencies implements Doable, IWalker
+	class DoRemoveDependencies implements Doable
 	{
 		private CCF ccf;
 		private CCFNode node;
@@ -13851,9 +14029,19 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 		public void doIt()
 		{
 			clones = new Hashtable();
-			if (ccf != null)
+			if (ccf == null)
 			{
-				new CCFWalker(ccf).walk(this);
+				return;
+			}
+			CCFActionList list[] = ccf.getActionsTargeting(node);
+			for (int i=0; i<list.length; i++)
+			{
+				CCFActionList al = list[i];
+				clones.put(al, al.getActions());
+				if (al.deleteMatching(node))
+				{
+					debug.log(1,"rmdep: remove matching "+Util.nickname(al.getParent()));
+				}
 			}
 		}
 
@@ -13866,20 +14054,6 @@ public class Tonto implements ITaskStatus, TreeSelectionListener
 				al.setActions(a);
 			}
 		}
-
-		public void onNode(CCFNode on)
-		{
-			if (on instanceof CCFActionList)
-			{
-				CCFActionList al = (CCFActionList)on;
-				clones.put(al, al.getActions());
-				if (al.deleteMatching(node))
-				{
-					debug.log(1,"rmdep: remove matching "+Util.nickname(on.getParent()));
-					new Exception("Trace").printStackTrace();
-				}
-			}
-		}
 	}
 
 	// ---( Inner Class DoMove )---
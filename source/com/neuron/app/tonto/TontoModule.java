@@ -49,6 +49,16 @@ public abstract class TontoModule
 		return tonto.ccf();
 	}
 
+	/**
+	 * Find the nodes in the open CCF whose name, label, ID tag or
+	 * IR hex contains this text, ignoring case.
+	 */
+	public CCFNode[] searchCCF(String text)
+	{
+		CCF ccf = getCCF();
+		return ccf != null ? ccf.search(text) : new CCFNode[0];
+	}
+
 	public void showElementInCCFTree(Object obj)
 	{
 		// TODO
@@ -13,6 +13,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.channels.FileChannel;
 import java.awt.Color;
 import java.awt.GridLayout;
 import javax.swing.JPanel;
@@ -60,6 +63,27 @@ public final class Util
 		}
 	}
 
+	public static void copyFile(File src, File dst)
+		throws IOException
+	{
+		FileChannel in = new FileInputStream(src).getChannel();
+		FileChannel out = new FileOutputStream(dst).getChannel();
+		try
+		{
+			long pos = 0;
+			long len = in.size();
+			while (pos < len)
+			{
+				pos += in.transferTo(pos, len - pos, out);
+			}
+		}
+		finally
+		{
+			in.close();
+			out.close();
+		}
+	}
+
 	// -------------------------------------------------------------------------------------
 	// N U M B E R S
 	// -------------------------------------------------------------------------------------
@@ -420,6 +444,182 @@ public final class Util
 		return optr;
 	}
 
+	/**
+	 * LZO1X-1 compress src into dst, readable by decompress(). The
+	 * input must not exceed 49152 bytes, the furthest a match can
+	 * reach back. dst needs room for src_len + src_len/16 + 67 bytes.
+	 */
+	public static int compress (
+		byte src[], int src_off, int src_len,
+		byte dst[], int dst_off
+	)
+	{
+		int dict[] = new int[1 << 13];
+		int in_end = src_off + src_len;
+		int ip_end = in_end - 20;
+		int ip = src_off + 4;
+		int ii = src_off;
+		int op = dst_off;
+		int len;
+
+		// matches are found by hashing the next four bytes
+		while (src_len > 20)
+		{
+			ip += 1 + ((ip - ii) >> 5);
+			if (ip >= ip_end)
+			{
+				break;
+			}
+			int dv = getIntLE(src, ip);
+			int h = ((dv * 0x1824429d) >>> 19) & 0x1fff;
+			int mp = src_off + dict[h];
+			dict[h] = ip - src_off;
+			if (dv != getIntLE(src, mp))
+			{
+				continue;
+			}
+			do
+			{
+				// emit literals preceeding the match
+				len = ip - ii;
+				if (len > 0)
+				{
+					if (len <= 3)
+					{
+						dst[op-2] |= len;
+					}
+					else
+					{
+						op = literalLength(dst, op, len);
+					}
+					System.arraycopy(src, ii, dst, op, len);
+					op += len;
+				}
+				int mlen = 4;
+				while (ip + mlen < ip_end && src[ip+mlen] == src[mp+mlen])
+				{
+					mlen++;
+				}
+				int moff = ip - mp;
+				ip += mlen;
+				ii = ip;
+				if (mlen <= 8 && moff <= 0x800)
+				{
+					// M2: 3-8 bytes within 2K
+					moff -= 1;
+					dst[op++] = (byte)(((mlen - 1) << 5) | ((moff & 7) << 2));
+					dst[op++] = (byte)(moff >> 3);
+				}
+				else
+				{
+					if (moff <= 0x4000)
+					{
+						// M3: any length within 16K
+						moff -= 1;
+						op = matchLength(dst, op, 32, mlen, 33);
+					}
+					else
+					{
+						// M4: any length within 48K
+						moff -= 0x4000;
+						op = matchLength(dst, op, 16 | ((moff >> 11) & 8), mlen, 9);
+					}
+					dst[op++] = (byte)(moff << 2);
+					dst[op++] = (byte)(moff >> 6);
+				}
+				// a match may follow directly without a literal
+				if (ip >= ip_end)
+				{
+					break;
+				}
+				dv = getIntLE(src, ip);
+				h = ((dv * 0x1824429d) >>> 19) & 0x1fff;
+				mp = src_off + dict[h];
+				dict[h] = ip - src_off;
+			}
+			while (dv == getIntLE(src, mp));
+		}
+
+		// trailing literals
+		len = in_end - ii;
+		if (len > 0)
+		{
+			if (op == dst_off && len <= 238)
+			{
+				dst[op++] = (byte)(17 + len);
+			}
+			else
+			if (len <= 3)
+			{
+				dst[op-2] |= len;
+			}
+			else
+			{
+				op = literalLength(dst, op, len);
+			}
+			System.arraycopy(src, ii, dst, op, len);
+			op += len;
+		}
+
+		// end of stream is an M4 match with no distance
+		dst[op++] = 17;
+		dst[op++] = 0;
+		dst[op++] = 0;
+
+		return op - dst_off;
+	}
+
+	// literal run of 4 or more bytes
+	private static int literalLength(byte dst[], int op, int len)
+	{
+		if (len <= 18)
+		{
+			dst[op++] = (byte)(len - 3);
+		}
+		else
+		{
+			dst[op++] = 0;
+			op = zeroRun(dst, op, len - 18);
+		}
+		return op;
+	}
+
+	// match marker with its length in the low bits or a run of zeros
+	private static int matchLength(byte dst[], int op, int marker, int len, int max)
+	{
+		if (len <= max)
+		{
+			dst[op++] = (byte)(marker | (len - 2));
+		}
+		else
+		{
+			dst[op++] = (byte)marker;
+			op = zeroRun(dst, op, len - max);
+		}
+		return op;
+	}
+
+	// lengths too long for a marker are a count of 255s plus the rest
+	private static int zeroRun(byte dst[], int op, int len)
+	{
+		while (len > 255)
+		{
+			len -= 255;
+			dst[op++] = 0;
+		}
+		dst[op++] = (byte)len;
+		return op;
+	}
+
+	private static int getIntLE(byte buf[], int off)
+	{
+		return
+			((buf[off]&0xff) << 0)    |
+			((buf[off+1]&0xff) << 8)  |
+			((buf[off+2]&0xff) << 16) |
+			((buf[off+3]&0xff) << 24);
+	}
+
 	public static int getInt(byte buf[], int off)
 	{
 		return
@@ -536,7 +536,17 @@ final class Xmodem
 	public void sendFile(byte b[])
 		throws IOException
 	{
-		debug.log(1,"send file="+b.length);
+		sendFile(new ByteArrayInputStream(b), b.length);
+	}
+
+	/**
+	 * Send len bytes read from a stream, so the file does not have to
+	 * be complete before the transfer starts.
+	 */
+	public void sendFile(InputStream in, int len)
+		throws IOException
+	{
+		debug.log(1,"send file="+len);
 		int off = 0;
 		int i = 1;
 		int lastPct = -1;
@@ -568,15 +578,24 @@ final class Xmodem
 				throw new IOException("Send terminated. No Xmodem stream.");
 			}
 		}
-		while (true)
+		while (off < len)
 		{
-			int sent = sendBlock(b, off, (i++)%256);
-			if (sent == 0)
+			// sendBlock picks its block size from what remains
+			int rem = len - off;
+			byte b[] = new byte[rem >= 1024 ? 1024 : Math.min(rem, 128)];
+			for (int rd = 0; rd < b.length; )
 			{
-				break;
+				int got = in.read(b, rd, b.length - rd);
+				if (got < 0)
+				{
+					CAN();
+					throw new IOException("Send terminated. File ended at "+(off+rd)+" of "+len);
+				}
+				rd += got;
 			}
+			int sent = sendBlock(b, 0, (i++)%256);
 			off += sent;
-			int newPct = (off*100)/b.length;
+			int newPct = (int)(((long)off*100)/len);
 			if (newPct != lastPct)
 			{
 				lastPct = newPct;